@@ -142,7 +142,7 @@ class RegisterNameDialog : DialogFragment() {
         val accountId = arguments?.getString(AccountEditionFragment.ACCOUNT_ID_KEY) ?: ""
         mDisposableListener = contactQuery
             .debounce(JamiAccountCreationPresenter.TYPING_DELAY, TimeUnit.MILLISECONDS)
-            .switchMapSingle { q: String -> mAccountService.findRegistrationByName(accountId, "", q) }
+            .switchMapSingle { q: String -> mAccountService.checkNameAvailability(accountId, q) }
             .observeOn(AndroidSchedulers.mainThread())
             .subscribe { q: RegisteredName -> onLookupResult(q.name, q.address, q.state) }
         super.onStart()
@@ -107,8 +107,9 @@ class ConfParticipantAdapter(private var calls: List<ParticipantInfo>, private v
             override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean =
                 oldCalls[oldItemPosition].hashCode() == contacts[newItemPosition].hashCode()
 
+            // Unchanged participants are kept as the same instance
             override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean =
-                false
+                oldCalls[oldItemPosition] === contacts[newItemPosition]
         }).dispatchUpdatesTo(this)
     }
 
@@ -198,6 +198,42 @@ class ConversationAdapter(
         return true
     }
 
+    /**
+     * Inserts a contiguous range of swarm interactions next to its parent or child
+     * @return true if the range was added at the end of the conversation
+     */
+    fun addAll(elements: List<Interaction>): Boolean {
+        if (elements.isEmpty()) return false
+        if (elements.size == 1) return add(elements[0])
+        val first = elements.first()
+        val last = elements.last()
+        val position = if (!first.isSwarm) {
+            // Non-swarm pages are placed by timestamp
+            mInteractions.indexOfFirst { it.timestamp > last.timestamp }.let { if (it == -1) mInteractions.size else it }
+        } else if (mInteractions.isEmpty() || mInteractions[mInteractions.size - 1].messageId == first.parentId) {
+            mInteractions.size
+        } else {
+            val childPosition = mInteractions.indexOfFirst { it.parentId == last.messageId }
+            if (childPosition != -1) childPosition
+            else mInteractions.indexOfLast { it.messageId == first.parentId }.let { if (it == -1) it else it + 1 }
+        }
+        if (position == -1) {
+            var atEnd = false
+            for (e in elements) atEnd = add(e)
+            return atEnd
+        }
+        val atEnd = position == mInteractions.size
+        mInteractions.addAll(position, elements)
+        notifyItemRangeInserted(position, elements.size)
+        if (atEnd && position > 0) {
+            // Find previous last not invalid.
+            getPreviousInteractionFromPosition(position)?.let { interactionNotInvalid ->
+                notifyItemChanged(mInteractions.lastIndexOf(interactionNotInvalid))
+            }
+        }
+        return atEnd
+    }
+
     fun update(editedInteraction: Interaction) {
         mInteractions.indexOfLast { it.messageId == editedInteraction.messageId }.let { position ->
             if (position == -1) return
@@ -238,6 +274,29 @@ class ConversationAdapter(
         }
     }
 
+    /**
+     * Removes a contiguous range of swarm interactions
+     */
+    fun removeAll(elements: List<Interaction>) {
+        if (elements.isEmpty()) return
+        val position = mInteractions.indexOfFirst { it.messageId == elements[0].messageId }
+        if (position == -1 || position + elements.size > mInteractions.size
+            || mInteractions[position + elements.size - 1].messageId != elements.last().messageId) {
+            for (e in elements) remove(e)
+            return
+        }
+        mInteractions.subList(position, position + elements.size).clear()
+        notifyItemRangeRemoved(position, elements.size)
+        if (position > 0) {
+            notifyItemChanged(position - 1)
+        }
+        if (position != mInteractions.size) {
+            notifyItemChanged(position)
+        }
+    }
+
+    fun getItemMessageId(position: Int): String? = mInteractions.getOrNull(position)?.messageId
+
     fun addSearchResults(interactions: List<Interaction>) {
         val oldSize = mInteractions.size
         mInteractions.addAll(interactions)
@@ -26,6 +26,7 @@ import cx.ring.viewholders.SmartListViewHolder
 import cx.ring.viewholders.SmartListViewHolder.SmartListListeners
 import io.reactivex.rxjava3.disposables.CompositeDisposable
 import net.jami.model.Conversation
+import net.jami.model.SortedConversationList
 import net.jami.services.ConversationFacade
 
 class SmartListAdapter(
@@ -91,7 +92,17 @@ class SmartListAdapter(
     fun update(viewModels: ConversationFacade.ConversationList) {
         val old: ConversationFacade.ConversationList = conversations
         conversations = setItems(viewModels)
-        if (!viewModels.isEmpty()) {
+        if (viewModels.changesBase != null && viewModels.changesBase === old.conversations
+            && old.searchResult.result.isEmpty() && viewModels.searchResult.result.isEmpty()) {
+            // Positional changes from the displayed list are known, no need to diff
+            for (change in viewModels.changes) {
+                when (change) {
+                    is SortedConversationList.Change.Insert -> notifyItemInserted(change.position)
+                    is SortedConversationList.Change.Remove -> notifyItemRemoved(change.position)
+                    is SortedConversationList.Change.Move -> notifyItemMoved(change.from, change.to)
+                }
+            }
+        } else if (!viewModels.isEmpty()) {
             val recyclerViewState = recyclerView?.layoutManager?.onSaveInstanceState()
             DiffUtil.calculateDiff(SmartListDiffUtil(old, viewModels))
                 .dispatchUpdatesTo(this)
@@ -46,6 +46,7 @@ import io.reactivex.rxjava3.plugins.RxJavaPlugins
 import io.reactivex.rxjava3.schedulers.Schedulers
 import net.jami.daemon.JamiService
 import net.jami.services.*
+import net.jami.utils.LaneExecutor
 import java.io.File
 import java.util.concurrent.ScheduledExecutorService
 import javax.inject.Inject
@@ -65,6 +66,9 @@ abstract class JamiApplication : Application() {
     @Named("DaemonExecutor") lateinit
     var mExecutor: ScheduledExecutorService
 
+    @Inject lateinit
+    var mLaneExecutor: LaneExecutor
+
     @Inject lateinit
     var daemon: DaemonService
 
@@ -92,6 +96,9 @@ abstract class JamiApplication : Application() {
     @Inject lateinit
     var mConversationFacade: ConversationFacade
 
+    @Inject lateinit
+    var mSnapshotStore: SmartListSnapshotStore
+
     private val ringerModeListener: BroadcastReceiver = object : BroadcastReceiver() {
         override fun onReceive(context: Context, intent: Intent) {
             ringerModeChanged(intent.getIntExtra(AudioManager.EXTRA_RINGER_MODE, AudioManager.RINGER_MODE_NORMAL))
@@ -141,7 +148,12 @@ abstract class JamiApplication : Application() {
                 if (daemon.isStarted) {
                     return@execute
                 }
-                daemon.startDaemon()
+                try {
+                    daemon.startDaemon()
+                } finally {
+                    // Call and bulk work queued until now can reach the daemon
+                    mLaneExecutor.started()
+                }
 
                 // Check if the camera hardware feature is available.
                 if (mDeviceRuntimeService.hasVideoPermission()) {
@@ -194,7 +206,7 @@ abstract class JamiApplication : Application() {
         }
         try {
             stopResult.get()
-            mExecutor.shutdown()
+            mLaneExecutor.shutdown()
         } catch (e: Exception) {
             Log.e(TAG, "DRingService stop failed", e)
         }
@@ -243,6 +255,8 @@ abstract class JamiApplication : Application() {
             }
         }
 
+        // Read the conversation lists of the last session while the daemon starts
+        Schedulers.io().scheduleDirect { mSnapshotStore.preload() }
         bootstrapDaemon()
         mPreferencesService.loadDarkMode()
         Completable.fromAction {
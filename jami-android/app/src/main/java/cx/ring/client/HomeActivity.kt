@@ -337,7 +337,7 @@ class HomeActivity : AppCompatActivity(), ContactPickerFragment.OnContactedPicke
             mAccountService.currentAccountSubject
                 .switchMap { account -> usernameAvailabilitySubject.map { Pair(account, it) } }
                 .debounce(500, TimeUnit.MILLISECONDS)
-                .switchMapSingle { (account, username) -> mAccountService.findRegistrationByName(account.accountId, "", username) }
+                .switchMapSingle { (account, username) -> mAccountService.checkNameAvailability(account.accountId, username) }
                 .observeOn(DeviceUtils.uiScheduler)
                 .subscribe { welcomeJamiViewModel.checkIfUsernameIsAvailableResult(it) }
         )
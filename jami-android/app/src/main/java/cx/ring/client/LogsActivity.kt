@@ -52,6 +52,7 @@ import io.reactivex.rxjava3.disposables.Disposable
 import io.reactivex.rxjava3.schedulers.Schedulers
 import net.jami.android.tombstone.TombstoneProtos.Tombstone
 import net.jami.services.HardwareService
+import net.jami.utils.LatencyTracker
 import java.io.File
 import java.io.FileOutputStream
 import java.io.InputStream
@@ -71,6 +72,9 @@ class LogsActivity : AppCompatActivity() {
     @Singleton
     lateinit var mHardwareService: HardwareService
 
+    @Inject
+    lateinit var mLatencyTracker: LatencyTracker
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         JamiApplication.instance?.startDaemon(this)
@@ -165,6 +169,10 @@ class LogsActivity : AppCompatActivity() {
                 showNativeCrashes(true)
                 return true
             }
+            R.id.menu_log_latency -> {
+                showLatency()
+                return true
+            }
             else -> return super.onOptionsItemSelected(item)
         }
     }
@@ -174,6 +182,7 @@ class LogsActivity : AppCompatActivity() {
             = CrashReportBinding.inflate(inflater, container, false).apply {
             crash.text = arguments?.getString("crash")
             toolbar.menu.findItem(R.id.menu_log_crashes)?.isVisible = false
+            toolbar.menu.findItem(R.id.menu_log_latency)?.isVisible = false
             toolbar.setOnMenuItemClickListener {
                 when (it.itemId) {
                     R.id.menu_log_share -> {
@@ -251,6 +260,13 @@ class LogsActivity : AppCompatActivity() {
         }
     }
 
+    /** Adds the latency of the daemon callbacks and commands to the logs, so that it's shared with them */
+    private fun showLatency() {
+        val adapter = binding.logRecyclerView.adapter as LogAdapter
+        adapter.addLogs((listOf("Daemon latency:") + mLatencyTracker.dump()).map { LogMessage(it) })
+        binding.logRecyclerView.smoothScrollToPosition(adapter.itemCount - 1)
+    }
+
     private fun startLogging() {
         // Allows to start logging at application startup.
         mHardwareService.mPreferenceService.isLogActive = true
@@ -27,8 +27,10 @@ import dagger.hilt.components.SingletonComponent
 import io.reactivex.rxjava3.core.Scheduler
 import net.jami.services.ConversationFacade
 import net.jami.services.*
+import net.jami.utils.LaneExecutor
+import net.jami.utils.LatencyTracker
 import net.jami.utils.Log
-import java.util.concurrent.Executors
+import java.io.File
 import java.util.concurrent.ScheduledExecutorService
 import javax.inject.Named
 import javax.inject.Singleton
@@ -38,16 +40,23 @@ import javax.inject.Singleton
 object ServiceInjectionModule {
     @Provides
     @Singleton
-    fun provideSettingsService(@ApplicationContext appContext: Context, accountService: AccountService, deviceService: DeviceRuntimeService): PreferencesService {
-        return SharedPreferencesServiceImpl(appContext, accountService, deviceService)
+    fun provideSettingsService(@ApplicationContext appContext: Context, accountService: AccountService, deviceService: DeviceRuntimeService,
+                               conversationPreferences: ConversationPreferencesStore): PreferencesService {
+        return SharedPreferencesServiceImpl(appContext, accountService, deviceService, conversationPreferences)
     }
 
     @Provides
     @Singleton
-    fun provideHistoryService(@ApplicationContext appContext: Context): HistoryService {
-        return HistoryServiceImpl(appContext)
+    fun provideHistoryService(@ApplicationContext appContext: Context, latencyTracker: LatencyTracker,
+                              conversationPreferences: ConversationPreferencesStore): HistoryService {
+        return HistoryServiceImpl(appContext, conversationPreferences, latencyTracker)
     }
 
+    @Provides
+    @Singleton
+    fun provideConversationPreferencesStore(@ApplicationContext appContext: Context): ConversationPreferencesStore =
+        ConversationPreferencesStore(File(appContext.filesDir, "conversations"), LegacyConversationPreferences(appContext))
+
     @Provides
     @Singleton
     fun provideLogService(): LogService {
@@ -82,18 +91,20 @@ object ServiceInjectionModule {
                              @Named("DaemonExecutor") executor: ScheduledExecutorService,
                              callService: CallService,
                              hardwareService: HardwareService,
-                             accountService: AccountService): DaemonService {
-        return DaemonService(deviceRuntimeService, executor, callService, hardwareService, accountService)
+                             accountService: AccountService,
+                             latencyTracker: LatencyTracker): DaemonService {
+        return DaemonService(deviceRuntimeService, executor, callService, hardwareService, accountService, latencyTracker)
     }
 
     @Provides
     @Singleton
     fun provideCallService(@ApplicationContext appContext: Context,
-                           @Named("DaemonExecutor") executor : ScheduledExecutorService,
+                           @Named("CallExecutor") executor : ScheduledExecutorService,
                            contactService: ContactService,
                            accountService: AccountService,
-                           deviceRuntimeService: DeviceRuntimeService): CallService {
-        return CallServiceImpl(appContext, executor, contactService, accountService, deviceRuntimeService)
+                           deviceRuntimeService: DeviceRuntimeService,
+                           latencyTracker: LatencyTracker): CallService {
+        return CallServiceImpl(appContext, executor, contactService, accountService, deviceRuntimeService, latencyTracker)
     }
 
     @Provides
@@ -101,14 +112,28 @@ object ServiceInjectionModule {
     fun provideAccountService(@Named("DaemonExecutor") executor : ScheduledExecutorService,
                               historyService : HistoryService,
                               deviceRuntimeService : DeviceRuntimeService,
-                              vCardService : VCardService): AccountService {
-        return AccountService(executor, historyService, deviceRuntimeService, vCardService)
+                              vCardService : VCardService,
+                              snapshotStore: SmartListSnapshotStore,
+                              @Named("BulkExecutor") bulkExecutor : ScheduledExecutorService,
+                              nameCache: NameDirectoryCache,
+                              latencyTracker: LatencyTracker): AccountService {
+        return AccountService(executor, historyService, deviceRuntimeService, vCardService, snapshotStore, bulkExecutor, nameCache, latencyTracker)
     }
 
+    @Provides
+    @Singleton
+    fun provideNameDirectoryCache(@ApplicationContext appContext: Context, latencyTracker: LatencyTracker): NameDirectoryCache =
+        NameDirectoryCache(File(appContext.cacheDir, "names"), latencyTracker)
+
+    @Provides
+    @Singleton
+    fun provideSmartListSnapshotStore(@ApplicationContext appContext: Context): SmartListSnapshotStore =
+        SmartListSnapshotStore(File(appContext.filesDir, "smartlist"))
+
     @Provides
     @Singleton
     fun provideHardwareService(@ApplicationContext appContext: Context,
-                               @Named("DaemonExecutor") executor : ScheduledExecutorService,
+                               @Named("CallExecutor") executor : ScheduledExecutorService,
                                preferenceService: PreferencesService,
                                @Named("UiScheduler") uiScheduler: Scheduler): HardwareService {
         return HardwareServiceImpl(appContext, executor, preferenceService, uiScheduler)
@@ -132,7 +157,8 @@ object ServiceInjectionModule {
         notificationService: NotificationService,
         hardwareService: HardwareService,
         deviceRuntimeService: DeviceRuntimeService,
-        preferencesService: PreferencesService
+        preferencesService: PreferencesService,
+        historyMemoryManager: HistoryMemoryManager
     ): ConversationFacade {
         return ConversationFacade(
             historyService,
@@ -142,22 +168,50 @@ object ServiceInjectionModule {
             notificationService,
             hardwareService,
             deviceRuntimeService,
-            preferencesService
+            preferencesService,
+            historyMemoryManager
         )
     }
 
+    @Provides
+    @Singleton
+    fun provideHistoryMemoryManager(): HistoryMemoryManager {
+        // Loaded histories may use up to an eighth of the heap
+        return HistoryMemoryManager(Runtime.getRuntime().maxMemory() / 8)
+    }
+
     @Provides
     @Singleton
     fun provideVCardService(@ApplicationContext appContext: Context): VCardService {
         return VCardServiceImpl(appContext)
     }
 
+    @Provides
+    @Singleton
+    fun provideLaneExecutor(latencyTracker: LatencyTracker): LaneExecutor =
+        LaneExecutor(latency = latencyTracker, startupLane = LaneExecutor.Lane.Messaging)
+
+    @Provides
+    @Singleton
+    fun provideLatencyTracker(): LatencyTracker = LatencyTracker()
+
     @Provides
     @Named("DaemonExecutor")
     @Singleton
-    fun provideDaemonExecutorService(): ScheduledExecutorService {
-        return Executors.newSingleThreadScheduledExecutor { r: Runnable? -> Thread(r, "DRing") }
-    }
+    fun provideDaemonExecutorService(lanes: LaneExecutor): ScheduledExecutorService =
+        lanes[LaneExecutor.Lane.Messaging]
+
+    @Provides
+    @Named("CallExecutor")
+    @Singleton
+    fun provideCallExecutorService(lanes: LaneExecutor): ScheduledExecutorService =
+        lanes[LaneExecutor.Lane.Call]
+
+    @Provides
+    @Named("BulkExecutor")
+    @Singleton
+    fun provideBulkExecutorService(lanes: LaneExecutor): ScheduledExecutorService =
+        lanes[LaneExecutor.Lane.Bulk]
 
     @Provides
     @Named("UiScheduler")
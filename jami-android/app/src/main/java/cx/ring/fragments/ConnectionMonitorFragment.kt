@@ -39,6 +39,7 @@ import net.jami.model.ContactViewModel
 import net.jami.services.AccountService
 import net.jami.services.AccountService.ConnectionStatus
 import net.jami.services.ContactService
+import net.jami.utils.Log
 import javax.inject.Inject
 
 @AndroidEntryPoint
@@ -169,7 +170,7 @@ class ConnectionMonitorFragment: Fragment() {
                     }
                     list
                 }.flatten())
-            }))
+            }) { e -> Log.e(TAG, "Can't monitor connections", e) })
     }
 
     override fun onStop() {
@@ -177,4 +178,8 @@ class ConnectionMonitorFragment: Fragment() {
         disposableBag.clear()
     }
 
+    companion object {
+        private val TAG = ConnectionMonitorFragment::class.simpleName!!
+    }
+
 }
\ No newline at end of file
@@ -59,7 +59,6 @@ import cx.ring.service.DRingService
 import cx.ring.service.LocationSharingService
 import cx.ring.services.NotificationServiceImpl
 import cx.ring.services.SharedPreferencesServiceImpl.Companion.getConversationColor
-import cx.ring.services.SharedPreferencesServiceImpl.Companion.getConversationPreferences
 import cx.ring.services.SharedPreferencesServiceImpl.Companion.getConversationSymbol
 import cx.ring.utils.*
 import cx.ring.utils.ContentUri.getShareItems
@@ -75,21 +74,26 @@ import net.jami.conversation.ConversationView
 import net.jami.daemon.JamiService
 import net.jami.model.*
 import net.jami.model.Account.ComposingStatus
+import net.jami.services.ConversationPreferencesStore
 import net.jami.services.NotificationService
 import net.jami.smartlist.ConversationItemViewModel
 import java.io.File
 import java.util.*
+import javax.inject.Inject
 
 @AndroidEntryPoint
 class ConversationFragment : BaseSupportFragment<ConversationPresenter, ConversationView>(),
     ConversationView, SearchView.OnQueryTextListener {
+    @Inject
+    lateinit var conversationPreferences: ConversationPreferencesStore
+
     private var locationServiceConnection: ServiceConnection? = null
     private var binding: FragConversationBinding? = null
     private var currentBottomView: View? = null
     private var mAdapter: ConversationAdapter? = null
     private var mSearchAdapter: ConversationAdapter? = null
     private val animation = ValueAnimator()
-    private var mPreferences: SharedPreferences? = null
+    private var mPath: ConversationPath? = null
     private var mCurrentPhoto: File? = null
     private var mCurrentFileAbsolutePath: String? = null
     private val mCompositeDisposable = CompositeDisposable()
@@ -259,10 +263,9 @@ class ConversationFragment : BaseSupportFragment<ConversationPresenter, Conversa
                         msgSend.visibility = View.GONE
                         emojiSend.visibility = View.VISIBLE
                     }
-                    mPreferences?.let { preferences ->
-                        if (hasMessage)
-                            preferences.edit().putString(KEY_PREFERENCE_PENDING_MESSAGE, message).apply()
-                        else preferences.edit().remove(KEY_PREFERENCE_PENDING_MESSAGE).apply()
+                    mPath?.let { path ->
+                        conversationPreferences.put(path.accountId, path.conversationUri.uri,
+                            KEY_PREFERENCE_PENDING_MESSAGE, if (hasMessage) message else null)
                     }
                 }
             })
@@ -305,8 +308,8 @@ class ConversationFragment : BaseSupportFragment<ConversationPresenter, Conversa
     override fun onViewCreated(view: View, savedInstanceState: Bundle?) {
         super.onViewCreated(view, savedInstanceState)
         binding?.apply {
-            mPreferences?.let { preferences ->
-                val pendingMessage = preferences.getString(KEY_PREFERENCE_PENDING_MESSAGE, null)
+            mPath?.let { path ->
+                val pendingMessage = conversationPreferences.get(path.accountId, path.conversationUri.uri, KEY_PREFERENCE_PENDING_MESSAGE)
                 if (!pendingMessage.isNullOrEmpty()) {
                     msgInputTxt.setText(pendingMessage)
                     msgSend.visibility = View.VISIBLE
@@ -329,6 +332,13 @@ class ConversationFragment : BaseSupportFragment<ConversationPresenter, Conversa
                         loading = true
                         presenter.loadMore()
                     }
+                    if (dy != 0) {
+                        mAdapter?.let { adapter ->
+                            presenter.onViewportChanged(adapter.getItemMessageId(layoutManager.findFirstVisibleItemPosition()))
+                            if (layoutManager.findLastVisibleItemPosition() >= adapter.itemCount - visibleLoadThreshold)
+                                presenter.loadNewer()
+                        }
+                    }
 
                     // Recyclerview is composed of items which are sometimes invisible (to preserve
                     // the model and interaction relationship).
@@ -688,6 +698,12 @@ class ConversationFragment : BaseSupportFragment<ConversationPresenter, Conversa
         loading = false
     }
 
+    override fun addElements(elements: List<Interaction>) {
+        if (mAdapter!!.addAll(elements) && elements.any { it.type != Interaction.InteractionType.INVALID })
+            scrollToEnd()
+        loading = false
+    }
+
     override fun updateElement(element: Interaction) {
         mAdapter?.update(element)
     }
@@ -696,6 +712,10 @@ class ConversationFragment : BaseSupportFragment<ConversationPresenter, Conversa
         mAdapter?.remove(element)
     }
 
+    override fun removeElements(elements: List<Interaction>) {
+        mAdapter?.removeAll(elements)
+    }
+
     override fun setComposingStatus(composingStatus: ComposingStatus) {
         mAdapter?.setComposingStatus(composingStatus)
         if (composingStatus == ComposingStatus.Active) scrollToEnd()
@@ -743,6 +763,8 @@ class ConversationFragment : BaseSupportFragment<ConversationPresenter, Conversa
     override fun onStop() {
         super.onStop()
         presenter.pause()
+        // Save the draft now, the process may be killed in the background
+        conversationPreferences.flushAll()
     }
 
     override fun onDestroy() {
@@ -820,16 +842,9 @@ class ConversationFragment : BaseSupportFragment<ConversationPresenter, Conversa
         mSearchAdapter = ConversationAdapter(this, presenter, isSearch = true)
         presenter.init(path.conversationUri, path.accountId)
 
-        // Load shared preferences. Usually useful for non-swarm conversations.
-        try {
-            mPreferences = getConversationPreferences(
-                    requireContext(), path.accountId, path.conversationUri
-            ).also { sharedPreferences ->
-                sharedPreferences.edit().remove(KEY_PREFERENCE_CONVERSATION_LAST_READ).apply()
-            }
-        } catch (e: Exception) {
-            Log.e(TAG, "Can't load conversation preferences")
-        }
+        // Conversation preferences are usually useful for non-swarm conversations.
+        mPath = path
+        conversationPreferences.put(path.accountId, path.conversationUri.uri, KEY_PREFERENCE_CONVERSATION_LAST_READ, null)
 
         var connection = locationServiceConnection
         if (connection == null) {
@@ -25,8 +25,10 @@ import com.j256.ormlite.dao.Dao
 import com.j256.ormlite.support.ConnectionSource
 import com.j256.ormlite.table.TableUtils
 import net.jami.model.ConversationHistory
+import net.jami.model.ConversationSummary
 import net.jami.model.DataTransfer
 import net.jami.model.Interaction
+import net.jami.model.InteractionIndexes
 import java.sql.SQLException
 import java.util.*
 
@@ -49,6 +51,8 @@ class DatabaseHelper(context: Context?, dbDirectory: String) :
             try {
                 TableUtils.createTable(connectionSource, ConversationHistory::class.java)
                 TableUtils.createTable(connectionSource, Interaction::class.java)
+                for (statement in ConversationSummary.CREATE) db.execSQL(statement)
+                for (statement in InteractionIndexes.CREATE) db.execSQL(statement)
                 db.setTransactionSuccessful()
             } catch (e: SQLException) {
                 Log.e(TAG, "Can't create database", e)
@@ -101,6 +105,8 @@ class DatabaseHelper(context: Context?, dbDirectory: String) :
                     7 -> updateDatabaseFrom7(db)
                     8 -> updateDatabaseFrom8(connectionSource)
                     9 -> updateDatabaseFrom9(db)
+                    10 -> updateDatabaseFrom10(db)
+                    11 -> updateDatabaseFrom11(db)
                 }
                 fromVersion++
             }
@@ -395,6 +401,54 @@ FROM   historydata
         }
     }
 
+    /**
+     * This updates the database to version 11 which adds the conversation summary table,
+     * filled from the existing interactions.
+     *
+     * @param db the database to migrate
+     * @throws SQLiteException
+     */
+    @Throws(SQLiteException::class)
+    private fun updateDatabaseFrom10(db: SQLiteDatabase) {
+        try {
+            db.beginTransaction()
+            try {
+                for (statement in ConversationSummary.CREATE) db.execSQL(statement)
+                db.execSQL(ConversationSummary.BACKFILL)
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+            Log.d(TAG, "updateDatabaseFrom10: Migration from database version 10 to next, done.")
+        } catch (exception: SQLiteException) {
+            Log.e(TAG, "updateDatabaseFrom10: Migration from database version 10 to next, failed.", exception)
+            throw exception
+        }
+    }
+
+    /**
+     * This updates the database to version 12 which adds the composite indexes of the history queries.
+     *
+     * @param db the database to migrate
+     * @throws SQLiteException
+     */
+    @Throws(SQLiteException::class)
+    private fun updateDatabaseFrom11(db: SQLiteDatabase) {
+        try {
+            db.beginTransaction()
+            try {
+                for (statement in InteractionIndexes.CREATE) db.execSQL(statement)
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+            Log.d(TAG, "updateDatabaseFrom11: Migration from database version 11 to next, done.")
+        } catch (exception: SQLiteException) {
+            Log.e(TAG, "updateDatabaseFrom11: Migration from database version 11 to next, failed.", exception)
+            throw exception
+        }
+    }
+
     /**
      * Removes all the data from the database, ie all the tables.
      *
@@ -426,10 +480,12 @@ FROM   historydata
         private val TAG = DatabaseHelper::class.java.simpleName
 
         // any time you make changes to your database objects, you may have to increase the database version
-        private const val DATABASE_VERSION = 10
+        private const val DATABASE_VERSION = 12
     }
 
     init {
+        // Readers don't wait for the writer, and the writer doesn't wait for readers
+        setWriteAheadLoggingEnabled(true)
         Log.d(TAG, "Helper initialized for $dbDirectory")
     }
 }
\ No newline at end of file
@@ -40,14 +40,16 @@ import net.jami.services.CallService
 import net.jami.services.ContactService
 import net.jami.services.DeviceRuntimeService
 import net.jami.services.NotificationService
+import net.jami.utils.LatencyTracker
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ScheduledExecutorService
 
 class CallServiceImpl(val mContext: Context, executor: ScheduledExecutorService,
                       contactService: ContactService,
                       accountService: AccountService,
-                      deviceRuntimeService: DeviceRuntimeService
-): CallService(executor, contactService, accountService, deviceRuntimeService) {
+                      deviceRuntimeService: DeviceRuntimeService,
+                      latencyTracker: LatencyTracker
+): CallService(executor, contactService, accountService, deviceRuntimeService, latencyTracker) {
 
     private val pendingCallRequests = ConcurrentHashMap<String, SingleSubject<SystemCall>>()
     private val incomingCallRequests = ConcurrentHashMap<String, Pair<Call, SingleSubject<SystemCall>>>()
@@ -18,20 +18,27 @@ package cx.ring.services
 
 import android.content.Context
 import com.j256.ormlite.dao.Dao
+import com.j256.ormlite.dao.DaoManager
 import com.j256.ormlite.support.ConnectionSource
 import cx.ring.fragments.ConversationFragment
 import cx.ring.history.DatabaseHelper
 import net.jami.model.ConversationHistory
 import net.jami.model.Interaction
 import net.jami.model.Uri
+import net.jami.services.ConversationPreferencesStore
 import net.jami.services.HistoryService
+import net.jami.utils.LatencyTracker
 import java.io.File
 import java.util.concurrent.ConcurrentHashMap
 
 /**
  * Implements the necessary Android related methods for the [HistoryService]
  */
-class HistoryServiceImpl(private val mContext: Context) : HistoryService() {
+class HistoryServiceImpl(
+    private val mContext: Context,
+    private val conversationPreferences: ConversationPreferencesStore,
+    latency: LatencyTracker? = null
+) : HistoryService(latency) {
     private val databaseHelpers = ConcurrentHashMap<String, DatabaseHelper>()
     override fun getConnectionSource(dbName: String): ConnectionSource {
         return getHelper(dbName).connectionSource
@@ -54,9 +61,7 @@ class HistoryServiceImpl(private val mContext: Context) : HistoryService() {
      */
     private fun initHelper(accountId: String): DatabaseHelper {
         val db = File(File(mContext.filesDir, accountId), Companion.DATABASE_NAME)
-        val helper = DatabaseHelper(mContext, db.absolutePath)
-        databaseHelpers[accountId] = helper
-        return helper
+        return DatabaseHelper(mContext, db.absolutePath)
     }
 
     /**
@@ -66,9 +71,21 @@ class HistoryServiceImpl(private val mContext: Context) : HistoryService() {
      * @return the database helper
      * @see .initHelper
      */
-    override fun getHelper(accountId: String): DatabaseHelper {
-        val helper = databaseHelpers[accountId]
-        return helper ?: initHelper(accountId)
+    override fun getHelper(accountId: String): DatabaseHelper =
+        databaseHelpers.computeIfAbsent(accountId) { initHelper(it) }
+
+    override fun closeDatabase(accountId: String) {
+        databaseHelpers.remove(accountId)?.let { helper ->
+            // ORMLite caches DAOs by connection source, release them with the database
+            val connectionSource = helper.connectionSource
+            unregisterDao(connectionSource, Interaction::class.java)
+            unregisterDao(connectionSource, ConversationHistory::class.java)
+            helper.close()
+        }
+    }
+
+    private fun <T> unregisterDao(connectionSource: ConnectionSource, clazz: Class<T>) {
+        DaoManager.lookupDao<Dao<T, *>, T>(connectionSource, clazz)?.let { DaoManager.unregisterDao(connectionSource, it) }
     }
 
     /**
@@ -80,18 +97,17 @@ class HistoryServiceImpl(private val mContext: Context) : HistoryService() {
     override fun deleteAccountHistory(accountId: String) {
         val accountDir = File(mContext.filesDir, accountId)
         if (accountDir.exists()) deleteFolder(accountDir)
+        conversationPreferences.delete(accountId)
     }
 
+    override fun preload(accountId: String) = conversationPreferences.preload(accountId)
+
     override fun setMessageNotified(accountId: String, conversationUri: Uri, lastId: String) {
-        val preferences = mContext.getSharedPreferences(accountId + "_" + conversationUri.uri, Context.MODE_PRIVATE)
-        preferences.edit()
-            .putString(ConversationFragment.KEY_PREFERENCE_CONVERSATION_LAST_READ, lastId).apply()
+        conversationPreferences.put(accountId, conversationUri.uri, ConversationFragment.KEY_PREFERENCE_CONVERSATION_LAST_READ, lastId)
     }
 
-    override fun getLastMessageNotified(accountId: String, conversationUri: Uri): String? {
-        val preferences = mContext.getSharedPreferences(accountId + "_" + conversationUri.uri, Context.MODE_PRIVATE)
-        return preferences.getString(ConversationFragment.KEY_PREFERENCE_CONVERSATION_LAST_READ, null)
-    }
+    override fun getLastMessageNotified(accountId: String, conversationUri: Uri): String? =
+        conversationPreferences.get(accountId, conversationUri.uri, ConversationFragment.KEY_PREFERENCE_CONVERSATION_LAST_READ)
 
     /**
      * Deletes a file and all its children recursively
@@ -0,0 +1,52 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package cx.ring.services
+
+import android.content.Context
+import net.jami.services.ConversationPreferencesStore
+import java.io.File
+
+/**
+ * Reads the conversation preferences stored before [ConversationPreferencesStore],
+ * in one shared preferences file per conversation named "<accountId>_<conversationUri>".
+ */
+class LegacyConversationPreferences(private val context: Context) : ConversationPreferencesStore.Legacy {
+    private fun names(accountId: String): List<String> {
+        val prefix = accountId + "_"
+        return File(context.applicationInfo.dataDir, "shared_prefs").list()
+            ?.filter { it.startsWith(prefix) && it.endsWith(EXTENSION) }
+            ?.map { it.removeSuffix(EXTENSION) }
+            ?: emptyList()
+    }
+
+    override fun read(accountId: String): Map<String, Map<String, String>> {
+        val prefix = accountId + "_"
+        return names(accountId).associate { name ->
+            name.removePrefix(prefix) to context.getSharedPreferences(name, Context.MODE_PRIVATE)
+                .all.mapValues { (_, v) -> v.toString() }
+        }
+    }
+
+    override fun delete(accountId: String) {
+        for (name in names(accountId))
+            context.deleteSharedPreferences(name)
+    }
+
+    companion object {
+        private const val EXTENSION = ".xml"
+    }
+}
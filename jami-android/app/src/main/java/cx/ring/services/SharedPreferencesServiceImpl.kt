@@ -16,13 +16,13 @@
  */
 package cx.ring.services
 
+import android.app.ActivityManager
 import android.content.Context
 import android.content.SharedPreferences
 import android.os.Build
 import android.text.TextUtils
 import androidx.annotation.ColorInt
 import androidx.appcompat.app.AppCompatDelegate
-import androidx.core.content.edit
 import androidx.preference.PreferenceManager
 import cx.ring.R
 import cx.ring.application.JamiApplication
@@ -35,12 +35,18 @@ import net.jami.model.DonationSettings
 import net.jami.model.Settings
 import net.jami.model.Uri
 import net.jami.services.AccountService
+import net.jami.services.ConversationPreferencesStore
 import net.jami.services.DeviceRuntimeService
 import net.jami.services.PreferencesService
 import java.util.*
 import kotlin.collections.HashMap
 
-class SharedPreferencesServiceImpl(private val context: Context, accountService: AccountService, deviceService: DeviceRuntimeService)
+class SharedPreferencesServiceImpl(
+    private val context: Context,
+    accountService: AccountService,
+    deviceService: DeviceRuntimeService,
+    private val conversationPreferences: ConversationPreferencesStore
+)
     : PreferencesService(accountService, deviceService) {
     private val mNotifiedRequests: MutableMap<String, MutableSet<String>> = HashMap()
     private val mDonationSettingsSubject: Subject<DonationSettings> by lazy {
@@ -65,6 +71,7 @@ class SharedPreferencesServiceImpl(private val context: Context, accountService:
             .putBoolean(PREF_BLOCK_RECORD, settings.isRecordingBlocked)
             .putBoolean(PREF_LINK_PREVIEWS, settings.enableLinkPreviews)
             .putInt(PREF_NOTIFICATION_VISIBILITY, settings.notificationVisibility)
+            .putInt(PREF_HISTORY_WINDOW, settings.historyWindow)
             .apply()
     }
 
@@ -81,6 +88,9 @@ class SharedPreferencesServiceImpl(private val context: Context, accountService:
             isRecordingBlocked = appPrefs.getBoolean(PREF_BLOCK_RECORD, false),
             enableLinkPreviews = appPrefs.getBoolean(PREF_LINK_PREVIEWS, true),
             notificationVisibility = appPrefs.getInt(PREF_NOTIFICATION_VISIBILITY, 0),
+            historyWindow = appPrefs.getInt(PREF_HISTORY_WINDOW,
+                if ((context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager).isLowRamDevice)
+                    LOW_RAM_HISTORY_WINDOW else 0),
         )
     }
 
@@ -124,25 +134,23 @@ class SharedPreferencesServiceImpl(private val context: Context, accountService:
     }
 
     /**
-     * Load conversation preferences from the shared preferences.
+     * Load conversation preferences from the conversation preferences store.
      */
     override fun getConversationPreferences(
         accountId: String,
         conversationUri: Uri,
     ): Map<String, String> =
-        getConversationPreferences(context, accountId, conversationUri)
-            .all.mapValuesTo(HashMap()) { (_, v) -> v.toString() }
+        conversationPreferences.get(accountId, conversationUri.uri)
 
     /**
-     * Save conversation preferences to the shared preferences.
+     * Save conversation preferences to the conversation preferences store.
      */
     override fun setConversationPreferences(
         accountId: String,
         conversationUri: Uri,
         preferences: Map<String, String>,
     ) =
-        getConversationPreferences(context, accountId, conversationUri)
-            .edit { preferences.forEach { (k, v) -> putString(k, v) } }
+        conversationPreferences.edit(accountId, conversationUri.uri, preferences)
 
 
     override fun hasNetworkConnected(): Boolean = NetworkUtils.isConnectivityAllowed(context)
@@ -207,6 +215,8 @@ class SharedPreferencesServiceImpl(private val context: Context, accountService:
         private const val PREF_BLOCK_RECORD = "persistent_block_record"
         private const val PREF_LINK_PREVIEWS = "link_previews_enable"
         private const val PREF_NOTIFICATION_VISIBILITY = "persistent_notification"
+        private const val PREF_HISTORY_WINDOW = "history_window"
+        private const val LOW_RAM_HISTORY_WINDOW = 500
         private const val PREF_DONATION_REMINDER_VISIBILITY = "reminder_visibility"
         private const val PREF_DONATION_REMINDER_LAST_DISMISSED = "reminder_last_dismissed"
         private const val PREF_HW_ENCODING = "video_hwenc"
@@ -220,9 +230,6 @@ class SharedPreferencesServiceImpl(private val context: Context, accountService:
         const val PREF_EXTENSIONS = "extensions"
         private const val PREF_LOG_IS_ACTIVE = "log_is_active"
 
-        fun getConversationPreferences(context: Context, accountId: String, conversationUri: Uri): SharedPreferences =
-            context.getSharedPreferences(accountId + "_" + conversationUri.uri, Context.MODE_PRIVATE)
-
         /** Compute conversation color from preference value, fallback on default */
         fun getConversationColor(context: Context, @ColorInt color: Int) =
             if (color != 0) color else context.getColor(R.color.conversation_primary_background)
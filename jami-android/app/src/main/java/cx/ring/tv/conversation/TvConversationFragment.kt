@@ -336,6 +336,12 @@ class TvConversationFragment : BaseSupportFragment<ConversationPresenter, Conver
         scrollToTop()
     }
 
+    override fun addElements(elements: List<Interaction>) {
+        for (element in elements)
+            mAdapter!!.add(element)
+        scrollToTop()
+    }
+
     override fun shareFile(path: File, displayName: String) {
         val c = context ?: return
         try {
@@ -572,6 +578,11 @@ class TvConversationFragment : BaseSupportFragment<ConversationPresenter, Conver
         mAdapter?.remove(element)
     }
 
+    override fun removeElements(elements: List<Interaction>) {
+        for (element in elements)
+            mAdapter?.remove(element)
+    }
+
     fun getConversationAvatar(uri: String): AvatarDrawable? {
         return mParticipantAvatars[uri]
     }
@@ -76,6 +76,7 @@ class SmartListViewHolder : RecyclerView.ViewHolder {
                 binding.photo.setAvatar(null)
             }
 
+            conversationFacade.prefetchConversation(conversation)
             itemView.setOnClickListener { clickListener.onItemClick(conversation) }
             itemView.setOnLongClickListener {
                 clickListener.onItemLongClick(conversation)
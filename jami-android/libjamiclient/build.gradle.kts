@@ -26,6 +26,9 @@ dependencies {
 
     // Required -- JUnit 4 framework
     testImplementation ("junit:junit:4.13.2")
+    // SQLite through JDBC, for database tests
+    testImplementation ("com.j256.ormlite:ormlite-jdbc:5.7")
+    testImplementation ("org.xerial:sqlite-jdbc:3.46.1.0")
     // RxJava
     implementation ("io.reactivex.rxjava3:rxjava:3.1.9")
     // gson
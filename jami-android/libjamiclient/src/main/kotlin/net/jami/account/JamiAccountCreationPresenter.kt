@@ -43,7 +43,7 @@ class JamiAccountCreationPresenter @Inject constructor(
         super.bindView(view)
         mCompositeDisposable.add(contactQuery
             .debounce(TYPING_DELAY, TimeUnit.MILLISECONDS)
-            .switchMapSingle { q: String -> accountService.findRegistrationByName("", "", q) }
+            .switchMapSingle { q: String -> accountService.checkNameAvailability("", q) }
             .observeOn(uiScheduler)
             .subscribe { q: RegisteredName -> onLookupResult(q.name, q.address, q.state) })
     }
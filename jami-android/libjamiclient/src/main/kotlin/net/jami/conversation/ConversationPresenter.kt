@@ -19,6 +19,7 @@ package net.jami.conversation
 import io.reactivex.rxjava3.core.Observable
 import io.reactivex.rxjava3.core.Scheduler
 import io.reactivex.rxjava3.disposables.CompositeDisposable
+import io.reactivex.rxjava3.disposables.Disposable
 import io.reactivex.rxjava3.schedulers.Schedulers
 import io.reactivex.rxjava3.subjects.BehaviorSubject
 import io.reactivex.rxjava3.subjects.PublishSubject
@@ -50,6 +51,7 @@ class ConversationPresenter @Inject constructor(
     private var mConversation: Conversation? = null
     private var mConversationUri: Uri? = null
     private var mConversationDisposable: CompositeDisposable? = null
+    private var mLoadingNewer: Disposable? = null
     private val mVisibilityDisposable = CompositeDisposable().apply {
         mCompositeDisposable.add(this)
     }
@@ -88,6 +90,11 @@ class ConversationPresenter @Inject constructor(
 
     override fun unbindView() {
         super.unbindView()
+        mConversation?.let { conversation ->
+            // Keep only the most recent messages in memory once the conversation is closed
+            if (conversation.historyWindow > 0) conversation.setViewportAnchor(null)
+            conversationFacade.unpinHistory(conversation)
+        }
         mConversation = null
         mConversationUri = null
         mConversationDisposable?.let { conversationDisposable ->
@@ -99,6 +106,8 @@ class ConversationPresenter @Inject constructor(
     private fun setConversation(account: Account, conversation: Conversation) {
         Log.w(TAG, "setConversation ${conversation.aggregateHistory.size}")
         if (mConversation == conversation) return
+        mConversation?.let { conversationFacade.unpinHistory(it) }
+        conversationFacade.pinHistory(conversation)
         mConversation = conversation
         mConversationSubject.onNext(conversation)
         view?.let { initView(account, conversation, it) }
@@ -204,6 +213,17 @@ class ConversationPresenter @Inject constructor(
                         ElementStatus.REMOVE -> v.removeElement(elementTuple.first)
                     }
                 }, { e: Throwable -> Log.e(TAG, "Can't update element", e) }))
+
+            disposable.add(c.insertedRanges
+                .observeOn(uiScheduler)
+                .subscribe({ elements -> this.view?.addElements(elements) })
+                { e: Throwable -> Log.e(TAG, "Can't add elements", e) })
+
+            disposable.add(c.evictedRanges
+                .observeOn(uiScheduler)
+                .subscribe({ elements -> this.view?.removeElements(elements) })
+                { e: Throwable -> Log.e(TAG, "Can't remove elements", e) })
+            c.historyWindow = preferencesService.settings.historyWindow
         }
 
         if (showTypingIndicator()) {
@@ -249,7 +269,25 @@ class ConversationPresenter @Inject constructor(
     }
 
     fun loadMore() {
-        mConversationDisposable?.add(accountService.loadMore(mConversation!!).subscribe({}) {})
+        mConversationDisposable?.add(conversationFacade.loadMore(mConversation!!).subscribe({}) {})
+    }
+
+    /** Loads again the most recent messages if they were evicted from the history window */
+    fun loadNewer() {
+        val conversation = mConversation ?: return
+        if (mLoadingNewer?.isDisposed == false) return
+        val root = conversation.getNewerHistoryRoot() ?: return
+        mLoadingNewer = accountService.loadUntil(conversation, until = root)
+            .subscribe({}) { e -> Log.e(TAG, "Can't load newer messages", e) }
+            .apply { mConversationDisposable?.add(this) }
+    }
+
+    /** Keeps the history window around the displayed message */
+    fun onViewportChanged(messageId: String?) {
+        mConversation?.let { conversation ->
+            if (conversation.historyWindow > 0)
+                conversation.setViewportAnchor(messageId)
+        }
     }
 
     fun scrollToMessage(messageId: String) {
@@ -48,6 +48,8 @@ interface ConversationView {
     fun shareFile(path: File, displayName: String)
     fun openFile(path: File, displayName: String)
     fun addElement(element: Interaction)
+    fun addElements(elements: List<Interaction>)
+    fun removeElements(elements: List<Interaction>)
     fun updateElement(element: Interaction)
     fun removeElement(element: Interaction)
     fun setComposingStatus(composingStatus: ComposingStatus)
@@ -18,6 +18,7 @@ package net.jami.model
 
 import io.reactivex.rxjava3.core.*
 import io.reactivex.rxjava3.core.Observable
+import io.reactivex.rxjava3.schedulers.Schedulers
 import io.reactivex.rxjava3.subjects.BehaviorSubject
 import io.reactivex.rxjava3.subjects.CompletableSubject
 import io.reactivex.rxjava3.subjects.PublishSubject
@@ -25,8 +26,9 @@ import io.reactivex.rxjava3.subjects.Subject
 import net.jami.model.Interaction.TransferStatus
 import net.jami.services.AccountService
 import net.jami.utils.Log
-import java.util.Collections
 import java.util.Date
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 import kotlin.collections.ArrayList
 
 class Account(
@@ -53,8 +55,8 @@ class Account(
     private val conversations: MutableMap<String, Conversation> = HashMap()
     private val pending: MutableMap<String, Conversation> = HashMap()
     private val cache: MutableMap<String, Conversation> = HashMap()
-    private val sortedConversations: MutableList<Conversation> = ArrayList()
-    private val sortedPending: MutableList<Conversation> = ArrayList()
+    private val sortedConversations = SortedConversationList()
+    private val sortedPending = SortedConversationList()
     var registeringUsername = false
     val loadedSubject = CompletableSubject.create()
     val loaded: Completable
@@ -64,14 +66,36 @@ class Account(
     private var historyLoaded = false
     private val conversationSubject: Subject<Conversation> = PublishSubject.create()
     private val pendingSubject: Subject<List<Conversation>> = BehaviorSubject.create()
-    private val conversationsSubject: Subject<List<Conversation>> = BehaviorSubject.create()
+    private val conversationsSubject: Subject<SortedConversationList.Update> = BehaviorSubject.create()
+    private var lastConversations: List<Conversation>? = null
+
+    /**
+     * Window during which conversation and pending list changes are merged in a single emission,
+     * in milliseconds. Changes are emitted immediately if 0.
+     */
+    var listUpdateWindow = LIST_UPDATE_WINDOW
+    var listUpdateScheduler: Scheduler = Schedulers.computation()
+    // Changes of the conversation list not emitted yet, null if the list was rebuilt
+    private var queuedChanges: MutableList<SortedConversationList.Change>? = ArrayList()
+    private val dirtyConversations: MutableSet<Conversation> = HashSet()
+    private var conversationsFlushScheduled = false
+    private var pendingFlushScheduled = false
     private val contactListSubject = BehaviorSubject.create<Collection<Contact>>()
     private val contactLocations: MutableMap<Contact, Observable<ContactLocation>> = HashMap()
     private val mLocationSubject: Subject<Map<Contact, Observable<ContactLocation>>> = BehaviorSubject.createDefault(contactLocations)
     private val mLocationStartedSubject: Subject<ContactLocationEntry> = PublishSubject.create()
     private val registrationStateSubject = BehaviorSubject.createDefault(AccountConfig.RegistrationState.valueOf(mVolatileDetails[ConfigKey.ACCOUNT_REGISTRATION_STATUS]))
-    private val unreadConversationsSubject: Subject<Int> = BehaviorSubject.create()
+    private val unreadConversationsSubject: Subject<Int> = BehaviorSubject.create<Int>().toSerialized()
     val unreadConversations: Observable<Int> = unreadConversationsSubject.distinctUntilChanged()
+    // Conversations of the list whose last event is unread, updated on read state transitions
+    private val unreadConversationSet: MutableSet<Conversation> = ConcurrentHashMap.newKeySet()
+    // Conversations of the list observed for read state transitions, guarded by the conversations lock
+    private val unreadTracked: MutableSet<Conversation> = HashSet()
+    private val unreadObserver: (Conversation) -> Unit = { updateUnread(it, it.isUnread) }
+
+    /** Number of conversations whose last event is unread */
+    val unreadConversationCount: Int
+        get() = unreadConversationSet.size
 
     var historyLoader: Single<Account>? = null
     var loadedProfile: Single<Profile>? = null
@@ -102,32 +126,45 @@ class Account(
     fun conversationStarted(conversation: Conversation, newMode: Conversation.Mode? = null) {
         //Log.w(TAG, "conversationStarted ${conversation.accountId} ${conversation.uri} ${conversation.isSwarm} ${conversation.contacts.size} ${conversation.mode.blockingFirst()}")
         synchronized(conversations) {
-            if (conversation.isSwarm) {
-                removeRequest(conversation.uri)
-                swarmConversations[conversation.uri.rawRingId] = conversation
-            }
-            conversations[conversation.uri.uri] = conversation
+            startConversation(conversation, newMode)
+            conversationChanged()
+        }
+    }
 
-            if (newMode != null) conversation.setMode(newMode)
+    /** Adds several conversations with a single update of the conversation list */
+    fun conversationsStarted(conversations: List<Conversation>) {
+        synchronized(this.conversations) {
+            for (conversation in conversations)
+                startConversation(conversation, null)
+            conversationChanged()
+        }
+    }
 
-            val mode = newMode ?: conversation.mode.blockingFirst()
-            if (conversation.isSwarm && mode === Conversation.Mode.OneToOne) {
-                try {
-                    val contact = conversation.contact!!
-                    val key = contact.uri.uri
-                    val removed = cache.remove(key)
-                    conversations.remove(key)
-                    //Conversation contactConversation = getByUri(contact.getPrimaryUri());
-                    // Log.w(TAG, "conversationStarted " + conversation.accountId + " contact " + key + " " + removed)
-                    /*if (contactConversation != null) {
-                        conversations.remove(contactConversation.getUri().getUri());
-                    }*/
-                    contact.setConversationUri(conversation.uri)
-                } catch (e: IllegalStateException) {
-                    Log.e(TAG, "conversationStarted ${conversation.accountId} ${conversation.uri} ${conversation.contacts} ${conversation.mode.blockingFirst()}", e)
-                }
+    private fun startConversation(conversation: Conversation, newMode: Conversation.Mode?) {
+        if (conversation.isSwarm) {
+            removeRequest(conversation.uri)
+            swarmConversations[conversation.uri.rawRingId] = conversation
+        }
+        conversations[conversation.uri.uri] = conversation
+
+        if (newMode != null) conversation.setMode(newMode)
+
+        val mode = newMode ?: conversation.mode.blockingFirst()
+        if (conversation.isSwarm && mode === Conversation.Mode.OneToOne) {
+            try {
+                val contact = conversation.contact!!
+                val key = contact.uri.uri
+                val removed = cache.remove(key)
+                conversations.remove(key)
+                //Conversation contactConversation = getByUri(contact.getPrimaryUri());
+                // Log.w(TAG, "conversationStarted " + conversation.accountId + " contact " + key + " " + removed)
+                /*if (contactConversation != null) {
+                    conversations.remove(contactConversation.getUri().getUri());
+                }*/
+                contact.setConversationUri(conversation.uri)
+            } catch (e: IllegalStateException) {
+                Log.e(TAG, "conversationStarted ${conversation.accountId} ${conversation.uri} ${conversation.contacts} ${conversation.mode.blockingFirst()}", e)
             }
-            conversationChanged()
         }
     }
 
@@ -191,11 +228,20 @@ class Account(
     }
 
     fun getConversationsSubject(withBlocked: Boolean = false): Observable<List<Conversation>> =
+        getConversationUpdates(withBlocked).map { it.conversations }
+
+    /**
+     * Sorted conversation list, with the positional changes from the previous list when known.
+     */
+    fun getConversationUpdates(withBlocked: Boolean = false): Observable<SortedConversationList.Update> =
         if (withBlocked) conversationsSubject
-        else conversationsSubject.map { list ->
+        else conversationsSubject.map { update ->
             // In case where blocked contact is in a swarm:group, we want to keep the conversation,
             // except if it is a swarm:group with only him and the user.
-            list.filter { it.isGroup() || it.contact?.isBlocked == false }
+            val list = update.conversations.filter { it.isGroup() || it.contact?.isBlocked == false }
+            // Changes are only valid for the full list
+            if (list.size == update.conversations.size) update
+            else SortedConversationList.Update(list, null, emptyList(), update.dirty)
         }
 
     /**
@@ -218,7 +264,8 @@ class Account(
 
     private fun pendingRefreshed() {
         if (historyLoaded) {
-            pendingSubject.onNext(getSortedPending())
+            updateSortedPending()
+            publishPending()
         }
     }
 
@@ -230,18 +277,17 @@ class Account(
     private fun pendingUpdated(conversation: Conversation?) {
         if (!historyLoaded) return
         if (pendingsChanged) {
-            getSortedPending()
-        } else {
-            conversation?.sortHistory()
-            sortedPending.sortWith(ConversationComparator())
+            updateSortedPending()
+        } else if (conversation != null) {
+            conversation.sortHistory()
+            sortedPending.update(conversation)
         }
-        pendingSubject.onNext(getSortedPending())
+        publishPending()
     }
 
     private fun conversationRefreshed(conversation: Conversation) {
         if (historyLoaded) {
             conversationSubject.onNext(conversation)
-            updateUnreadConversations()
         }
     }
 
@@ -249,8 +295,7 @@ class Account(
         synchronized(conversations) {
             conversationsChanged = true
             if (historyLoaded) {
-                conversationsSubject.onNext(ArrayList(getSortedConversations()))
-                updateUnreadConversations()
+                publishConversations(updateSortedConversations())
             }
         }
     }
@@ -258,16 +303,15 @@ class Account(
     fun conversationUpdated(conversation: Conversation) {
         synchronized(conversations) {
             if (!historyLoaded) return
-            if (conversationsChanged) {
-                getSortedConversations()
+            val changes = if (conversationsChanged) {
+                updateSortedConversations()
             } else {
                 conversation.sortHistory()
-                sortedConversations.sortWith(ConversationComparator())
+                listOfNotNull(sortedConversations.update(conversation))
             }
             // TODO: remove next line when profile is updated through dedicated signal
             conversationSubject.onNext(conversation)
-            conversationsSubject.onNext(ArrayList(sortedConversations))
-            updateUnreadConversations()
+            publishConversations(changes, conversation)
         }
     }
 
@@ -732,28 +776,71 @@ class Account(
         }
     }
 
-    private fun getSortedConversations(): List<Conversation> {
-        if (conversationsChanged) {
-            sortedConversations.clear()
-            if (conversations.isNotEmpty()) {
-                sortedConversations.addAll(conversations.values)
-                for (c in sortedConversations) c.sortHistory()
-                Collections.sort(sortedConversations, ConversationComparator())
-            }
-            conversationsChanged = false
+    /**
+     * Updates the sorted list after conversations were added or removed.
+     * @return the positional changes, or null if the list was rebuilt
+     */
+    private fun updateSortedConversations(): List<SortedConversationList.Change>? {
+        if (!conversationsChanged) return emptyList()
+        conversationsChanged = false
+        for (c in conversations.values) c.sortHistory()
+        val changes = if (sortedConversations.isEmpty()) {
+            sortedConversations.reset(conversations.values)
+            null
+        } else sortedConversations.reconcile(conversations.values)
+        trackUnreadConversations()
+        return changes
+    }
+
+    /**
+     * Queues changes of the conversation list, to be emitted at the end of the update window.
+     * Must be called with the conversations lock held.
+     */
+    private fun publishConversations(changes: List<SortedConversationList.Change>?, dirty: Conversation? = null) {
+        if (changes == null) queuedChanges = null
+        else queuedChanges?.addAll(changes)
+        if (dirty != null) dirtyConversations.add(dirty)
+        if (listUpdateWindow <= 0) {
+            flushConversations()
+        } else if (!conversationsFlushScheduled) {
+            conversationsFlushScheduled = true
+            listUpdateScheduler.scheduleDirect({
+                synchronized(conversations) { flushConversations() }
+            }, listUpdateWindow, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun flushConversations() {
+        conversationsFlushScheduled = false
+        val list = sortedConversations.snapshot()
+        val changes = queuedChanges
+        conversationsSubject.onNext(SortedConversationList.Update(list,
+            if (changes == null) null else lastConversations, changes ?: emptyList(), HashSet(dirtyConversations)))
+        lastConversations = list
+        queuedChanges = ArrayList()
+        dirtyConversations.clear()
+    }
+
+    private fun publishPending() {
+        if (listUpdateWindow <= 0) {
+            pendingSubject.onNext(sortedPending.snapshot())
+        } else if (!pendingFlushScheduled) {
+            pendingFlushScheduled = true
+            listUpdateScheduler.scheduleDirect({
+                synchronized(pending) {
+                    pendingFlushScheduled = false
+                    pendingSubject.onNext(sortedPending.snapshot())
+                }
+            }, listUpdateWindow, TimeUnit.MILLISECONDS)
         }
-        return sortedConversations
     }
 
-    private fun getSortedPending(): List<Conversation> {
+    private fun updateSortedPending() {
         if (pendingsChanged) {
-            sortedPending.clear()
-            sortedPending.addAll(pending.values)
-            for (c in sortedPending) c.sortHistory()
-            Collections.sort(sortedPending, ConversationComparator())
+            for (c in pending.values) c.sortHistory()
+            sortedPending.reconcile(pending.values)
             pendingsChanged = false
         }
-        return sortedPending
     }
 
     private fun contactAdded(contact: Contact) {
@@ -920,18 +1007,33 @@ class Account(
     fun setActiveCalls(conversationId: String, activeCalls: List<Conversation.ActiveCall>) =
         getSwarm(conversationId)?.setActiveCalls(activeCalls)
 
-    private fun updateUnreadConversations() {
-        var unread = 0
-        for (model in sortedConversations) {
-            val last = model.lastEvent
-            if (last != null && !last.isRead) unread++
+    /**
+     * Observes the read state of the conversations of the list, after the list membership changed.
+     * Must be called with the conversations lock held.
+     */
+    private fun trackUnreadConversations() {
+        val it = unreadTracked.iterator()
+        while (it.hasNext()) {
+            val conversation = it.next()
+            if (conversation !in sortedConversations) {
+                conversation.unreadObserver = null
+                it.remove()
+                unreadConversationSet.remove(conversation)
+            }
+        }
+        for (conversation in sortedConversations) {
+            if (unreadTracked.add(conversation)) {
+                conversation.unreadObserver = unreadObserver
+                if (conversation.isUnread) unreadConversationSet.add(conversation)
+            }
         }
-        unreadConversationsSubject.onNext(unread)
+        unreadConversationsSubject.onNext(unreadConversationSet.size)
     }
 
-    private class ConversationComparator : Comparator<Conversation> {
-        override fun compare(a: Conversation, b: Conversation): Int =
-            Interaction.compare(b.lastEvent, a.lastEvent)
+    private fun updateUnread(conversation: Conversation, unread: Boolean) {
+        val changed = if (unread && conversation.unreadObserver != null) unreadConversationSet.add(conversation)
+            else unreadConversationSet.remove(conversation)
+        if (changed) unreadConversationsSubject.onNext(unreadConversationSet.size)
     }
 
     companion object {
@@ -942,5 +1044,7 @@ class Account(
         private const val CONTACT_ID = "id"
         private const val CONTACT_CONVERSATION = "conversationId"
         private const val LOCATION_SHARING_EXPIRATION_MS = 1000 * 60 * 2
+        // About one frame
+        private const val LIST_UPDATE_WINDOW = 16L
     }
 }
\ No newline at end of file
@@ -25,7 +25,7 @@ import java.util.*
 import kotlin.math.min
 
 class Conference(val accountId: String, val id: String) {
-    class ParticipantInfo(val call: Call?, val contact: ContactViewModel, i: Map<String, String>, val pending: Boolean = false) {
+    class ParticipantInfo(val call: Call?, val contact: ContactViewModel, private val i: Map<String, String>, val pending: Boolean = false) {
         val x: Int = i["x"]?.toInt() ?: 0
         val y: Int = i["y"]?.toInt() ?: 0
         val w: Int = i["w"]?.toInt() ?: 0
@@ -47,9 +47,13 @@ class Conference(val accountId: String, val id: String) {
             get() = sinkId ?: contact.contact.uri.uri
 
         override fun hashCode(): Int = Objects.hash(contact.contact.uri, device, call?.daemonIdString, pending)
+
+        /** @return true if [other] shows the same participant in the same state */
+        fun isSameAs(other: ParticipantInfo): Boolean =
+            call == other.call && contact == other.contact && pending == other.pending && i == other.i
     }
 
-    private val mParticipantInfo: Subject<List<ParticipantInfo>> = BehaviorSubject.createDefault(emptyList())
+    private val mParticipantInfo: BehaviorSubject<List<ParticipantInfo>> = BehaviorSubject.createDefault(emptyList())
     private val mPendingCalls: MutableList<ParticipantInfo> = ArrayList()
     private val mPendingSubject: Subject<List<ParticipantInfo>> = BehaviorSubject.createDefault(mPendingCalls)
 
@@ -218,10 +222,17 @@ class Conference(val accountId: String, val id: String) {
             return t
         }
 
+    /** Sets the participant list, unless it has exactly the same entries as the current one */
     fun setInfo(info: List<ParticipantInfo>) {
+        val current = mParticipantInfo.value!!
+        if (current.size == info.size && current.indices.all { current[it] === info[it] })
+            return
         mParticipantInfo.onNext(info)
     }
 
+    val currentInfo: List<ParticipantInfo>
+        get() = mParticipantInfo.value!!
+
     val participantInfo: Observable<List<ParticipantInfo>>
         get() = mParticipantInfo
 
@@ -23,6 +23,7 @@ import io.reactivex.rxjava3.subjects.BehaviorSubject
 import io.reactivex.rxjava3.subjects.PublishSubject
 import io.reactivex.rxjava3.subjects.SingleSubject
 import io.reactivex.rxjava3.subjects.Subject
+import net.jami.utils.IndexedTreeList
 import net.jami.utils.Log
 import net.jami.utils.StringUtils
 import java.util.*
@@ -35,10 +36,38 @@ class Conversation : ConversationHistory {
     val roles: MutableMap<String, MemberRole> = HashMap()
     private val rawHistory: NavigableMap<Long, Interaction> = TreeMap()
     private val currentCalls = ArrayList<Conference>()
-    val aggregateHistory = ArrayList<Interaction>(32)
+    val aggregateHistory = IndexedTreeList<Interaction>()
+
+    // Swarm DAG index: position of each linearized message and linearized child of each message
+    private val mNodes: MutableMap<String, IndexedTreeList.Node<Interaction>> = HashMap(16)
+    private val mChildren: MutableMap<String, Interaction> = HashMap(16)
+    // Swarm messages waiting for their linearized parent or child to be loaded
+    private val mDetached: MutableMap<String, Interaction> = HashMap()
+
+    // Maximum number of linearized swarm messages kept in memory, 0 for no limit
+    var historyWindow = 0
+        @Synchronized set(value) {
+            field = value
+            trimHistory()
+        }
+    // Message around which the history window is kept
+    private var mViewportAnchor: String? = null
+    // True if messages older or newer than the loaded history were evicted and must be loaded again
+    private var mOlderEvicted = false
+    private var mNewerEvicted = false
+    // Most recent linearized message when the history was unloaded
+    private var mUnloadedHead: String? = null
+    private var mEvictedCount = 0L
+    private var mPeakResidentCount = 0
+    // Last read text message of the loaded history: the text messages after it are unread
+    private var mReadBoundary: Interaction? = null
+    private var mUnreadCount = 0
+    private val unreadCountSubject: Subject<Int> = BehaviorSubject.createDefault(0)
 
     val lastDisplayedMessages: MutableMap<String, String> = HashMap()
     private val updatedElementSubject: Subject<Pair<Interaction, ElementStatus>> = PublishSubject.create()
+    private val insertedRangeSubject: Subject<List<Interaction>> = PublishSubject.create()
+    private val evictedRangeSubject: Subject<List<Interaction>> = PublishSubject.create()
     private val clearedSubject: Subject<List<Interaction>> = PublishSubject.create()
     private val callsSubject: Subject<List<Conference>> = BehaviorSubject.createDefault(emptyList())
     private val activeCallsSubject: Subject<List<ActiveCall>> = BehaviorSubject.createDefault(emptyList())
@@ -105,9 +134,48 @@ class Conversation : ConversationHistory {
     val updatedElements: Observable<Pair<Interaction, ElementStatus>>
         get() = updatedElementSubject
 
+    /** Contiguous runs of interactions inserted at once in the history, in history order */
+    val insertedRanges: Observable<List<Interaction>>
+        get() = insertedRangeSubject
+
+    /** Contiguous runs of interactions evicted at once from the history window, in history order */
+    val evictedRanges: Observable<List<Interaction>>
+        get() = evictedRangeSubject
+
     val cleared: Observable<List<Interaction>>
         get() = clearedSubject
 
+    /** Number of interactions of the loaded history held in memory */
+    val loadedHistorySize: Int
+        @Synchronized get() = if (isSwarm) mMessages.size else aggregateHistory.size
+
+    /** Number of swarm messages currently held in memory */
+    val residentCount: Int
+        @Synchronized get() = mMessages.size
+
+    /** Highest number of swarm messages held in memory at once after applying the history window */
+    val peakResidentCount: Int
+        @Synchronized get() = mPeakResidentCount
+
+    /** Number of swarm messages evicted from the history window since the conversation was created */
+    val evictedCount: Long
+        @Synchronized get() = mEvictedCount
+
+    /** Number of unread text messages at the end of the loaded history */
+    val unreadMessageCount: Int
+        @Synchronized get() = mUnreadCount
+
+    val unreadMessageCountUpdates: Observable<Int>
+        get() = unreadCountSubject
+
+    /** True if the last event of the conversation was not read */
+    val isUnread: Boolean
+        get() = lastEvent?.isRead == false
+
+    // Notified when the last event changes or is read, so that the unread state can be tracked
+    @Volatile
+    var unreadObserver: ((Conversation) -> Unit)? = null
+
     val calls: Observable<List<Conference>>
         get() = callsSubject
 
@@ -126,6 +194,7 @@ class Conversation : ConversationHistory {
             field = e
             if (e != null)
                 lastEventSubject.onNext(e)
+            unreadObserver?.invoke(this)
         }
     private val lastEventSubject: Subject<Interaction> = BehaviorSubject.create()
     val currentStateObservable: Observable<Pair<Interaction, Boolean>> =
@@ -170,12 +239,14 @@ class Conversation : ConversationHistory {
     /*val displayName: String?
         get() = contacts[0].displayName*/
 
+    @Synchronized
     fun addContact(contact: Contact, memberRole: MemberRole? = null) {
         memberRole?.let { roles[contact.uri.uri] = it }
         contacts.add(contact)
         mContactSubject.onNext(contacts)
     }
 
+    @Synchronized
     fun removeContact(contact: Contact) {
         roles.remove(contact.uri.uri)
         contacts.remove(contact)
@@ -236,6 +307,33 @@ class Conversation : ConversationHistory {
         profileSubject.onNext(profile)
     }
 
+    /** State of the conversation loaded from the daemon */
+    enum class Hydration {
+        /** What the conversation list needs: mode, profile and members */
+        Summary,
+        /** Everything else too: member roles and read positions, active calls, preferences and last messages */
+        Full
+    }
+
+    @Volatile
+    var hydration = Hydration.Full
+
+    /** Swarm infos (title, description, avatar...) the profile was loaded from */
+    var infos: Map<String, String> = emptyMap()
+
+    /** Conversation preferences (color, symbol, notifications...) */
+    var preferences: Map<String, String> = emptyMap()
+        private set
+
+    /**
+     * Shows [preview] as the last event until the history is loaded.
+     * The preview is not part of the history.
+     */
+    @Synchronized
+    fun setLastEventPreview(preview: Interaction) {
+        if (aggregateHistory.isEmpty()) lastEvent = preview
+    }
+
     fun setMode(mode: Mode) {
         mMode.onNext(mode)
     }
@@ -313,11 +411,13 @@ class Conversation : ConversationHistory {
 
     fun findContact(uri: Uri): Contact? = contacts.firstOrNull { it.uri == uri }
 
+    @Synchronized
     fun addTextMessage(txt: TextMessage) {
         if (mVisible)
             txt.read()
         setInteractionProperties(txt)
         rawHistory[txt.timestamp] = txt
+        onTextMessageAdded(txt)
         mDirty = true
         aggregateHistory.add(txt)
         updatedElementSubject.onNext(Pair(txt, ElementStatus.ADD))
@@ -353,6 +453,10 @@ class Conversation : ConversationHistory {
     private fun isAfter(previous: Interaction, query: Interaction?): Boolean {
         var query = query
         return if (isSwarm) {
+            val previousNode = previous.messageId?.let { mNodes[it] }
+            val queryNode = query?.messageId?.let { mNodes[it] }
+            if (previousNode != null && queryNode != null)
+                return aggregateHistory.positionOf(previousNode) < aggregateHistory.positionOf(queryNode)
             while (query?.parentId != null) {
                 if (query.parentId == previous.messageId)
                     return true
@@ -488,6 +592,7 @@ class Conversation : ConversationHistory {
     val unreadTextMessages: TreeMap<Long, TextMessage>
         get() {
             val texts = TreeMap<Long, TextMessage>()
+            if (unreadMessageCount == 0) return texts
             if (isSwarm) {
                 synchronized(this) {
                     for (j in aggregateHistory.indices.reversed()) {
@@ -523,12 +628,141 @@ class Conversation : ConversationHistory {
     private fun removeSwarmInteraction(messageId: String): Boolean {
         val i = mMessages.remove(messageId)
         if (i != null) {
-            aggregateHistory.remove(i)
+            val boundary = i === mReadBoundary
+            if (!boundary) onTextMessageRemoved(i)
+            mDetached.remove(messageId)
+            i.parentId?.let { mChildren.remove(it, i) }
+            mNodes.remove(messageId)?.let { aggregateHistory.removeNode(it) }
+            if (boundary) recountUnread()
             return true
         }
         return false
     }
 
+    private fun clearSwarmIndex() {
+        mNodes.clear()
+        mChildren.clear()
+        mDetached.clear()
+        mOlderEvicted = false
+        mNewerEvicted = false
+        mUnloadedHead = null
+    }
+
+    /** True if [i] is part of the loaded history */
+    private fun isLoaded(i: Interaction): Boolean =
+        if (isSwarm) i.messageId?.let { mNodes[it] }?.value === i else rawHistory[i.timestamp] === i
+
+    /** True if the loaded interaction [i] comes after the last read text message */
+    private fun isAfterReadBoundary(i: Interaction): Boolean {
+        val boundary = mReadBoundary ?: return true
+        if (boundary === i) return false
+        if (!isSwarm) return i.timestamp > boundary.timestamp
+        val node = i.messageId?.let { mNodes[it] } ?: return false
+        val boundaryNode = boundary.messageId?.let { mNodes[it] } ?: return true
+        return aggregateHistory.positionOf(node) > aggregateHistory.positionOf(boundaryNode)
+    }
+
+    private fun setUnreadCount(count: Int) {
+        if (count != mUnreadCount) {
+            mUnreadCount = count
+            unreadCountSubject.onNext(count)
+        }
+    }
+
+    /**
+     * Finds the last read text message by walking back from the end of the loaded history,
+     * counting the text messages after it.
+     * Only used when the history is replaced or the boundary message is removed:
+     * reads and new messages update the count by transition.
+     */
+    private fun recountUnread() {
+        var count = 0
+        var boundary: Interaction? = null
+        if (isSwarm) {
+            for (j in aggregateHistory.indices.reversed()) {
+                val i = aggregateHistory[j]
+                if (i !is TextMessage) continue
+                if (i.isRead) {
+                    boundary = i
+                    break
+                }
+                count++
+            }
+        } else {
+            for (i in rawHistory.descendingMap().values) {
+                if (i !is TextMessage) continue
+                if (i.isRead) {
+                    boundary = i
+                    break
+                }
+                count++
+            }
+        }
+        mReadBoundary = boundary
+        setUnreadCount(count)
+    }
+
+    /**
+     * Moves the read boundary forward to the loaded text message [i] and returns the new unread count,
+     * given [unread] text messages after the previous boundary, [i] included.
+     * Only walks the messages between the previous boundary and [i], or after [i] if there are fewer,
+     * so reading a history in order or from its end costs O(log n) per message.
+     */
+    private fun moveReadBoundary(i: Interaction, unread: Int): Int {
+        val boundary = mReadBoundary
+        mReadBoundary = i
+        if (!isSwarm) {
+            val skipped = if (boundary == null) rawHistory.headMap(i.timestamp, false)
+                else rawHistory.subMap(boundary.timestamp, false, i.timestamp, false)
+            return unread - 1 - skipped.values.count { it is TextMessage }
+        }
+        val position = aggregateHistory.positionOf(mNodes[i.messageId!!]!!)
+        val start = if (boundary == null) 0 else boundary.messageId?.let { mNodes[it] }?.let { aggregateHistory.positionOf(it) + 1 }
+        val end = aggregateHistory.size
+        return if (start != null && position - start <= end - position)
+            unread - 1 - countTextMessages(start, position)
+        else
+            countTextMessages(position + 1, end)
+    }
+
+    private fun countTextMessages(from: Int, to: Int): Int =
+        (from until to).count { aggregateHistory[it] is TextMessage }
+
+    /** Updates the unread count after [i] was added to the loaded history */
+    private fun onTextMessageAdded(i: Interaction) {
+        if (i !is TextMessage || !isAfterReadBoundary(i)) return
+        setUnreadCount(if (i.isRead) moveReadBoundary(i, mUnreadCount + 1) else mUnreadCount + 1)
+    }
+
+    /** Updates the unread count after the contiguous [chain] was added to the loaded history */
+    private fun onTextMessagesAdded(chain: List<Interaction>) {
+        if (!isAfterReadBoundary(chain.first())) return
+        val unread = mUnreadCount + chain.count { it is TextMessage }
+        val lastRead = chain.lastOrNull { it is TextMessage && it.isRead }
+        setUnreadCount(if (lastRead != null) moveReadBoundary(lastRead, unread) else unread)
+    }
+
+    /** Updates the unread count before [i], which is not the read boundary, is removed from the loaded history */
+    private fun onTextMessageRemoved(i: Interaction) {
+        if (i is TextMessage && !i.isRead && isAfterReadBoundary(i))
+            setUnreadCount(mUnreadCount - 1)
+    }
+
+    private fun clearUnread() {
+        mReadBoundary = null
+        setUnreadCount(0)
+    }
+
+    /** Called when [i] is marked as read */
+    @Synchronized
+    internal fun onInteractionRead(i: Interaction) {
+        // Messages before a read one count as read
+        if (i is TextMessage && isLoaded(i) && isAfterReadBoundary(i))
+            setUnreadCount(moveReadBoundary(i, mUnreadCount))
+        if (i === lastEvent)
+            unreadObserver?.invoke(this)
+    }
+
     private fun removeInteraction(interactionId: Long): Boolean {
         val it = aggregateHistory.iterator()
         while (it.hasNext()) {
@@ -549,25 +783,80 @@ class Conversation : ConversationHistory {
     fun clearHistory(delete: Boolean) {
         aggregateHistory.clear()
         rawHistory.clear()
+        clearSwarmIndex()
+        clearUnread()
         mDirty = false
+        hasOlderHistory = false
         if (!delete && !isSwarm && contacts.size == 1)
             aggregateHistory.add(ContactEvent(accountId, contacts[0]))
         clearedSubject.onNext(ArrayList(aggregateHistory))
     }
 
+    /**
+     * Releases the loaded history to save memory, keeping [lastEvent] for the conversation list.
+     * The history will be loaded again on next access.
+     */
+    @Synchronized
+    fun unloadHistory() {
+        val head = if (isSwarm) aggregateHistory.lastOrNull()?.messageId else null
+        aggregateHistory.clear()
+        rawHistory.clear()
+        mMessages.clear()
+        clearSwarmIndex()
+        clearUnread()
+        mDirty = false
+        loaded = null
+        if (head != null) {
+            // Load again from the most recent message, even if new messages arrive in the meantime
+            mUnloadedHead = head
+            mOlderEvicted = true
+        }
+        clearedSubject.onNext(emptyList())
+    }
+
     @Synchronized
     fun setHistory(loadedConversation: List<Interaction>) {
         mDirty = true
-        aggregateHistory.ensureCapacity(loadedConversation.size)
         for (i in loadedConversation) {
             val interaction = getTypedInteraction(i)
             setInteractionProperties(interaction)
             aggregateHistory.add(interaction)
             rawHistory[interaction.timestamp] = interaction
         }
+        recountUnread()
         sortHistory()
     }
 
+    /** True if older interactions of a non-swarm conversation are left to be loaded from the database */
+    var hasOlderHistory = false
+        @Synchronized get
+        @Synchronized set
+
+    /** Oldest interaction of the loaded history, from which older pages are loaded */
+    val oldestLoaded: Interaction?
+        // The raw history only keeps one interaction per timestamp
+        @Synchronized get() = aggregateHistory.firstOrNull()
+
+    /**
+     * Adds a page of interactions of a non-swarm conversation older than the loaded history.
+     * @param page the interactions, ordered by timestamp
+     */
+    @Synchronized
+    fun addOlderHistory(page: List<Interaction>) {
+        if (page.isEmpty()) return
+        val added = ArrayList<Interaction>(page.size)
+        for (i in page) {
+            val interaction = getTypedInteraction(i)
+            setInteractionProperties(interaction)
+            rawHistory[interaction.timestamp] = interaction
+            added.add(interaction)
+        }
+        aggregateHistory.addAll(0, added)
+        // Older unread messages only count when nothing loaded was read
+        if (mReadBoundary == null) recountUnread()
+        insertedRangeSubject.onNext(added)
+    }
+
     @Synchronized
     fun addElement(interaction: Interaction) {
         setInteractionProperties(interaction)
@@ -588,6 +877,188 @@ class Conversation : ConversationHistory {
      */
     @Synchronized
     fun addSwarmElement(interaction: Interaction, newMessage: Boolean) {
+        val tail = aggregateHistory.lastOrNull()
+        val element = indexSwarmElement(interaction)
+        val id = element.messageId!!
+        val existing = mNodes[id]
+        if (existing != null) {
+            // Already linearized: replace in place
+            val previous = existing.value
+            existing.value = element
+            if (previous === mReadBoundary || (previous is TextMessage) != (element is TextMessage) || previous.isRead != element.isRead)
+                recountUnread()
+            updatedElementSubject.onNext(Pair(element, ElementStatus.UPDATE))
+        } else {
+            mDetached.remove(id)
+            element.parentId?.let { mChildren[it] = element }
+            if (!attachSwarmElement(element)) {
+                // Will be attached once its parent or child is loaded
+                Log.w(TAG, "Can't attach interaction $id with parent ${element.parentId} yet")
+                mDetached[id] = element
+                // The conversation preview must follow new messages even if the newest history is evicted
+                if (newMessage && mNewerEvicted) lastEvent = element
+            }
+        }
+        mPendingMessages.remove(id)?.onSuccess(element)
+        onHistoryExtended(tail)
+        trimHistory()
+    }
+
+    /**
+     * Adds a batch of swarm interactions to the conversation.
+     * The batch is merged in the history in one pass: each chain of messages linked together
+     * is inserted at once and notified as a single range through [insertedRanges].
+     *
+     * @param interactions The interactions to add, in any order.
+     */
+    @Synchronized
+    fun addSwarmElements(interactions: List<Interaction>) {
+        val tail = aggregateHistory.lastOrNull()
+        val batch = LinkedHashMap<String, Interaction>(interactions.size)
+        var recount = false
+        for (interaction in interactions) {
+            val element = indexSwarmElement(interaction)
+            val id = element.messageId!!
+            val existing = mNodes[id]
+            if (existing != null) {
+                // Already linearized: replace in place
+                val previous = existing.value
+                existing.value = element
+                if (previous === mReadBoundary || (previous is TextMessage) != (element is TextMessage) || previous.isRead != element.isRead)
+                    recount = true
+                updatedElementSubject.onNext(Pair(element, ElementStatus.UPDATE))
+            } else {
+                mDetached.remove(id)
+                element.parentId?.let { mChildren[it] = element }
+                batch[id] = element
+            }
+        }
+        if (recount) recountUnread()
+        // Chains start with the messages whose parent is not part of the batch
+        val heads = batch.values.filter { e -> e.parentId.let { it == null || !batch.containsKey(it) } }
+        var chains: MutableList<List<Interaction>> = heads.mapTo(ArrayList<List<Interaction>>(heads.size)) { head ->
+            val chain = ArrayList<Interaction>()
+            var element: Interaction? = head
+            while (element != null) {
+                chain.add(element)
+                batch.remove(element.messageId!!)
+                element = mChildren[element.messageId!!]?.let { batch[it.messageId!!] }
+            }
+            chain
+        }
+        // Remaining messages are not reachable from any chain head
+        for (e in batch.values) mDetached[e.messageId!!] = e
+        // A chain may only become attachable once another chain of the batch is inserted
+        val attached = ArrayList<Interaction>()
+        while (chains.isNotEmpty()) {
+            val remaining = ArrayList<List<Interaction>>()
+            for (chain in chains) {
+                if (insertSwarmRange(chain)) {
+                    attached.add(chain.first())
+                    attached.add(chain.last())
+                } else {
+                    remaining.add(chain)
+                }
+            }
+            if (remaining.size == chains.size) {
+                for (chain in remaining) for (e in chain) mDetached[e.messageId!!] = e
+                break
+            }
+            chains = remaining
+        }
+        attachDetachedNeighbours(attached)
+        if (mPendingMessages.isNotEmpty()) {
+            for (interaction in interactions) {
+                val id = interaction.messageId!!
+                mPendingMessages.remove(id)?.let { pending -> mMessages[id]?.let { pending.onSuccess(it) } }
+            }
+        }
+        onHistoryExtended(tail)
+        trimHistory()
+    }
+
+    /**
+     * Sets the message currently displayed, around which the history window is kept.
+     * @param messageId The displayed message id, or null to keep the most recent messages.
+     */
+    @Synchronized
+    fun setViewportAnchor(messageId: String?) {
+        mViewportAnchor = messageId
+        trimHistory()
+    }
+
+    /**
+     * @return the id of the message from which older history must be loaded again,
+     * an empty string if it was not evicted, or null if the whole history is loaded.
+     */
+    @Synchronized
+    fun getOlderHistoryRoot(): String? {
+        if (!mOlderEvicted) return ""
+        val first = aggregateHistory.firstOrNull() ?: return mUnloadedHead
+        return first.parentId
+    }
+
+    /**
+     * @return the id of the most recent message in memory if more recent messages were evicted,
+     * null otherwise. The newer history is considered reloaded once messages are inserted after it.
+     */
+    @Synchronized
+    fun getNewerHistoryRoot(): String? =
+        if (mNewerEvicted) aggregateHistory.lastOrNull()?.messageId else null
+
+    /** Clears the newer evicted state if the history was extended past its previous most recent message */
+    private fun onHistoryExtended(tail: Interaction?) {
+        if (mNewerEvicted && tail != null && aggregateHistory.lastOrNull() !== tail)
+            mNewerEvicted = false
+    }
+
+    /**
+     * Evicts linearized swarm messages outside of the history window around the viewport,
+     * then detached messages if the window is still exceeded.
+     */
+    private fun trimHistory() {
+        val window = historyWindow
+        val size = aggregateHistory.size
+        if (window > 0 && size > window) {
+            val anchor = mViewportAnchor?.let { mNodes[it] }?.let { aggregateHistory.positionOf(it) } ?: (size - 1)
+            val start = (anchor - window / 2).coerceIn(0, size - window)
+            // Evict the most recent messages first so older positions stay valid
+            if (evictSwarmRange(start + window, size)) mNewerEvicted = true
+            if (evictSwarmRange(0, start)) mOlderEvicted = true
+        }
+        if (window > 0 && mDetached.isNotEmpty())
+            evictDetached(mDetached.size + aggregateHistory.size - window)
+        if (mMessages.size > mPeakResidentCount) mPeakResidentCount = mMessages.size
+    }
+
+    /** Evicts the [count] oldest detached messages, which will be loaded again with their neighbours */
+    private fun evictDetached(count: Int) {
+        if (count <= 0) return
+        val tail = aggregateHistory.lastOrNull()
+        val evicted = mDetached.values.sortedBy { it.timestamp }.take(count)
+        for (interaction in evicted) {
+            if (tail == null || interaction.timestamp >= tail.timestamp) mNewerEvicted = true
+            else mOlderEvicted = true
+            removeSwarmInteraction(interaction.messageId!!)
+        }
+        mEvictedCount += evicted.size
+    }
+
+    private fun evictSwarmRange(from: Int, to: Int): Boolean {
+        if (from >= to) return false
+        val evicted = aggregateHistory.subList(from, to).toList()
+        for (interaction in evicted) removeSwarmInteraction(interaction.messageId!!)
+        mEvictedCount += evicted.size
+        evictedRangeSubject.onNext(evicted)
+        return true
+    }
+
+    /**
+     * Indexes a swarm interaction by message id and updates the read, notified, sent and
+     * displayed state that depends on it.
+     * @return the interaction to insert in the history (an ended call is replaced by an invalid element)
+     */
+    private fun indexSwarmElement(interaction: Interaction): Interaction {
         // Handle call interaction
         if (interaction is Call && interaction.confId != null) {
             // interaction.duration is changed when the call is ended.
@@ -606,8 +1077,7 @@ class Conversation : ConversationHistory {
                         conversation = this@Conversation
                         contact = interaction.contact
                     }
-                addSwarmElement(invalidInteraction, newMessage)
-                return
+                return indexSwarmElement(invalidInteraction)
             } else { // Call started but not ended
                 val endedCall = conferenceEnded.remove(interaction.confId)
                 if (endedCall != null) {
@@ -635,38 +1105,63 @@ class Conversation : ConversationHistory {
 
         if (lastRead != null && lastRead == id) interaction.read()
         if (lastNotified != null && lastNotified == id) interaction.isNotified = true
-        var newLeaf = false
-        var added = false
-        if (aggregateHistory.isEmpty() || aggregateHistory.last().messageId == interaction.parentId) {
+        return interaction
+    }
+
+    /**
+     * Inserts a swarm interaction in the linearized history, next to its loaded parent or child,
+     * then attaches any detached message that was waiting for it.
+     * @return false if neither the parent nor the child of the interaction is in the history
+     */
+    private fun attachSwarmElement(interaction: Interaction): Boolean {
+        if (!insertSwarmElement(interaction)) return false
+        attachDetachedNeighbours(listOf(interaction))
+        return true
+    }
+
+    /** Attaches detached messages linked to the given attached messages, transitively */
+    private fun attachDetachedNeighbours(interactions: Collection<Interaction>) {
+        if (mDetached.isEmpty()) return
+        val attached = ArrayDeque(interactions)
+        while (attached.isNotEmpty()) {
+            val i = attached.removeFirst()
+            val parent = i.parentId?.let { mDetached.remove(it) }
+            val child = mChildren[i.messageId!!]?.let { mDetached.remove(it.messageId!!) }
+            for (d in listOfNotNull(parent, child)) {
+                if (insertSwarmElement(d)) attached.add(d)
+                else mDetached[d.messageId!!] = d
+            }
+        }
+    }
+
+    private fun insertSwarmElement(interaction: Interaction): Boolean {
+        val id = interaction.messageId!!
+        val last = aggregateHistory.lastOrNull()
+        val node: IndexedTreeList.Node<Interaction>
+        val newLeaf: Boolean
+        if (last == null || last.messageId == interaction.parentId) {
             // New leaf
-            added = true
+            node = aggregateHistory.addNode(aggregateHistory.size, interaction)
             newLeaf = true
-            aggregateHistory.add(interaction)
-            updatedElementSubject.onNext(Pair(interaction, ElementStatus.ADD))
         } else {
             // New root or normal node
-            for (i in aggregateHistory.indices) {
-                if (id == aggregateHistory[i].parentId) {
-                    aggregateHistory.add(i, interaction)
-                    updatedElementSubject.onNext(Pair(interaction, ElementStatus.ADD))
-                    added = true
-                    newLeaf = (i == 0 // True if it is the last non-invalid message.
-                            && aggregateHistory.last().type == Interaction.InteractionType.INVALID)
-                    break
-                }
-            }
-            if (!added) {
-                for (i in aggregateHistory.indices.reversed()) {
-                    if (aggregateHistory[i].messageId == interaction.parentId) {
-                        added = true
-                        newLeaf = true
-                        aggregateHistory.add(i + 1, interaction)
-                        updatedElementSubject.onNext(Pair(interaction, ElementStatus.ADD))
-                        break
-                    }
-                }
+            val childNode = mChildren[id]?.let { mNodes[it.messageId!!] }
+            val parentNode = interaction.parentId?.let { mNodes[it] }
+            if (childNode != null) {
+                val position = aggregateHistory.positionOf(childNode)
+                node = aggregateHistory.addNode(position, interaction)
+                newLeaf = (position == 0 // True if it is the last non-invalid message.
+                        && last.type == Interaction.InteractionType.INVALID)
+            } else if (parentNode != null) {
+                node = aggregateHistory.addAfter(parentNode, interaction)
+                newLeaf = true
+            } else {
+                return false
             }
         }
+        mNodes[id] = node
+        onTextMessageAdded(interaction)
+        updatedElementSubject.onNext(Pair(interaction, ElementStatus.ADD))
         if (newLeaf) {
             if (isVisible) {
                 interaction.read()
@@ -675,10 +1170,48 @@ class Conversation : ConversationHistory {
             if (interaction.type != Interaction.InteractionType.INVALID)
                 lastEvent = interaction
         }
-        if (!added) {
-            Log.e(TAG, "Can't attach interaction $id with parent ${interaction.parentId}")
+        return true
+    }
+
+    /**
+     * Inserts a chain of linked swarm interactions in the history, next to the loaded parent
+     * of its first element or the loaded child of its last element.
+     * @return false if the chain can't be attached to the history yet
+     */
+    private fun insertSwarmRange(chain: List<Interaction>): Boolean {
+        val first = chain.first()
+        val last = aggregateHistory.lastOrNull()
+        val position: Int
+        val newLeaf: Boolean
+        if (last == null || last.messageId == first.parentId) {
+            position = aggregateHistory.size
+            newLeaf = true
+        } else {
+            val childNode = mChildren[chain.last().messageId!!]?.let { mNodes[it.messageId!!] }
+            val parentNode = first.parentId?.let { mNodes[it] }
+            if (childNode != null) {
+                position = aggregateHistory.positionOf(childNode)
+                newLeaf = position == 0 && last.type == Interaction.InteractionType.INVALID
+            } else if (parentNode != null) {
+                position = aggregateHistory.positionOf(parentNode) + 1
+                newLeaf = true
+            } else {
+                return false
+            }
+        }
+        val nodes = aggregateHistory.addNodes(position, chain)
+        for (i in chain.indices)
+            mNodes[chain[i].messageId!!] = nodes[i]
+        onTextMessagesAdded(chain)
+        insertedRangeSubject.onNext(chain)
+        if (newLeaf) {
+            if (isVisible) {
+                for (interaction in chain) interaction.read()
+                setLastMessageRead(chain.last().messageId)
+            }
+            chain.lastOrNull { it.type != Interaction.InteractionType.INVALID }?.let { lastEvent = it }
         }
-        mPendingMessages.remove(id)?.onSuccess(interaction)
+        return true
     }
 
     fun updateFileTransfer(transfer: DataTransfer, eventCode: Interaction.TransferStatus) {
@@ -701,6 +1234,8 @@ class Conversation : ConversationHistory {
         aggregateHistory.clear()
         currentCalls.clear()
         rawHistory.clear()
+        clearSwarmIndex()
+        clearUnread()
         mDirty = true
     }
 
@@ -721,6 +1256,7 @@ class Conversation : ConversationHistory {
     fun getSymbol(): Observable<CharSequence> = symbol
 
     fun updatePreferences(preferences: Map<String, String>) {
+        this.preferences = preferences
         val colorValue = preferences[KEY_PREFERENCE_CONVERSATION_COLOR]
         if (colorValue != null) {
             // First, we remove the string first character (the #).
@@ -791,7 +1327,11 @@ class Conversation : ConversationHistory {
     @Synchronized
     fun updateSwarmMessage(interaction: Interaction) {
         val existingInteraction = interaction.messageId?.let { getMessage(it) } ?: return
-        interaction.parentId?.let { existingInteraction.updateParent(it) }
+        interaction.parentId?.let { parentId ->
+            existingInteraction.parentId?.let { mChildren.remove(it, existingInteraction) }
+            existingInteraction.updateParent(parentId)
+            mChildren[parentId] = existingInteraction
+        }
         existingInteraction.replaceEdits(interaction.history)
         existingInteraction.replaceReactions(interaction.reactions)
         existingInteraction.body = interaction.body
@@ -847,11 +1387,12 @@ class Conversation : ConversationHistory {
         const val KEY_PREFERENCE_CONVERSATION_SYMBOL = "symbol"
         const val KEY_PREFERENCE_CONVERSATION_NOTIFICATION = "notification"
 
-        private fun getTypedInteraction(interaction: Interaction) = when (interaction.type) {
-            Interaction.InteractionType.TEXT -> TextMessage(interaction)
-            Interaction.InteractionType.CALL -> Call(interaction)
-            Interaction.InteractionType.CONTACT -> ContactEvent(interaction)
-            Interaction.InteractionType.DATA_TRANSFER -> DataTransfer(interaction)
+        /** @return the interaction as the class of its type, or itself if it already is */
+        fun getTypedInteraction(interaction: Interaction) = when (interaction.type) {
+            Interaction.InteractionType.TEXT -> interaction as? TextMessage ?: TextMessage(interaction)
+            Interaction.InteractionType.CALL -> interaction as? Call ?: Call(interaction)
+            Interaction.InteractionType.CONTACT -> interaction as? ContactEvent ?: ContactEvent(interaction)
+            Interaction.InteractionType.DATA_TRANSFER -> interaction as? DataTransfer ?: DataTransfer(interaction)
             else -> interaction
         }
     }
@@ -0,0 +1,106 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.model
+
+import net.jami.model.Interaction.Companion.COLUMN_AUTHOR
+import net.jami.model.Interaction.Companion.COLUMN_BODY
+import net.jami.model.Interaction.Companion.COLUMN_CONVERSATION
+import net.jami.model.Interaction.Companion.COLUMN_ID
+import net.jami.model.Interaction.Companion.COLUMN_IS_READ
+import net.jami.model.Interaction.Companion.COLUMN_TIMESTAMP
+
+/**
+ * Table holding the last interaction and unread count of each conversation,
+ * kept up to date by triggers on the interactions table.
+ * Allows to load the conversation list without scanning all interactions.
+ */
+object ConversationSummary {
+    const val TABLE_NAME = "conversation_summary"
+    const val COLUMN_CONVERSATION = "conversation"
+    const val COLUMN_LAST_ID = "last_id"
+    const val COLUMN_LAST_TIMESTAMP = "last_timestamp"
+    const val COLUMN_PREVIEW = "preview"
+    const val COLUMN_UNREAD_COUNT = "unread_count"
+
+    private const val INTERACTIONS = Interaction.TABLE_NAME
+    // Counted as unread: incoming interactions not read yet
+    private const val UNREAD = "($COLUMN_IS_READ = 0 AND $COLUMN_AUTHOR IS NOT NULL)"
+
+    /** Replaces the last interaction of the conversation by the most recent one, if it was [id] and [condition] is true */
+    private fun refreshLast(conversation: String, id: String, condition: String = "1") = """
+        UPDATE $TABLE_NAME SET $COLUMN_LAST_ID = (
+            SELECT $COLUMN_ID FROM $INTERACTIONS WHERE $COLUMN_CONVERSATION = $conversation
+            ORDER BY $COLUMN_TIMESTAMP DESC, $COLUMN_ID DESC LIMIT 1)
+        WHERE $COLUMN_CONVERSATION = $conversation AND $COLUMN_LAST_ID = $id AND $condition;
+        UPDATE $TABLE_NAME SET
+            $COLUMN_LAST_TIMESTAMP = (SELECT $COLUMN_TIMESTAMP FROM $INTERACTIONS WHERE $COLUMN_ID = $TABLE_NAME.$COLUMN_LAST_ID),
+            $COLUMN_PREVIEW = (SELECT $COLUMN_BODY FROM $INTERACTIONS WHERE $COLUMN_ID = $TABLE_NAME.$COLUMN_LAST_ID)
+        WHERE $COLUMN_CONVERSATION = $conversation;
+        DELETE FROM $TABLE_NAME WHERE $COLUMN_CONVERSATION = $conversation AND $COLUMN_LAST_ID IS NULL;"""
+
+    /** Statements creating the table and its triggers */
+    val CREATE = listOf(
+        """CREATE TABLE IF NOT EXISTS $TABLE_NAME (
+            $COLUMN_CONVERSATION INTEGER PRIMARY KEY,
+            $COLUMN_LAST_ID INTEGER,
+            $COLUMN_LAST_TIMESTAMP BIGINT,
+            $COLUMN_PREVIEW VARCHAR,
+            $COLUMN_UNREAD_COUNT INTEGER NOT NULL DEFAULT 0)""",
+        """CREATE TRIGGER IF NOT EXISTS ${TABLE_NAME}_insert AFTER INSERT ON $INTERACTIONS
+        WHEN NEW.$COLUMN_CONVERSATION IS NOT NULL BEGIN
+            INSERT OR IGNORE INTO $TABLE_NAME ($COLUMN_CONVERSATION, $COLUMN_LAST_ID, $COLUMN_LAST_TIMESTAMP)
+                VALUES (NEW.$COLUMN_CONVERSATION, NEW.$COLUMN_ID, NEW.$COLUMN_TIMESTAMP);
+            UPDATE $TABLE_NAME SET
+                $COLUMN_UNREAD_COUNT = $COLUMN_UNREAD_COUNT + (NEW.$COLUMN_IS_READ = 0 AND NEW.$COLUMN_AUTHOR IS NOT NULL)
+            WHERE $COLUMN_CONVERSATION = NEW.$COLUMN_CONVERSATION;
+            UPDATE $TABLE_NAME SET
+                $COLUMN_LAST_ID = NEW.$COLUMN_ID,
+                $COLUMN_LAST_TIMESTAMP = NEW.$COLUMN_TIMESTAMP,
+                $COLUMN_PREVIEW = NEW.$COLUMN_BODY
+            WHERE $COLUMN_CONVERSATION = NEW.$COLUMN_CONVERSATION AND NEW.$COLUMN_TIMESTAMP >= $COLUMN_LAST_TIMESTAMP;
+        END""",
+        """CREATE TRIGGER IF NOT EXISTS ${TABLE_NAME}_update AFTER UPDATE ON $INTERACTIONS
+        WHEN NEW.$COLUMN_CONVERSATION IS NOT NULL BEGIN
+            UPDATE $TABLE_NAME SET
+                $COLUMN_UNREAD_COUNT = $COLUMN_UNREAD_COUNT
+                    + (NEW.$COLUMN_IS_READ = 0 AND NEW.$COLUMN_AUTHOR IS NOT NULL)
+                    - (OLD.$COLUMN_IS_READ = 0 AND OLD.$COLUMN_AUTHOR IS NOT NULL)
+            WHERE $COLUMN_CONVERSATION = NEW.$COLUMN_CONVERSATION;
+            UPDATE $TABLE_NAME SET
+                $COLUMN_LAST_ID = NEW.$COLUMN_ID,
+                $COLUMN_LAST_TIMESTAMP = NEW.$COLUMN_TIMESTAMP,
+                $COLUMN_PREVIEW = NEW.$COLUMN_BODY
+            WHERE $COLUMN_CONVERSATION = NEW.$COLUMN_CONVERSATION AND NEW.$COLUMN_TIMESTAMP >= $COLUMN_LAST_TIMESTAMP;
+            ${refreshLast("NEW.$COLUMN_CONVERSATION", "NEW.$COLUMN_ID", "NEW.$COLUMN_TIMESTAMP < OLD.$COLUMN_TIMESTAMP")}
+        END""",
+        """CREATE TRIGGER IF NOT EXISTS ${TABLE_NAME}_delete AFTER DELETE ON $INTERACTIONS
+        WHEN OLD.$COLUMN_CONVERSATION IS NOT NULL BEGIN
+            UPDATE $TABLE_NAME SET
+                $COLUMN_UNREAD_COUNT = $COLUMN_UNREAD_COUNT - (OLD.$COLUMN_IS_READ = 0 AND OLD.$COLUMN_AUTHOR IS NOT NULL)
+            WHERE $COLUMN_CONVERSATION = OLD.$COLUMN_CONVERSATION;
+            ${refreshLast("OLD.$COLUMN_CONVERSATION", "OLD.$COLUMN_ID")}
+        END"""
+    )
+
+    /** Fills the table from the existing interactions, in one pass */
+    const val BACKFILL = """
+        INSERT OR REPLACE INTO $TABLE_NAME ($COLUMN_CONVERSATION, $COLUMN_LAST_ID, $COLUMN_LAST_TIMESTAMP, $COLUMN_PREVIEW, $COLUMN_UNREAD_COUNT)
+        SELECT $COLUMN_CONVERSATION, $COLUMN_ID, MAX($COLUMN_TIMESTAMP), $COLUMN_BODY, SUM$UNREAD
+        FROM $INTERACTIONS
+        WHERE $COLUMN_CONVERSATION IS NOT NULL
+        GROUP BY $COLUMN_CONVERSATION"""
+}
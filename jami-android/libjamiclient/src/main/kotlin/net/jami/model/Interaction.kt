@@ -69,7 +69,7 @@ open class Interaction {
     var status = InteractionStatus.INVALID
         set(status) {
             if (status == InteractionStatus.DISPLAYED)
-                mIsRead = 1
+                read()
             field = status
         }
 
@@ -120,25 +120,48 @@ open class Interaction {
         daemonId: String?,
         isRead: String,
         extraFlag: String
+    ) : this(
+        id.toInt(),
+        author,
+        conversation,
+        timestamp.toLong(),
+        body,
+        InteractionType.fromString(mType),
+        InteractionStatus.fromString(st),
+        try { daemonId?.toLong() } catch (e: NumberFormatException) { 0L },
+        isRead.toInt(),
+        extraFlag
+    )
+
+    /** Used by the row mappers, with column values read as their stored type */
+    constructor(
+        id: Int,
+        author: String?,
+        conversation: ConversationHistory?,
+        timestamp: Long,
+        body: String?,
+        type: InteractionType,
+        status: InteractionStatus,
+        daemonId: Long?,
+        isRead: Int,
+        extraFlag: String
     ) {
-        this.id = id.toInt()
+        this.id = id
         this.author = author
         this.conversation = conversation
-        this.timestamp = timestamp.toLong()
+        this.timestamp = timestamp
         this.body = body
-        type = InteractionType.fromString(mType)
-        status = InteractionStatus.fromString(st)
-        try {
-            this.daemonId = daemonId?.toLong()
-        } catch (e: NumberFormatException) {
-            this.daemonId = 0L
-        }
-        mIsRead = isRead.toInt()
+        this.type = type
+        this.status = status
+        this.daemonId = daemonId
+        mIsRead = isRead
         mExtraFlag = extraFlag
     }
 
     fun read() {
+        if (mIsRead == 1) return
         mIsRead = 1
+        (conversation as? Conversation)?.onInteractionRead(this)
     }
 
     val extraFlag: JsonObject
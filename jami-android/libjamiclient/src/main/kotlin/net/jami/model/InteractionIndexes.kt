@@ -0,0 +1,37 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.model
+
+import net.jami.model.Interaction.Companion.COLUMN_CONVERSATION
+import net.jami.model.Interaction.Companion.COLUMN_DAEMON_ID
+import net.jami.model.Interaction.Companion.COLUMN_TIMESTAMP
+
+/**
+ * Composite indexes of the interactions table for the history queries.
+ * Interaction ids are row ids, so every index entry also holds the id:
+ * the conversation index orders each conversation history by (timestamp, id) without sorting.
+ */
+object InteractionIndexes {
+    const val CONVERSATION_TIMESTAMP = "${Interaction.TABLE_NAME}_conversation_timestamp_idx"
+    const val DAEMON_ID = "${Interaction.TABLE_NAME}_daemon_id_idx"
+
+    /** Statements creating the indexes */
+    val CREATE = listOf(
+        "CREATE INDEX IF NOT EXISTS $CONVERSATION_TIMESTAMP ON ${Interaction.TABLE_NAME} ($COLUMN_CONVERSATION, $COLUMN_TIMESTAMP)",
+        "CREATE INDEX IF NOT EXISTS $DAEMON_ID ON ${Interaction.TABLE_NAME} ($COLUMN_DAEMON_ID)"
+    )
+}
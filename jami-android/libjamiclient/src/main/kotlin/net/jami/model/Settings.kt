@@ -28,6 +28,8 @@ data class Settings(
     val isRecordingBlocked: Boolean,
     //val enableHwEncoding: Boolean,
     val notificationVisibility: Int = 0,
+    // Maximum number of messages kept in memory for an open conversation, 0 for no limit
+    val historyWindow: Int = 0,
 )
 
 data class DonationSettings(
@@ -0,0 +1,129 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.model
+
+import net.jami.utils.IndexedTreeList
+
+/**
+ * Conversations ordered by most recent event first, maintained incrementally.
+ * The position of each conversation is indexed by the timestamp of its last event at the time
+ * it was inserted or updated, so a conversation moves to its new position in O(log n).
+ * Not thread safe.
+ */
+class SortedConversationList : Iterable<Conversation> {
+    /** Positional change of the list, to be applied in order */
+    sealed class Change {
+        data class Insert(val position: Int) : Change()
+        data class Remove(val position: Int) : Change()
+        data class Move(val from: Int, val to: Int) : Change()
+    }
+
+    /**
+     * Snapshot of the list with the changes applied to [base], the previous snapshot.
+     * [base] is null when the changes are unknown.
+     * [dirty] are the conversations updated since the previous snapshot.
+     */
+    class Update(
+        val conversations: List<Conversation>,
+        val base: List<Conversation>?,
+        val changes: List<Change>,
+        val dirty: Set<Conversation> = emptySet()
+    )
+
+    private val list = IndexedTreeList<Conversation>()
+    private val nodes: MutableMap<Conversation, IndexedTreeList.Node<Conversation>> = HashMap()
+    private val keys: MutableMap<Conversation, Long> = HashMap()
+
+    val size: Int
+        get() = list.size
+
+    fun isEmpty(): Boolean = list.isEmpty()
+
+    operator fun contains(conversation: Conversation): Boolean = nodes.containsKey(conversation)
+
+    override fun iterator(): Iterator<Conversation> = list.iterator()
+
+    fun snapshot(): List<Conversation> = ArrayList(list)
+
+    /** Replaces the content of the list with [conversations] */
+    fun reset(conversations: Collection<Conversation>) {
+        list.clear()
+        nodes.clear()
+        keys.clear()
+        val sorted = conversations.sortedByDescending { key(it) }
+        val added = list.addNodes(0, sorted)
+        for (i in sorted.indices) {
+            nodes[sorted[i]] = added[i]
+            keys[sorted[i]] = key(sorted[i])
+        }
+    }
+
+    /** @return the position where [conversation] was inserted */
+    fun insert(conversation: Conversation): Int {
+        val key = key(conversation)
+        val position = list.partitionPoint { keys[it]!! >= key }
+        nodes[conversation] = list.addNode(position, conversation)
+        keys[conversation] = key
+        return position
+    }
+
+    /** @return the position [conversation] was removed from, or -1 if it was not in the list */
+    fun remove(conversation: Conversation): Int {
+        val node = nodes.remove(conversation) ?: return -1
+        keys.remove(conversation)
+        val position = list.positionOf(node)
+        list.removeAt(position)
+        return position
+    }
+
+    /**
+     * Moves [conversation] according to its last event.
+     * @return the resulting move, or null if the position didn't change
+     */
+    fun update(conversation: Conversation): Change.Move? {
+        val node = nodes[conversation] ?: return null
+        val key = key(conversation)
+        if (keys[conversation] == key) return null
+        val from = list.positionOf(node)
+        list.removeAt(from)
+        val to = insert(conversation)
+        return if (from == to) null else Change.Move(from, to)
+    }
+
+    /**
+     * Updates the list to contain exactly [conversations], moving the ones whose last event changed.
+     * @return the resulting changes
+     */
+    fun reconcile(conversations: Collection<Conversation>): List<Change> {
+        val changes = ArrayList<Change>()
+        val current = HashSet(conversations)
+        for (conversation in ArrayList(nodes.keys)) {
+            if (!current.contains(conversation))
+                changes.add(Change.Remove(remove(conversation)))
+        }
+        for (conversation in conversations) {
+            if (nodes.containsKey(conversation)) update(conversation)?.let { changes.add(it) }
+            else changes.add(Change.Insert(insert(conversation)))
+        }
+        return changes
+    }
+
+    companion object {
+        private fun key(conversation: Conversation): Long =
+            conversation.lastEvent?.timestamp ?: Long.MIN_VALUE
+    }
+}
@@ -21,6 +21,7 @@ import io.reactivex.rxjava3.core.Completable
 import io.reactivex.rxjava3.core.Maybe
 import io.reactivex.rxjava3.core.Observable
 import io.reactivex.rxjava3.core.Single
+import io.reactivex.rxjava3.disposables.Disposable
 import io.reactivex.rxjava3.schedulers.Schedulers
 import io.reactivex.rxjava3.subjects.BehaviorSubject
 import io.reactivex.rxjava3.subjects.PublishSubject
@@ -30,17 +31,21 @@ import net.jami.daemon.*
 import net.jami.model.*
 import net.jami.model.Interaction.TransferStatus
 import net.jami.services.ConversationFacade.SearchResult
+import net.jami.utils.LatencyTracker
 import net.jami.utils.Log
+import net.jami.utils.PhaseTimer
 import net.jami.utils.SwigNativeConverter
+import net.jami.utils.loadOrdered
 import java.io.File
 import java.io.UnsupportedEncodingException
 import java.net.SocketException
 import java.net.URLEncoder
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Future
 import java.util.concurrent.ScheduledExecutorService
-import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.collections.ArrayList
 import kotlin.collections.HashMap
 
@@ -54,9 +59,34 @@ class AccountService(
     private val mExecutor: ScheduledExecutorService,
     private val mHistoryService: HistoryService,
     private val mDeviceRuntimeService: DeviceRuntimeService,
-    private val mVCardService: VCardService
+    private val mVCardService: VCardService,
+    private val mSnapshotStore: SmartListSnapshotStore,
+    private val mBulkExecutor: ScheduledExecutorService,
+    private val mNameCache: NameDirectoryCache,
+    // Wait and run time of each command, under the command name
+    private val mLatency: LatencyTracker
 ) {
     private val scheduler = Schedulers.from(mExecutor)
+    // Prefetching, polling and other background work, run after messaging and call work
+    private val bulkScheduler = Schedulers.from(mBulkExecutor)
+    private val transferPoller = TransferProgressPoller(bulkScheduler, ::transferProgress) { dataTransfers.onNext(it) }
+    private val snapshotWriters: MutableMap<String, Disposable> = ConcurrentHashMap()
+    // Conversations waiting to be hydrated, most recently queued last
+    private val hydrationQueue = LinkedHashSet<Conversation>()
+    private var hydrationScheduled = false
+
+    private val hydrated = AtomicInteger()
+
+    /** Number of conversations hydrated since startup */
+    val hydratedCount: Int
+        get() = hydrated.get()
+
+    /** Maximum number of conversations fetched from the daemon at once when loading an account */
+    var loadConcurrency = LOAD_CONCURRENCY
+
+    /** Time spent in each phase of the last account load, in milliseconds */
+    var lastLoadTimings: Map<String, Long> = emptyMap()
+        private set
     /**
      * @return the current Account from the local cache
      */
@@ -84,6 +114,8 @@ class AccountService(
     private var mHasRingAccount = false
     private val accountsSubject = BehaviorSubject.create<List<Account>>()
     private val observableAccounts: Subject<Account> = PublishSubject.create()
+    // Configuration commands queued or running, by account
+    private val pendingAccountCommands = HashMap<String, BehaviorSubject<Int>>()
 
     private val activeCallsSubject: Subject<ConversationActiveCalls> =
         PublishSubject.create()
@@ -253,10 +285,12 @@ class AccountService(
         val toLoad: MutableList<Account> = ArrayList()
         val newAccounts: List<Account> = JamiService.getAccountList().map { id ->
             curList.find { it.accountId == id } ?: Account(id, JamiService.getAccountDetails(id), JamiService.getCredentials(id), JamiService.getVolatileAccountDetails(id)).apply {
+                restoreSnapshot(this)
                 toLoad.add(this)
             }
         }
         mAccountList = newAccounts
+        newAccounts.forEach(::trackConnections)
         val scheduler = Schedulers.computation()
         toLoad.forEach { account ->
             account.registrationStateObservable
@@ -267,64 +301,275 @@ class AccountService(
                 .subscribe(account.loadedSubject)
         }
         // Cleanup removed accounts
-        for (acc in curList) if (!newAccounts.contains(acc)) acc.cleanup()
+        for (acc in curList) if (!newAccounts.contains(acc)) {
+            acc.cleanup()
+            connectionMonitor.untrack(acc.accountId)
+            snapshotWriters.remove(acc.accountId)?.dispose()
+            mSnapshotStore.delete(acc.accountId)
+        }
         accountsSubject.onNext(newAccounts)
     }
 
+    /** Summary of a swarm conversation, fetched before being merged in the account */
+    private class SwarmInfo(
+        val id: String,
+        val info: Map<String, String>,
+        // Null if the members restored from the snapshot are shown until the conversation is hydrated
+        val members: List<Map<String, String>>?
+    )
+
+    private fun fetchSwarmInfo(account: Account, conversationId: String): SwarmInfo? = try {
+        val restored = account.getSwarm(conversationId)?.contacts?.isNotEmpty() == true
+        SwarmInfo(conversationId,
+            JamiService.conversationInfos(account.accountId, conversationId).toNativeFromUtf8(),
+            if (restored) null else JamiService.getConversationMembers(account.accountId, conversationId).toNative())
+    } catch (e: Exception) {
+        Log.w(TAG, "Error loading conversation $conversationId", e)
+        null
+    }
+
+    /** Merges the summary of a swarm in the account: what the conversation list needs */
+    private fun mergeSwarmInfo(account: Account, swarm: SwarmInfo): Conversation? = try {
+        val info = swarm.info
+        //info.forEach { (key, value) -> Log.w(TAG, "conversation info: $key $value") }
+        val mode = if ("true" == info["syncing"]) Conversation.Mode.Syncing else Conversation.Mode.entries[info["mode"]?.toInt() ?: Conversation.Mode.Syncing.ordinal]
+        val conversation = account.newSwarm(swarm.id, mode)
+        conversation.hydration = Conversation.Hydration.Summary
+        conversation.infos = info
+        conversation.setProfile(mVCardService.loadConversationProfile(info))
+        swarm.members?.let { mergeMembers(account, conversation, it) }
+        if (!conversation.lastElementLoadedSubject.hasValue()) {
+            // The preview restored from the snapshot is shown until the conversation is hydrated
+            conversation.lastElementLoadedSubject.onSuccess(if (conversation.lastEvent == null)
+                loadMore(conversation, 8).ignoreElement().cache() else Completable.complete())
+        }
+        conversation
+    } catch (e: Exception) {
+        Log.w(TAG, "Error loading conversation", e)
+        null
+    }
+
+    private fun mergeMembers(account: Account, conversation: Conversation, members: List<Map<String, String>>) {
+        val memberUris = HashSet<Uri>()
+        for (member in members) {
+            val uri = Uri.fromId(member["uri"]!!)
+            val role = MemberRole.fromString(member["role"] ?: "")
+            val lastDisplayed = member["lastDisplayed"]
+            var contact = conversation.findContact(uri)
+            if (contact == null) {
+                contact = account.getContactFromCache(uri)
+                if (role != MemberRole.BLOCKED) conversation.addContact(contact, role)
+            } else if (role == MemberRole.BLOCKED) {
+                // Restored from the snapshot but blocked since
+                conversation.removeContact(contact)
+            } else synchronized(conversation) {
+                conversation.roles[uri.uri] = role
+            }
+            memberUris.add(uri)
+            if (!lastDisplayed.isNullOrEmpty()) {
+                if (contact.isUser) {
+                    conversation.setLastMessageRead(lastDisplayed)
+                } else {
+                    conversation.setLastMessageDisplayed(uri.host, lastDisplayed)
+                }
+            }
+        }
+        // Members restored from the snapshot that left since
+        for (contact in ArrayList(conversation.contacts))
+            if (contact.uri !in memberUris) conversation.removeContact(contact)
+    }
+
+    /**
+     * Loads everything the conversation list doesn't need: members with their roles and read positions,
+     * active calls, preferences, last notified message and last messages.
+     * The daemon and database are queried without holding the conversation lock, only the merge holds it.
+     */
+    private fun hydrate(account: Account, conversation: Conversation) {
+        if (conversation.hydration == Conversation.Hydration.Full) return
+        val accountId = account.accountId
+        val conversationId = conversation.uri.rawRingId
+        val loadPreview = try {
+            val members = JamiService.getConversationMembers(accountId, conversationId).toNative()
+            val activeCalls = JamiService.getActiveCalls(accountId, conversationId).toNative().map { Conversation.ActiveCall(it) }
+            // Conversation preferences (color, symbol, etc.)
+            val preferences = JamiService.getConversationPreferences(accountId, conversationId).toNative()
+            val lastNotified = mHistoryService.getLastMessageNotified(accountId, conversation.uri)
+            synchronized(conversation) {
+                if (conversation.hydration == Conversation.Hydration.Full) return
+                mergeMembers(account, conversation, members)
+                conversation.setActiveCalls(activeCalls)
+                conversation.updatePreferences(preferences)
+                conversation.setLastMessageNotified(lastNotified)
+                conversation.hydration = Conversation.Hydration.Full
+                hydrated.incrementAndGet()
+                conversation.loaded == null && conversation.aggregateHistory.isEmpty()
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Error hydrating conversation $conversationId", e)
+            false
+        }
+        // Replace the preview restored from the snapshot
+        if (loadPreview) loadMore(conversation, 8)
+    }
+
+    /** Loads the full state of [conversation] if needed, before it is opened */
+    fun hydrateConversation(conversation: Conversation): Completable =
+        if (conversation.hydration == Conversation.Hydration.Full) Completable.complete()
+        else completable("hydrateConversation") { getAccount(conversation.accountId)?.let { hydrate(it, conversation) } }
+
+    /**
+     * Queues [conversation] to be hydrated in the background, typically when it is shown in the conversation list.
+     * The most recently queued conversations are hydrated first.
+     */
+    fun prefetchConversation(conversation: Conversation) {
+        if (conversation.hydration == Conversation.Hydration.Full) return
+        synchronized(hydrationQueue) {
+            hydrationQueue.remove(conversation)
+            hydrationQueue.add(conversation)
+            if (hydrationQueue.size > HYDRATION_QUEUE_SIZE)
+                hydrationQueue.remove(hydrationQueue.first())
+            if (!hydrationScheduled) {
+                hydrationScheduled = true
+                bulkScheduler.scheduleDirect { drainHydrationQueue() }
+            }
+        }
+    }
+
+    private fun drainHydrationQueue() {
+        while (true) {
+            val conversation = synchronized(hydrationQueue) {
+                val last = hydrationQueue.lastOrNull()
+                if (last == null) hydrationScheduled = false
+                else hydrationQueue.remove(last)
+                last
+            } ?: return
+            getAccount(conversation.accountId)?.let { hydrate(it, conversation) }
+        }
+    }
+
+    /** Shows the conversation list of the last session until the daemon loaded the account */
+    private fun restoreSnapshot(account: Account) {
+        if (!account.isJami) return
+        val entries = mSnapshotStore.read(account.accountId) ?: return
+        val start = System.nanoTime()
+        val conversations = entries.mapNotNull { entry ->
+            try {
+                restoreConversation(account, entry)
+            } catch (e: Exception) {
+                Log.w(TAG, "Error restoring conversation ${entry.conversationId}", e)
+                null
+            }
+        }
+        account.conversationsStarted(conversations)
+        account.setHistoryLoaded()
+        Log.w(TAG, "${account.accountId} restored ${conversations.size} conversations in ${(System.nanoTime() - start) / 1_000_000} ms, "
+                + "first conversation list ${mSnapshotStore.elapsed} ms after start")
+    }
+
+    private fun restoreConversation(account: Account, entry: SmartListSnapshotStore.Entry): Conversation {
+        val conversation = account.newSwarm(entry.conversationId, Conversation.Mode.entries[entry.mode])
+        conversation.hydration = Conversation.Hydration.Summary
+        val infos = HashMap<String, String>()
+        entry.title?.let { infos["title"] = it }
+        entry.description?.let { infos["description"] = it }
+        conversation.infos = infos
+        conversation.setProfile(mVCardService.loadConversationProfile(infos))
+        for (member in entry.members) {
+            val uri = Uri.fromString(member.uri)
+            if (conversation.findContact(uri) == null)
+                conversation.addContact(account.getContactFromCache(uri), MemberRole.entries[member.role])
+        }
+        conversation.updatePreferences(entry.preferences)
+        entry.lastEvent?.let { preview ->
+            val interaction = when (val type = Interaction.InteractionType.entries[preview.type]) {
+                Interaction.InteractionType.TEXT ->
+                    TextMessage(preview.author, account.accountId, preview.timestamp, null, preview.body ?: "", preview.isIncoming)
+                Interaction.InteractionType.CALL -> Call(null, account.accountId, preview.author,
+                    if (preview.isIncoming) Call.Direction.INCOMING else Call.Direction.OUTGOING, preview.timestamp).apply {
+                    // A missed call has no duration
+                    if (preview.detail != 0L) duration = preview.detail
+                }
+                Interaction.InteractionType.CONTACT -> ContactEvent().apply {
+                    event = ContactEvent.Event.entries[preview.detail.toInt()]
+                }
+                Interaction.InteractionType.DATA_TRANSFER -> Interaction(account.accountId).apply {
+                    this.type = type
+                    transferStatus = TransferStatus.entries[preview.transferStatus]
+                }
+                // Invalid events are never shown
+                Interaction.InteractionType.INVALID -> null
+            } ?: return conversation
+            interaction.author = preview.author
+            interaction.timestamp = preview.timestamp
+            interaction.isIncoming = preview.isIncoming
+            interaction.mIsRead = if (preview.isRead) 1 else 0
+            conversation.setLastEventPreview(interaction)
+        }
+        return conversation
+    }
+
+    private fun snapshotEntry(conversation: Conversation): SmartListSnapshotStore.Entry {
+        val infos = conversation.infos
+        val preview = conversation.lastEvent?.let { e ->
+            val detail = when (e) {
+                is Call -> e.duration ?: 0L
+                is ContactEvent -> e.event.ordinal.toLong()
+                else -> 0L
+            }
+            SmartListSnapshotStore.Preview(e.type.ordinal, e.author, e.body, e.timestamp, e.isIncoming, e.transferStatus.ordinal, e.isRead, detail)
+        }
+        // Members and roles are updated concurrently by merges and hydration
+        val members = synchronized(conversation) {
+            conversation.contacts.map { SmartListSnapshotStore.Member(it.uri.uri, (conversation.roles[it.uri.uri] ?: MemberRole.UNKNOWN).ordinal) }
+        }
+        return SmartListSnapshotStore.Entry(conversation.uri.rawRingId,
+            conversation.mode.blockingFirst().ordinal,
+            infos["title"],
+            infos["description"],
+            infos["avatar"]?.hashCode() ?: 0,
+            members,
+            preview,
+            conversation.preferences)
+    }
+
+    /** Writes the snapshot of the conversation list when it settles after changes */
+    private fun startSnapshotWriter(account: Account) {
+        val writer = Observable.combineLatest(account.getConversationsSubject(), account.unreadConversations) { list, _ -> list }
+            .debounce(SNAPSHOT_DELAY_MS, TimeUnit.MILLISECONDS, Schedulers.io())
+            .subscribe { list ->
+                // A failed write must not end the writer, the next change writes the snapshot again
+                try {
+                    mSnapshotStore.write(account.accountId, list.filter { it.isSwarm }.map { snapshotEntry(it) })
+                } catch (e: Exception) {
+                    Log.e(TAG, "Can't write conversation list snapshot", e)
+                }
+            }
+        snapshotWriters.put(account.accountId, writer)?.dispose()
+    }
+
     private fun loadAccount(account: Account) {
+        mHistoryService.preload(account.accountId)
         if (!account.isJami) {
             return
         }
+        val timer = PhaseTimer()
         Log.w(TAG, "${account.accountId} loading devices")
-        account.devices = JamiService.getKnownRingDevices(account.accountId).toNative()
+        account.devices = timer.measure("devices") { JamiService.getKnownRingDevices(account.accountId).toNative() }
         Log.w(TAG, "${account.accountId} loading contacts")
-        account.setContacts(JamiService.getContacts(account.accountId).toNative())
-        val conversations: List<String> = JamiService.getConversations(account.accountId)
+        timer.measure("contacts") { account.setContacts(JamiService.getContacts(account.accountId).toNative()) }
+        val conversations: List<String> = timer.measure("list") { JamiService.getConversations(account.accountId) }
         Log.w(TAG, "${account.accountId} loading ${conversations.size} conversations: ")
-        for (conversationId in conversations) {
-            try {
-                val info: Map<String, String> = JamiService.conversationInfos(account.accountId, conversationId).toNativeFromUtf8()
-                //info.forEach { (key, value) -> Log.w(TAG, "conversation info: $key $value") }
-                val mode = if ("true" == info["syncing"]) Conversation.Mode.Syncing else Conversation.Mode.entries[info["mode"]?.toInt() ?: Conversation.Mode.Syncing.ordinal]
-                val conversation = account.newSwarm(conversationId, mode)
-                conversation.setProfile(mVCardService.loadConversationProfile(info))
-                JamiService.getActiveCalls(account.accountId, conversationId)
-                    .map { Conversation.ActiveCall(it) }
-                    .let { conversation.setActiveCalls(it) }
-
-                val preferences = // Load conversation preferences (color, symbol, etc.)
-                    JamiService.getConversationPreferences(account.accountId, conversationId)
-                conversation.updatePreferences(preferences)
-
-                conversation.setLastMessageNotified(mHistoryService.getLastMessageNotified(account.accountId, conversation.uri))
-                for (member in JamiService.getConversationMembers(account.accountId, conversationId)) {
-                    /*for (Map.Entry<String, String> i : member.entrySet()) {
-                        Log.w(TAG, "conversation member: " + i.getKey() + " " + i.getValue());
-                    }*/
-                    val uri = Uri.fromId(member["uri"]!!)
-                    val role = MemberRole.fromString(member["role"] ?: "")
-                    val lastDisplayed = member["lastDisplayed"]
-                    var contact = conversation.findContact(uri)
-                    if (contact == null) {
-                        contact = account.getContactFromCache(uri)
-                        if (role != MemberRole.BLOCKED) conversation.addContact(contact, role)
-                    }
-                    if (!lastDisplayed.isNullOrEmpty()) {
-                        if (contact.isUser) {
-                            conversation.setLastMessageRead(lastDisplayed)
-                        } else {
-                            conversation.setLastMessageDisplayed(uri.host, lastDisplayed)
-                        }
-                    }
+        // Fetch the conversations in parallel and merge them in order, showing the list after the first chunk
+        loadOrdered(conversations, loadConcurrency, LOAD_CHUNK_SIZE, Schedulers.io(),
+            { id -> timer.measure("fetch") { fetchSwarmInfo(account, id) } },
+            { chunk ->
+                timer.measure("merge") {
+                    account.conversationsStarted(chunk.mapNotNull { mergeSwarmInfo(account, it) })
+                    account.setHistoryLoaded()
                 }
-                if (!conversation.lastElementLoadedSubject.hasValue())
-                    conversation.lastElementLoadedSubject.onSuccess(loadMore(conversation, 8).ignoreElement().cache())
-                account.conversationStarted(conversation)
-            } catch (e: Exception) {
-                Log.w(TAG, "Error loading conversation", e)
-            }
-        }
+            })
         Log.w(TAG, "${account.accountId} loading conversation requests")
+        val requestsStart = System.nanoTime()
         for (requestData in JamiService.getConversationRequests(account.accountId).map { it.toNativeFromUtf8() }) {
             try {
                 /* for ((key, value) in requestData.entries)
@@ -342,7 +587,17 @@ class AccountService(
                 Log.w(TAG, "Error loading request", e)
             }
         }
+        timer.add("requests", System.nanoTime() - requestsStart)
+        // Conversations restored from the snapshot that were removed since
+        mSnapshotStore.read(account.accountId)?.let { entries ->
+            val current = HashSet(conversations)
+            for (entry in entries)
+                if (entry.conversationId !in current) account.removeSwarm(entry.conversationId)
+        }
         account.setHistoryLoaded()
+        startSnapshotWriter(account)
+        lastLoadTimings = timer.durations()
+        Log.w(TAG, "${account.accountId} loaded ${conversations.size} conversations with concurrency $loadConcurrency: $timer")
     }
 
     fun getNewAccountName(prefix: String): String {
@@ -367,7 +622,7 @@ class AccountService(
      * @return the created Account
      */
     fun addAccount(map: Map<String, String>): Observable<Account> =
-        Single.fromCallable {
+        single("addAccount") {
             JamiService.addAccount(StringMap.toSwig(map)).apply {
             if (isEmpty()) throw RuntimeException("Can't create account.") }
         }
@@ -375,7 +630,6 @@ class AccountService(
             Observable.merge(observableAccountList.mapOptional { Optional.ofNullable(it.firstOrNull { a -> a.accountId == accountId }) },
                 observableAccounts.filter { account: Account -> account.accountId == accountId })
         }
-        .subscribeOn(scheduler)
 
     /**
      * @return the Account from the local cache that matches the accountId
@@ -412,31 +666,32 @@ class AccountService(
         }
 
     fun subscribeBuddy(accountID: String, uri: String, flag: Boolean) {
-        mExecutor.execute { JamiService.subscribeBuddy(accountID, uri, flag) }
+        execute("subscribeBuddy") { JamiService.subscribeBuddy(accountID, uri, flag) }
     }
 
     fun setMessageDisplayed(accountId: String?, conversationUri: Uri, messageId: String) {
-        mExecutor.execute { JamiService.setMessageDisplayed(accountId, conversationUri.uri, messageId, 3) }
+        execute("setMessageDisplayed") { JamiService.setMessageDisplayed(accountId, conversationUri.uri, messageId, 3) }
     }
 
     fun startConversation(accountId: String, initialMembers: Collection<String>): Single<Conversation> =
-        getAccountSingle(accountId).map { account ->
-            Log.w(TAG, "startConversation")
-            val id = JamiService.startConversation(accountId)
-            val conversation = account.getSwarm(id)!!
-            for (member in initialMembers) {
-                Log.w(TAG, "addConversationMember $member")
-                JamiService.addConversationMember(accountId, id, member)
-                conversation.addContact(account.getContactFromCache(member))
+        getAccountSingle(accountId).flatMap { account ->
+            single("startConversation") {
+                Log.w(TAG, "startConversation")
+                val id = JamiService.startConversation(accountId)
+                val conversation = account.getSwarm(id)!!
+                for (member in initialMembers) {
+                    Log.w(TAG, "addConversationMember $member")
+                    JamiService.addConversationMember(accountId, id, member)
+                    conversation.addContact(account.getContactFromCache(member))
+                }
+                account.conversationStarted(conversation)
+                Log.w(TAG, "loadConversationMessages")
+                conversation
             }
-            account.conversationStarted(conversation)
-            Log.w(TAG, "loadConversationMessages")
-            conversation
-        }.subscribeOn(scheduler)
+        }
 
     fun removeConversation(accountId: String, conversationUri: Uri): Completable =
-        Completable.fromAction { JamiService.removeConversation(accountId, conversationUri.rawRingId) }
-            .subscribeOn(scheduler)
+        completable("removeConversation") { JamiService.removeConversation(accountId, conversationUri.rawRingId) }
 
     private fun loadConversationHistory(accountId: String, conversationUri: Uri, root: String, n: Long) =
         Schedulers.io().scheduleDirect { JamiService.loadConversation(accountId, conversationUri.rawRingId, root, n) }
@@ -450,10 +705,12 @@ class AccountService(
                 return Single.just(conversation)
             }
             conversation.loading?.let { return it }
+            // Older messages evicted from the history window are loaded again from the oldest one in memory
+            val root = conversation.getOlderHistoryRoot() ?: return Single.just(conversation)
             val ret = SingleSubject.create<Conversation>()
             conversation.loading = ret
             // load n messages before the oldest one in the history
-            loadConversationHistory(conversation.accountId, conversation.uri, "", n.toLong())
+            loadConversationHistory(conversation.accountId, conversation.uri, root, n.toLong())
             return ret
         }
     }
@@ -495,7 +752,7 @@ class AccountService(
     }
 
     fun sendConversationMessage(accountId: String, conversationUri: Uri, txt: String, replyTo: String?, flag: Int = 0) {
-        mExecutor.execute {
+        execute("sendConversationMessage") {
             Log.w(TAG, "sendConversationMessage ${conversationUri.rawRingId} $txt $replyTo $flag")
             JamiService.sendMessage(accountId, conversationUri.rawRingId, txt, replyTo ?: "", flag)
         }
@@ -517,7 +774,7 @@ class AccountService(
      * @param accountOrder The ordered list of account ids
      */
     private fun setAccountOrder(accountOrder: List<String>) {
-        mExecutor.execute {
+        execute("setAccountOrder") {
             val order = StringBuilder()
             for (accountId in accountOrder) {
                 order.append(accountId)
@@ -527,12 +784,50 @@ class AccountService(
         }
     }
 
+    private fun pendingAccountCommands(accountId: String): BehaviorSubject<Int> = synchronized(pendingAccountCommands) {
+        pendingAccountCommands.getOrPut(accountId) { BehaviorSubject.createDefault(0) }
+    }
+
+    private fun addPendingAccountCommands(accountIds: List<String>, delta: Int) {
+        for (accountId in accountIds) {
+            val pending = pendingAccountCommands(accountId)
+            synchronized(pending) { pending.onNext(pending.value!! + delta) }
+        }
+    }
+
+    /**
+     * Runs the command [name] changing the configuration of [accountIds] on the account lane,
+     * counted until it ran so that [awaitAccountCommands] can wait for it.
+     */
+    private inline fun executeAccountCommand(name: String, accountIds: List<String>, crossinline block: () -> Unit) {
+        addPendingAccountCommands(accountIds, 1)
+        execute(name) {
+            try {
+                block()
+            } finally {
+                addPendingAccountCommands(accountIds, -1)
+            }
+        }
+    }
+
+    /**
+     * Completes once no configuration command of the account (details, credentials, registration, activation)
+     * is queued or running.
+     * Lets commands run on other lanes, like placing a call, follow the configuration commands they depend on
+     * without waiting behind the rest of the account lane.
+     */
+    fun awaitAccountCommands(accountId: String): Completable =
+        pendingAccountCommands(accountId)
+            .filter { it == 0 }
+            .firstElement()
+            .ignoreElement()
+
     /**
      * Sets the account details in the Daemon
      */
     fun setAccountDetails(accountId: String, map: Map<String, String>) {
         Log.i(TAG, "setAccountDetails() $accountId")
-        mExecutor.execute { JamiService.setAccountDetails(accountId, StringMap.toSwig(map)) }
+        executeAccountCommand("setAccountDetails", listOf(accountId)) { JamiService.setAccountDetails(accountId, StringMap.toSwig(map)) }
     }
 
     fun migrateAccount(accountId: String, password: String): Single<String> {
@@ -543,27 +838,27 @@ class AccountService(
             .doOnSubscribe {
                 val details = getAccount(accountId)!!.details
                 details[ConfigKey.ARCHIVE_PASSWORD.key] = password
-                mExecutor.execute { JamiService.setAccountDetails(accountId, StringMap.toSwig(details)) }
+                executeAccountCommand("migrateAccount", listOf(accountId)) { JamiService.setAccountDetails(accountId, StringMap.toSwig(details)) }
             }
             .subscribeOn(scheduler)
     }
 
     fun setAccountEnabled(accountId: String, active: Boolean) {
-        mExecutor.execute { JamiService.sendRegister(accountId, active) }
+        executeAccountCommand("setAccountEnabled", listOf(accountId)) { JamiService.sendRegister(accountId, active) }
     }
 
     /**
      * Sets the activation state of the account in the Daemon
      */
     fun setAccountActive(accountId: String, active: Boolean) {
-        mExecutor.execute { JamiService.setAccountActive(accountId, active) }
+        executeAccountCommand("setAccountActive", listOf(accountId)) { JamiService.setAccountActive(accountId, active) }
     }
 
     /**
      * Sets the activation state of all the accounts in the Daemon
      */
     fun setAccountsActive(active: Boolean) {
-        mExecutor.execute {
+        executeAccountCommand("setAccountsActive", mAccountList.map { it.accountId }) {
             Log.i(TAG, "setAccountsActive() running... $active")
             for (a in mAccountList) {
                 // If the proxy is enabled we can considered the account
@@ -591,14 +886,14 @@ class AccountService(
      */
     fun getAccountTemplate(accountType: String): Single<HashMap<String, String>> {
         Log.i(TAG, "getAccountTemplate() $accountType")
-        return Single.fromCallable {
+        return single("getAccountTemplate") {
             JamiService.getAccountTemplate(accountType).toNative()
         }.map { accountDetails ->
             customNameServer?.let { // Use custom name server (only for testing)
                 if (it.isNotEmpty()) accountDetails[ConfigKey.RINGNS_HOST.key] = it
             }
             accountDetails
-        }.subscribeOn(scheduler)
+        }
     }
 
     /**
@@ -606,8 +901,9 @@ class AccountService(
      */
     fun removeAccount(accountId: String) {
         Log.i(TAG, "removeAccount() $accountId")
-        mExecutor.execute { JamiService.removeAccount(accountId) }
+        execute("removeAccount") { JamiService.removeAccount(accountId) }
         mHistoryService.clearHistory(accountId).subscribe()
+        mNameCache.delete(accountId)
     }
 
     /**
@@ -627,7 +923,7 @@ class AccountService(
             }
             .doOnSubscribe {
                 Log.i(TAG, "exportOnRing() $accountId")
-                mExecutor.execute { JamiService.exportOnRing(accountId, password) }
+                execute("exportOnRing") { JamiService.exportOnRing(accountId, password) }
             }
             .subscribeOn(Schedulers.io())
 
@@ -637,7 +933,7 @@ class AccountService(
     fun getKnownRingDevices(accountId: String): Map<String, String> {
         Log.i(TAG, "getKnownRingDevices() $accountId")
         return try {
-             mExecutor.submit<HashMap<String, String>> {
+             submit<HashMap<String, String>>("getKnownRingDevices") {
                 JamiService.getKnownRingDevices(accountId).toNative()
             }.get()
         } catch (e: Exception) {
@@ -656,7 +952,7 @@ class AccountService(
             .filter { r: DeviceRevocationResult -> r.accountId == accountId && r.deviceId == deviceId }
             .firstOrError()
             .map { r: DeviceRevocationResult -> r.code }
-            .doOnSubscribe { mExecutor.execute {
+            .doOnSubscribe { execute("revokeDevice") {
                 JamiService.revokeDevice(accountId, deviceId, scheme, password)
             }}
             .subscribeOn(Schedulers.io())
@@ -667,7 +963,7 @@ class AccountService(
      */
     fun renameDevice(accountId: String, newName: String) {
         val account = getAccount(accountId)
-        mExecutor.execute {
+        execute("renameDevice") {
             Log.i(TAG, "renameDevice() thread running... $newName")
             val details = JamiService.getAccountDetails(accountId)
             details[ConfigKey.ACCOUNT_DEVICE_NAME.key] = newName
@@ -678,19 +974,19 @@ class AccountService(
     }
 
     fun exportToFile(accountId: String, absolutePath: String, scheme: String, password: String): Completable =
-        Completable.fromAction {
+        completable("exportToFile") {
             Log.w(TAG, "exportToFile() $accountId $absolutePath $scheme")
             require(JamiService.exportToFile(accountId, absolutePath, scheme, password)) { "Can't export archive" }
-        }.subscribeOn(scheduler)
+        }
 
     /**
      * @param accountId   id of the account
      * @param oldPassword old account password
      */
     fun setAccountPassword(accountId: String, oldPassword: String, newPassword: String): Completable =
-        Completable.fromAction {
+        completable("setAccountPassword") {
             require(JamiService.changeAccountPassword(accountId, oldPassword, newPassword)) { "Can't change password" }
-        }.subscribeOn(scheduler)
+        }
 
     fun getAccountPasswordKey(accountId: String, password: String): Single<ByteArray> =
         Single.fromCallable { JamiService.getPasswordKey(accountId, password).bytes }
@@ -700,7 +996,7 @@ class AccountService(
      * Sets the active codecs list of the account in the Daemon
      */
     fun setActiveCodecList(accountId: String, codecs: List<Long>) {
-        mExecutor.execute {
+        execute("setActiveCodecList") {
             val list = UintVect()
             list.reserve(codecs.size)
             list.addAll(codecs)
@@ -725,7 +1021,7 @@ class AccountService(
         privateKeyPass: String
     ): Map<String, String>? {
         try {
-            return mExecutor.submit<HashMap<String, String>> {
+            return submit<HashMap<String, String>>("validateCertificatePath") {
                 Log.i(TAG, "validateCertificatePath() running...")
                 JamiService.validateCertificatePath(accountID, certificatePath, privateKeyPath, privateKeyPass, "").toNative()
             }.get()
@@ -737,7 +1033,7 @@ class AccountService(
 
     fun validateCertificate(accountId: String, certificate: String): Map<String, String>? {
         try {
-            return mExecutor.submit<HashMap<String, String>> {
+            return submit<HashMap<String, String>>("validateCertificate") {
                 Log.i(TAG, "validateCertificate() running...")
                 JamiService.validateCertificate(accountId, certificate).toNative()
             }.get()
@@ -749,7 +1045,7 @@ class AccountService(
 
     fun getCertificateDetailsPath(accountId: String, certificatePath: String): Map<String, String>? {
         try {
-            return mExecutor.submit<HashMap<String, String>> {
+            return submit<HashMap<String, String>>("getCertificateDetailsPath") {
                 Log.i(TAG, "getCertificateDetailsPath() running...")
                 JamiService.getCertificateDetails(accountId, certificatePath).toNative()
             }.get()
@@ -761,7 +1057,7 @@ class AccountService(
 
     fun getCertificateDetails(accountId: String, certificateRaw: String): Map<String, String>? {
         try {
-            return mExecutor.submit<HashMap<String, String>> {
+            return submit<HashMap<String, String>>("getCertificateDetails") {
                 Log.i(TAG, "getCertificateDetails() running...")
                 JamiService.getCertificateDetails(accountId, certificateRaw).toNative()
             }.get()
@@ -785,7 +1081,7 @@ class AccountService(
      */
     fun getCredentials(accountId: String): List<Map<String, String>>? {
         try {
-            return mExecutor.submit<ArrayList<Map<String, String>>> {
+            return submit<ArrayList<Map<String, String>>>("getCredentials") {
                 Log.i(TAG, "getCredentials() running...")
                 JamiService.getCredentials(accountId).toNative()
             }.get()
@@ -800,7 +1096,7 @@ class AccountService(
      */
     fun setCredentials(accountId: String, credentials: List<Map<String, String>>) {
         Log.i(TAG, "setCredentials() $accountId")
-        mExecutor.execute { JamiService.setCredentials(accountId, SwigNativeConverter.toSwig(credentials)) }
+        executeAccountCommand("setCredentials", listOf(accountId)) { JamiService.setCredentials(accountId, SwigNativeConverter.toSwig(credentials)) }
     }
 
     /**
@@ -808,7 +1104,7 @@ class AccountService(
      */
     fun registerAllAccounts() {
         Log.i(TAG, "registerAllAccounts()")
-        mExecutor.execute { registerAllAccounts() }
+        execute("registerAllAccounts") { registerAllAccounts() }
     }
 
     /**
@@ -828,7 +1124,7 @@ class AccountService(
      */
     fun registerName(account: String, name: String, scheme: String, password: String) {
         Log.i(TAG, "registerName()")
-        mExecutor.execute { JamiService.registerName(account, name, scheme, password) }
+        execute("registerName") { JamiService.registerName(account, name, scheme, password) }
     }
     /* contact requests */
     /**
@@ -836,7 +1132,7 @@ class AccountService(
      */
     fun getTrustRequests(accountId: String): List<Map<String, String>>? {
         try {
-            return mExecutor.submit<ArrayList<Map<String, String>>> {
+            return submit<ArrayList<Map<String, String>>>("getTrustRequests") {
                 JamiService.getTrustRequests(accountId).toNative()
             }.get()
         } catch (e: Exception) {
@@ -850,7 +1146,7 @@ class AccountService(
      */
     fun acceptTrustRequest(accountId: String, from: Uri) {
         Log.i(TAG, "acceptRequest() $accountId $from")
-        mExecutor.execute {
+        execute("acceptTrustRequest") {
             if (from.isSwarm)
                 JamiService.acceptConversationRequest(accountId, from.rawRingId)
             else {
@@ -876,7 +1172,7 @@ class AccountService(
                 removed = account.removeRequest(contactUri) != null
                 mHistoryService.clearHistory(contactUri.rawRingId, accountId, true).subscribe()
             }
-            mExecutor.execute { JamiService.discardTrustRequest(accountId, contactUri.rawRingId) }
+            execute("discardTrustRequest") { JamiService.discardTrustRequest(accountId, contactUri.rawRingId) }
             removed
         }
 
@@ -885,7 +1181,7 @@ class AccountService(
      */
     fun sendTrustRequest(conversation: Conversation, to: Uri, message: Blob = Blob()) {
         Log.i(TAG, "sendTrustRequest() " + conversation.accountId + " " + to)
-        mExecutor.execute { JamiService.sendTrustRequest(conversation.accountId, to.rawRingId, message) }
+        execute("sendTrustRequest") { JamiService.sendTrustRequest(conversation.accountId, to.rawRingId, message) }
     }
 
     /**
@@ -893,7 +1189,7 @@ class AccountService(
      */
     fun addContact(accountId: String, uri: String) {
         Log.i(TAG, "addContact() $accountId $uri")
-        mExecutor.execute { JamiService.addContact(accountId, uri) }
+        execute("addContact") { JamiService.addContact(accountId, uri) }
     }
 
     /**
@@ -901,31 +1197,62 @@ class AccountService(
      */
     fun removeContact(accountId: String, uri: String, block: Boolean) {
         Log.i(TAG, "removeContact() $accountId $uri block:$block")
-        mExecutor.execute { JamiService.removeContact(accountId, uri, block) }
+        execute("removeContact") { JamiService.removeContact(accountId, uri, block) }
     }
 
+    /**
+     * Looks up the name in the name directory.
+     * Lookups on the default name server are cached: cached results are returned synchronously.
+     */
     fun findRegistrationByName(account: String, nameserver: String, name: String): Single<RegisteredName> =
         if (name.isEmpty())
             Single.just(RegisteredName(account, name))
-        else registeredNames
+        else if (nameserver.isEmpty())
+            mNameCache.lookupName(account, name, requestName(account, nameserver, name))
+        else requestName(account, nameserver, name)
+
+    /**
+     * Looks up the name in the default name server to check if it can be registered.
+     * Only found names are answered from the cache.
+     */
+    fun checkNameAvailability(account: String, name: String): Single<RegisteredName> =
+        if (name.isEmpty())
+            Single.just(RegisteredName(account, name))
+        else mNameCache.lookupNameAvailability(account, name, requestName(account, "", name))
+
+    private fun requestName(account: String, nameserver: String, name: String): Single<RegisteredName> =
+        registeredNames
             .filter { r: RegisteredName -> account == r.accountId && name == r.name }
             .firstOrError()
             .doOnSubscribe {
-                mExecutor.execute { JamiService.lookupName(account, nameserver, name) }
+                execute("requestName") { JamiService.lookupName(account, nameserver, name) }
             }
             .subscribeOn(scheduler)
 
+    /**
+     * Reverse looks up the address in the name directory.
+     * Lookups on the default name server are cached: cached results are returned synchronously.
+     */
     fun findRegistrationByAddress(account: String, nameserver: String, address: String): Single<RegisteredName> =
         if (address.isEmpty())
             Single.error(IllegalArgumentException())
-        else registeredNames
+        else if (nameserver.isEmpty())
+            mNameCache.lookupAddress(account, address, requestAddress(account, nameserver, address))
+        else requestAddress(account, nameserver, address)
+
+    private fun requestAddress(account: String, nameserver: String, address: String): Single<RegisteredName> =
+        registeredNames
             .filter { r: RegisteredName -> account == r.accountId && address == r.address }
             .firstOrError()
             .doOnSubscribe {
-                mExecutor.execute { JamiService.lookupAddress(account, nameserver, address) }
+                execute("requestAddress") { JamiService.lookupAddress(account, nameserver, address) }
             }
             .subscribeOn(scheduler)
 
+    /** Name directory cache statistics */
+    val nameCacheStats: NameDirectoryCache.Stats
+        get() = mNameCache.stats()
+
     fun searchUser(account: String, query: String): Single<UserSearchResult> {
         if (query.isEmpty()) {
             return Single.just(UserSearchResult(account, query))
@@ -939,7 +1266,7 @@ class AccountService(
             .filter { r: UserSearchResult -> account == r.accountId && encodedUrl == r.query }
             .firstOrError()
             .doOnSubscribe {
-                mExecutor.execute { JamiService.searchUser(account, encodedUrl) }
+                execute("searchUser") { JamiService.searchUser(account, encodedUrl) }
             }
             .subscribeOn(scheduler)
     }
@@ -949,7 +1276,7 @@ class AccountService(
      */
     fun lookupAddress(account: String, nameserver: String, address: String) {
         //Log.w(TAG, "lookupAddress $address")
-        mExecutor.execute { JamiService.lookupAddress(account, nameserver, address) }
+        execute("lookupAddress") { JamiService.lookupAddress(account, nameserver, address) }
     }
 
     fun getConversationByUri(account: Account, conversationUri: Uri): Single<Conversation> =
@@ -997,16 +1324,16 @@ class AccountService(
 
     fun pushNotificationReceived(from: String, data: Map<String, String>) {
         // Log.i(TAG, "pushNotificationReceived() $data");
-        mExecutor.execute { JamiService.pushNotificationReceived(from, StringMap.toSwig(data)) }
+        execute("pushNotificationReceived") { JamiService.pushNotificationReceived(from, StringMap.toSwig(data)) }
     }
 
     fun setPushNotificationToken(pushNotificationToken: String) {
         Log.i(TAG, "setPushNotificationToken()");
-        mExecutor.execute { JamiService.setPushNotificationToken(pushNotificationToken) }
+        execute("setPushNotificationToken") { JamiService.setPushNotificationToken(pushNotificationToken) }
     }
     fun setPushNotificationConfig(token: String = "", topic: String = "", platform: String = "") {
         Log.i(TAG, "setPushNotificationConfig() $token $topic $platform");
-        mExecutor.execute { JamiService.setPushNotificationConfig(StringMap().apply {
+        execute("setPushNotificationConfig") { JamiService.setPushNotificationConfig(StringMap().apply {
             put("token", token)
             put("topic", topic)
             put("platform", platform)
@@ -1049,6 +1376,7 @@ class AccountService(
         val account = getAccount(accountId) ?: return
         Log.d(TAG, "accountDetailsChanged: $accountId ${details.size}")
         account.setDetails(details)
+        trackConnections(account)
         observableAccounts.onNext(account)
     }
 
@@ -1156,6 +1484,8 @@ class AccountService(
         acc.setVolatileDetails(JamiService.getVolatileAccountDetails(acc.accountId).toNative())
         if (state == 0) {
             acc.setDetail(ConfigKey.ACCOUNT_REGISTERED_NAME, name)
+            mNameCache.forgetName(name)
+            acc.username?.let { mNameCache.put(RegisteredName(accountId, name, it, LookupState.Success)) }
         }
         observableAccounts.onNext(acc)
     }
@@ -1201,7 +1531,7 @@ class AccountService(
     }
 
     fun addConversationMembers(accountId: String, conversationId: String, uris: List<Uri>) =
-        mExecutor.execute {
+        execute("addConversationMembers") {
             for (uri in uris)
                 JamiService.addConversationMember(accountId, conversationId, uri.rawRingId)
         }
@@ -1222,7 +1552,8 @@ class AccountService(
                 }
             }
             //account.addContact(uri, confirmed);
-            if (account.isEnabled) lookupAddress(accountId, "", uri)
+            if (account.isEnabled && !mNameCache.containsAddress(accountId, uri))
+                lookupAddress(accountId, "", uri)
         }
     }
 
@@ -1236,7 +1567,8 @@ class AccountService(
 
     fun registeredNameFound(accountId: String, state: Int, address: String, name: String) {
         try {
-            registeredNameSubject.onNext(RegisteredName(accountId, name, address, LookupState.fromInt(state)))
+            val result = RegisteredName(accountId, name, address, LookupState.fromInt(state))
+            registeredNameSubject.onNext(result)
         } catch (e: Exception) {
             Log.w(TAG, "registeredNameFound exception", e)
         }
@@ -1391,12 +1723,13 @@ class AccountService(
             getAccount(accountId)?.let { account -> account.getSwarm(conversationId)?.let { conversation ->
                 val interactions: List<Interaction>
                 val subject = synchronized(conversation) {
-                    interactions = messages.map { addMessage(account, conversation, it, false) }
+                    interactions = messages.map { getInteractionFromSwarmMessage(account, conversation, it) }
+                    conversation.addSwarmElements(interactions)
                     conversation.stopLoading()
                 }
                 subject?.onSuccess(conversation)
                 task?.onSuccess(interactions)
-                account.conversationChanged()
+                account.conversationUpdated(conversation)
             }}
         } catch (e: Exception) {
             Log.e(TAG, "Exception loading message", e)
@@ -1404,7 +1737,11 @@ class AccountService(
     }
 
     fun conversationProfileUpdated(accountId: String, conversationId: String, info: StringMap) {
-        getAccount(accountId)?.getSwarm(conversationId)?.setProfile(mVCardService.loadConversationProfile(info.toNativeFromUtf8()))
+        getAccount(accountId)?.getSwarm(conversationId)?.let { conversation ->
+            val infos = info.toNativeFromUtf8()
+            conversation.infos = infos
+            conversation.setProfile(mVCardService.loadConversationProfile(infos))
+        }
     }
 
     fun conversationPreferencesUpdated(accountId: String, conversationId: String, preferences: StringMap) {
@@ -1464,6 +1801,7 @@ class AccountService(
         }
         val conversation = c
         synchronized(conversation) {
+            conversation.infos = info
             conversation.setProfile(mVCardService.loadConversationProfile(info))
             // Making sure to add contacts before changing the mode
             for (member in JamiService.getConversationMembers(accountId, conversationId)) {
@@ -1515,6 +1853,8 @@ class AccountService(
 
     fun swarmMessageReceived(accountId: String, conversationId: String, message: SwarmMessage) {
         getAccount(accountId)?.let { account -> account.getSwarm(conversationId)?.let { conversation ->
+            // Hydrated in the background, notifications wait for it (see ConversationFacade)
+            prefetchConversation(conversation)
             synchronized(conversation) {
                 val interaction = addMessage(account, conversation, message, true)
                 account.conversationUpdated(conversation)
@@ -1556,7 +1896,7 @@ class AccountService(
     }
 
     fun sendFile(conversation: Conversation, file: File) {
-        mExecutor.execute { JamiService.sendFile(conversation.accountId, conversation.uri.rawRingId,file.absolutePath, file.name, "") }
+        execute("sendFile") { JamiService.sendFile(conversation.accountId, conversation.uri.rawRingId,file.absolutePath, file.name, "") }
     }
 
     fun acceptFileTransfer(accountId: String, conversationUri: Uri, messageId: String?, fileId: String) {
@@ -1580,28 +1920,15 @@ class AccountService(
 
     fun cancelDataTransfer(accountId: String, conversationId: String, messageId: String?, fileId: String) {
         Log.i(TAG, "cancelDataTransfer() id=$fileId")
-        mExecutor.execute { JamiService.cancelDataTransfer(accountId, conversationId, fileId) }
-    }
-
-    private inner class DataTransferRefreshTask(
-        private val account: Account,
-        private val conversation: Conversation,
-        private val toUpdate: DataTransfer
-    ) : Runnable {
-        val scheduledTask: ScheduledFuture<*> = mExecutor.scheduleWithFixedDelay(
-            this,
-            DATA_TRANSFER_REFRESH_PERIOD,
-            DATA_TRANSFER_REFRESH_PERIOD, TimeUnit.MILLISECONDS
-        )
-        override fun run() {
-            synchronized(toUpdate) {
-                if (toUpdate.transferStatus == Interaction.TransferStatus.TRANSFER_ONGOING) {
-                    dataTransferEvent(account, conversation, toUpdate.messageId, toUpdate.fileId!!, 5)
-                } else {
-                    scheduledTask.cancel(false)
-                }
-            }
-        }
+        execute("cancelDataTransfer") { JamiService.cancelDataTransfer(accountId, conversationId, fileId) }
+    }
+
+    private fun transferProgress(conversation: Conversation, transfer: DataTransfer): Long {
+        val paths = arrayOfNulls<String>(1)
+        val progressA = LongArray(1)
+        val totalA = LongArray(1)
+        JamiService.fileTransferInfo(conversation.accountId, conversation.uri.rawRingId, transfer.fileId, paths, totalA, progressA)
+        return progressA[0]
     }
 
     fun dataTransferEvent(accountId: String, conversationId: String, interactionId: String, fileId: String, eventCode: Int) {
@@ -1630,7 +1957,7 @@ class AccountService(
             transfer.bytesProgress = progress
             if (oldState != transferStatus) {
                 if (transferStatus == Interaction.TransferStatus.TRANSFER_ONGOING) {
-                    DataTransferRefreshTask(account, conversation, transfer)
+                    transferPoller.add(conversation, transfer)
                 } else if (transferStatus.isError) {
                     if (!transfer.isOutgoing) {
                         val tmpPath = mDeviceRuntimeService.getTemporaryPath(
@@ -1650,7 +1977,7 @@ class AccountService(
     }
 
     fun setProxyEnabled(enabled: Boolean) {
-        mExecutor.execute {
+        execute("setProxyEnabled") {
             for (acc in mAccountList) {
                 if (acc.isJami && acc.isDhtProxyEnabled != enabled) {
                     Log.d(TAG, (if (enabled) "Enabling" else "Disabling") + " proxy for account " + acc.accountId)
@@ -1679,39 +2006,53 @@ class AccountService(
         val remoteAddress: String?
     )
 
-    fun monitorConnections(): Observable<Pair<String, List<Pair<String, List<DeviceConnection>>>>> =
+    private val connectionMonitor = ConnectionMonitor(bulkScheduler) { accountId ->
+        JamiService.getConnectionList(accountId, "")
+    }
+
+    /** Connection churn of the account since startup, polled in the background while the account is enabled */
+    fun getConnectionChurn(accountId: String): ConnectionMonitor.Churn = connectionMonitor.churn(accountId)
+
+    /** Keeps counting the connection churn of enabled Jami accounts all session long */
+    private fun trackConnections(account: Account) {
+        if (account.isJami && account.isEnabled) connectionMonitor.track(account.accountId)
+        else connectionMonitor.untrack(account.accountId)
+    }
+
+    /** Emits the connections of the current account when they change */
+    fun monitorConnections(): Observable<ConnectionMonitor.Snapshot> =
         currentAccountSubject
-            .switchMap { monitorConnections(it.accountId) }
-
-    private fun monitorConnections(accountId: String): Observable<Pair<String, List<Pair<String, List<DeviceConnection>>>>> =
-        Observable.interval(0, 1, TimeUnit.SECONDS, scheduler)
-            .map { _ ->
-                Pair(accountId, JamiService.getConnectionList(accountId, "")
-                    .mapNotNull { it: Map<String, String?> ->
-                        val status = ConnectionStatus.fromInt(it["status"]?.toInt() ?: 4)
-                        if (status == ConnectionStatus.Waiting || status == ConnectionStatus.Connecting) {
-                            null
-                        } else {
-                            DeviceConnection(
-                                accountId=accountId,
-                                id=it["id"]!!,
-                                device=it["device"]!!,
-                                status=status,
-                                peer=it["peer"]!!,
-                                remoteAddress=it["remoteAddress"]
-                            )
-                        }
-                    }
-                    .groupBy { it.peer }
-                    .map { Pair(it.key, it.value) }
-                    .sortedBy { it.first }
-                )
-            }
+            .switchMap { connectionMonitor.monitor(it.accountId) }
+
+    /** Runs the command [name] on the account lane, recording how long it waited and ran */
+    private inline fun execute(name: String, crossinline block: () -> Unit) {
+        val enqueued = System.nanoTime()
+        mExecutor.execute { mLatency.measure(name, enqueued) { block() } }
+    }
+
+    private inline fun <T> submit(name: String, crossinline block: () -> T): Future<T> {
+        val enqueued = System.nanoTime()
+        return mExecutor.submit<T> { mLatency.measure(name, enqueued) { block() } }
+    }
+
+    /** Runs the command [name] on the account lane once subscribed to, recording how long it waited and ran */
+    private fun <T : Any> single(name: String, block: () -> T): Single<T> = Single.defer {
+        val enqueued = System.nanoTime()
+        Single.fromCallable { mLatency.measure(name, enqueued, block) }.subscribeOn(scheduler)
+    }
+
+    private fun completable(name: String, block: () -> Unit): Completable = single(name, block).ignoreElement()
 
     companion object {
         private val TAG = AccountService::class.java.simpleName
         private const val VCARD_CHUNK_SIZE = 1000
-        private const val DATA_TRANSFER_REFRESH_PERIOD: Long = 500
+        private const val LOAD_CONCURRENCY = 8
+        // Conversations merged in the account at once while loading
+        private const val LOAD_CHUNK_SIZE = 32
+        // Maximum number of conversations waiting to be hydrated, older requests are dropped
+        private const val HYDRATION_QUEUE_SIZE = 64
+        // Delay after the last change of the conversation list before writing its snapshot
+        private const val SNAPSHOT_DELAY_MS = 2000L
         private const val PIN_GENERATION_SUCCESS = 0
         private const val PIN_GENERATION_WRONG_PASSWORD = 1
         private const val PIN_GENERATION_NETWORK_ERROR = 2
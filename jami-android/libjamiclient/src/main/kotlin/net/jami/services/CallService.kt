@@ -17,39 +17,55 @@
 package net.jami.services
 
 import io.reactivex.rxjava3.core.Completable
+import io.reactivex.rxjava3.core.Maybe
 import io.reactivex.rxjava3.core.Observable
 import io.reactivex.rxjava3.core.Single
 import io.reactivex.rxjava3.schedulers.Schedulers
-import io.reactivex.rxjava3.subjects.PublishSubject
+import io.reactivex.rxjava3.subjects.BehaviorSubject
 import net.jami.daemon.JamiService
 import net.jami.daemon.StringMap
 import net.jami.daemon.VectMap
 import net.jami.model.Call
 import net.jami.model.Call.CallStatus
 import net.jami.model.Conference
+import net.jami.model.Contact
+import net.jami.model.ContactViewModel
 import net.jami.model.Conference.ParticipantInfo
 import net.jami.model.Media
 import net.jami.model.Uri
+import net.jami.utils.KeyedEventBus
+import net.jami.utils.LatencyTracker
+import net.jami.utils.LatestUpdateResolver
 import net.jami.utils.Log
 import java.util.*
+import java.util.concurrent.Future
 import java.util.concurrent.ScheduledExecutorService
 
+/**
+ * Call commands run on [mExecutor], the call lane, so they never wait behind messaging work.
+ * Commands that need the account configuration to be applied first (placing a call, account messages)
+ * wait for the pending account commands with [AccountService.awaitAccountCommands] before being queued.
+ * The wait and run time of each command is recorded in [mLatency] under the command name.
+ */
 abstract class CallService(
     private val mExecutor: ScheduledExecutorService,
     val mContactService: ContactService,
     val mAccountService: AccountService,
-    val mDeviceRuntimeService: DeviceRuntimeService
+    val mDeviceRuntimeService: DeviceRuntimeService,
+    private val mLatency: LatencyTracker
 ) {
+    private val scheduler = Schedulers.from(mExecutor)
     private val calls: MutableMap<String, Call> = HashMap()
     private val conferences: MutableMap<String, Conference> = HashMap()
-    private val callSubject = PublishSubject.create<Call>()
-    private val conferenceSubject = PublishSubject.create<Conference>()
+    // Calls by call id, conferences by conference id and participant call ids
+    private val callBus = KeyedEventBus<String, Call>()
+    private val conferenceBus = KeyedEventBus<String, Conference>()
 
     val confsUpdates: Observable<Conference>
-        get() = conferenceSubject
+        get() = conferenceBus.all
 
     val callsUpdates: Observable<Call>
-        get() = callSubject
+        get() = callBus.all
 
     fun currentConferences(): List<Conference> =
         synchronized(calls) {
@@ -57,12 +73,12 @@ abstract class CallService(
         }
 
     private fun getConfCallUpdates(conf: Conference): Observable<Conference> =
-        conferenceSubject
+        conferenceBus.updates(conf.id)
             .filter { c -> c == conf }
             .startWithItem(conf)
             .map(Conference::participants)
             .switchMap { list: List<Call> -> Observable.fromIterable(list)
-                    .flatMap { call: Call -> callSubject.filter { c -> c == call } } }
+                    .flatMap { call: Call -> getCallEvents(call) } }
             .map { conf }
             .startWithItem(conf)
 
@@ -80,57 +96,98 @@ abstract class CallService(
     }
 
     fun setIsComposing(accountId: String?, uri: String?, isComposing: Boolean) {
-        mExecutor.execute { JamiService.setIsComposing(accountId, uri, isComposing) }
+        execute("setIsComposing") { JamiService.setIsComposing(accountId, uri, isComposing) }
+    }
+
+    private class ConferenceInfoUpdate(val conference: Conference, val info: List<Map<String, String>>)
+    private class ParticipantEntry(val info: Map<String, String>, val call: Call?, val accountId: String, val contact: Contact)
+
+    // Participants are resolved off the daemon thread, only the last update of each conference is applied,
+    // serially from the io threads. Updates of a conference are dropped once it is removed.
+    private val conferenceInfoUpdates = LatestUpdateResolver<String, ConferenceInfoUpdate, Pair<Conference, List<ParticipantInfo>>>(::resolveConferenceInfo)
+
+    init {
+        conferenceInfoUpdates.results
+            .subscribe({ (conference, info) ->
+                conference.isModerator = info.any { it.contact.contact.isUser && it.isModerator }
+                conference.setInfo(info)
+            }) { e -> Log.e(TAG, "Error updating conference info", e) }
     }
 
     fun onConferenceInfoUpdated(confId: String, info: List<Map<String, String>>) {
         Log.w(TAG, "onConferenceInfoUpdated $confId $info")
-
         val conference = getConference(confId)
-        var isModerator = false
         if (conference != null) {
-            val newInfo: MutableList<ParticipantInfo> = ArrayList(info.size)
-            val account = mAccountService.getAccount(conference.accountId) ?: return
-
-            for (i in info) {
-                val uri = i["uri"]!!
-                val confInfo = if (uri.isEmpty()) {
-                    ParticipantInfo(null, mContactService.getLoadedContact(account.accountId, account.getContactFromCache(Uri.fromId(account.username!!))).blockingGet(), i)
-                } else {
-                    val contactUri = Uri.fromString(uri)
-                    val call = conference.findCallByContact(contactUri)
-                    if (call != null) {
-                        ParticipantInfo(call, mContactService.getLoadedContact(call.account!!, call.contact!!).blockingGet(), i)
-                    } else {
-                        ParticipantInfo(null, mContactService.getLoadedContact(account.accountId, account.getContactFromCache(contactUri)).blockingGet(), i)
-                    }
-                }
-                if (confInfo.isEmpty) {
-                    Log.w(TAG, "onConferenceInfoUpdated: ignoring empty entry $i")
-                    continue
-                }
-                if (confInfo.contact.contact.isUser && confInfo.isModerator) {
-                    isModerator = true
-                }
-                newInfo.add(confInfo)
-            }
-
-            conference.isModerator = isModerator
-            conference.setInfo(newInfo)
+            conferenceInfoUpdates.update(conference.id, ConferenceInfoUpdate(conference, info))
         } else {
             Log.w(TAG, "onConferenceInfoUpdated can't find conference $confId")
         }
     }
 
+    private fun resolveConferenceInfo(update: ConferenceInfoUpdate): Maybe<Pair<Conference, List<ParticipantInfo>>> {
+        val conference = update.conference
+        val account = mAccountService.getAccount(conference.accountId) ?: return Maybe.empty()
+        val entries = update.info.map { i ->
+            val uri = i["uri"]!!
+            if (uri.isEmpty()) {
+                ParticipantEntry(i, null, account.accountId, account.getContactFromCache(Uri.fromId(account.username!!)))
+            } else {
+                val contactUri = Uri.fromString(uri)
+                val call = conference.findCallByContact(contactUri)
+                if (call != null)
+                    ParticipantEntry(i, call, call.account!!, call.contact!!)
+                else
+                    ParticipantEntry(i, null, account.accountId, account.getContactFromCache(contactUri))
+            }
+        }
+        // Contacts are reused from the current info, others are loaded in parallel
+        val contacts = HashMap<Contact, ContactViewModel>()
+        for (participant in conference.currentInfo)
+            contacts[participant.contact.contact] = participant.contact
+        val missing = entries.filter { !contacts.containsKey(it.contact) }.distinctBy { it.contact }
+        if (missing.isEmpty())
+            return Maybe.just(Pair(conference, buildConferenceInfo(conference, entries, contacts)))
+        return Observable.fromIterable(missing)
+            .flatMapMaybe({ entry ->
+                mContactService.getLoadedContact(entry.accountId, entry.contact)
+                    .subscribeOn(Schedulers.io())
+                    .toMaybe()
+                    .doOnError { e -> Log.w(TAG, "Can't load participant ${entry.contact}", e) }
+                    .onErrorComplete()
+            }, false, PARTICIPANT_LOAD_CONCURRENCY)
+            .toList()
+            .map { loaded ->
+                for (contact in loaded) contacts[contact.contact] = contact
+                Pair(conference, buildConferenceInfo(conference, entries, contacts))
+            }
+            .toMaybe()
+    }
+
+    /** Keeps the current instance of unchanged participants, so that the UI only updates the others */
+    private fun buildConferenceInfo(conference: Conference, entries: List<ParticipantEntry>, contacts: Map<Contact, ContactViewModel>): List<ParticipantInfo> {
+        val current = conference.currentInfo.associateBy { it.tag }
+        val info = ArrayList<ParticipantInfo>(entries.size)
+        for (entry in entries) {
+            val contact = contacts[entry.contact] ?: continue
+            val participant = ParticipantInfo(entry.call, contact, entry.info)
+            if (participant.isEmpty) {
+                Log.w(TAG, "onConferenceInfoUpdated: ignoring empty entry ${entry.info}")
+                continue
+            }
+            info.add(current[participant.tag]?.takeIf { it.isSameAs(participant) } ?: participant)
+        }
+        return info
+    }
+
     fun setConfMaximizedParticipant(accountId: String, confId: String, uri: Uri) {
-        mExecutor.execute {
+        execute("setConfMaximizedParticipant") {
             JamiService.setActiveParticipant(accountId, confId, uri.rawRingId)
             JamiService.setConferenceLayout(accountId, confId, 1)
         }
     }
 
     fun setConfGridLayout(accountId: String, confId: String) {
-        mExecutor.execute { JamiService.setConferenceLayout(accountId, confId, 0) }
+        execute("setConfGridLayout") { JamiService.setConferenceLayout(accountId, confId, 0) }
     }
 
     fun remoteRecordingChanged(callId: String, peerNumber: Uri, state: Boolean) {
@@ -152,37 +209,44 @@ abstract class CallService(
         }
     }
 
-    private class ConferenceEntity(var conference: Conference)
-
     fun getConfUpdates(call: Call): Observable<Conference> = getConfUpdates(getConference(call))
 
+    /**
+     * Follows a conference, switching to the conference it is merged into,
+     * or to the single call conference it is reduced to.
+     * Conferences are published under their participants ids and previous id for this purpose.
+     */
     private fun getConfUpdates(conference: Conference): Observable<Conference> {
         Log.w(TAG, "getConfUpdates " + conference.id)
-        val conferenceEntity = ConferenceEntity(conference)
-        return conferenceSubject
-            .startWithItem(conference)
-            .filter { conf: Conference ->
-                Log.w(TAG, "getConfUpdates filter " + conf.id + " " + conf.participants.size + " (tracked " + conferenceEntity.conference.id + " " + conferenceEntity.conference.participants.size + ")")
-                if (conf == conferenceEntity.conference) {
-                    return@filter true
-                }
-                if (conf.contains(conferenceEntity.conference.id)) {
-                    Log.w(TAG, "Switching tracked conference (up) to " + conf.id)
-                    conferenceEntity.conference = conf
-                    return@filter true
-                }
-                if (conferenceEntity.conference.participants.size == 1 && conf.participants.size == 1 && conferenceEntity.conference.call == conf.call && conf.call!!.daemonIdString == conf.id) {
-                    Log.w(TAG, "Switching tracked conference (down) to " + conf.id)
-                    conferenceEntity.conference = conf
-                    return@filter true
-                }
-                false
+        val tracked = BehaviorSubject.createDefault(conference)
+        return tracked.distinctUntilChanged()
+            .switchMap { current: Conference ->
+                conferenceBus.updates(current.id)
+                    .filter { conf: Conference ->
+                        Log.w(TAG, "getConfUpdates filter " + conf.id + " " + conf.participants.size + " (tracked " + current.id + " " + current.participants.size + ")")
+                        if (conf == current) {
+                            return@filter true
+                        }
+                        if (conf.contains(current.id)) {
+                            Log.w(TAG, "Switching tracked conference (up) to " + conf.id)
+                            tracked.onNext(conf)
+                        } else if (current.participants.size == 1 && conf.participants.size == 1 && current.call == conf.call && conf.call!!.daemonIdString == conf.id) {
+                            Log.w(TAG, "Switching tracked conference (down) to " + conf.id)
+                            tracked.onNext(conf)
+                        }
+                        false
+                    }
+                    .startWithItem(current)
             }
             .switchMap { conf: Conference -> getConfCallUpdates(conf) }
     }
 
+    private fun getCallEvents(call: Call): Observable<Call> =
+        call.daemonIdString?.let { id -> callBus.updates(id).filter { c: Call -> c == call } }
+            ?: callBus.all.filter { c: Call -> c == call }
+
     private fun getCallUpdates(call: Call): Observable<Call> =
-        callSubject.filter { c: Call -> c == call }
+        getCallEvents(call)
             .startWithItem(call)
             .takeWhile { c: Call -> c.callStatus !== CallStatus.OVER }
 
@@ -226,8 +290,8 @@ abstract class CallService(
 
     private fun placeCall(
         account: String, conversationUri: Uri?, numberUri: Uri, hasVideo: Boolean
-    ): Single<Call> =
-        Single.fromCallable<Call> {
+    ): Single<Call> = mAccountService.awaitAccountCommands(account).andThen(
+        single("placeCall") {
             Log.i(TAG, "placeCall() account=$account conversationUri=$conversationUri numberUri=$numberUri hasVideo=$hasVideo")
 
             // Create a media list with audio and video (optional).
@@ -253,11 +317,11 @@ abstract class CallService(
                         this.setSwarmInfo(conversationUri.rawRingId)
                 }
 
-            return@fromCallable call
-        }.subscribeOn(Schedulers.from(mExecutor))
+            return@single call
+        })
 
     fun refuse(accountId:String, callId: String) {
-        mExecutor.execute {
+        execute("refuse") {
             Log.i(TAG, "refuse() running… $callId")
             JamiService.refuse(accountId, callId)
             JamiService.hangUp(accountId, callId)
@@ -265,7 +329,7 @@ abstract class CallService(
     }
 
     fun accept(accountId:String, callId: String, hasVideo: Boolean = false) {
-        mExecutor.execute {
+        execute("accept") {
             Log.i(TAG, "accept() running… $callId")
             val call = calls[callId] ?: return@execute
             val mediaList = call.mediaList
@@ -281,28 +345,28 @@ abstract class CallService(
     }
 
     fun hangUp(accountId:String, callId: String) {
-        mExecutor.execute {
+        execute("hangUp") {
             Log.i(TAG, "hangUp() running… $callId")
             JamiService.hangUp(accountId, callId)
         }
     }
 
     fun muteParticipant(accountId:String, confId: String, peerId: String, mute: Boolean) {
-        mExecutor.execute {
+        execute("muteParticipant") {
             Log.i(TAG, "mute participant… $peerId")
             JamiService.muteParticipant(accountId, confId, peerId, mute)
         }
     }
 
     fun hangupParticipant(accountId:String, confId: String, peerId: String, deviceId: String = "") {
-        mExecutor.execute {
+        execute("hangupParticipant") {
             Log.i(TAG, "hangup participant… $peerId")
             JamiService.hangupParticipant(accountId, confId, peerId, deviceId)
         }
     }
 
     fun raiseHand(accountId: String, confId: String, peerId: String, state: Boolean, deviceId:String?){
-        mExecutor.execute {
+        execute("raiseHand") {
             Log.i(TAG, "participant $peerId raise hand…")
             JamiService.raiseHand(accountId, confId, peerId, deviceId ?: "", state)
         }
@@ -322,14 +386,14 @@ abstract class CallService(
     }
 
     fun hold(accountId:String, callId: String) {
-        mExecutor.execute {
+        execute("hold") {
             Log.i(TAG, "hold() running… $callId")
             JamiService.hold(accountId, callId)
         }
     }
 
     fun unhold(accountId:String, callId: String) {
-        mExecutor.execute {
+        execute("unhold") {
             Log.i(TAG, "unhold() running… $callId")
             JamiService.unhold(accountId, callId)
         }
@@ -341,14 +405,14 @@ abstract class CallService(
     }
 
     fun restartAudioLayer() {
-        mExecutor.execute {
+        execute("restartAudioLayer") {
             Log.i(TAG, "restartAudioLayer() running…")
             JamiService.setAudioPlugin(JamiService.getCurrentAudioOutputPlugin())
         }
     }
 
     fun setAudioExtension(audioExtension: String) {
-        mExecutor.execute {
+        execute("setAudioExtension") {
             Log.i(TAG, "setAudioExtension() running…")
             JamiService.setAudioPlugin(audioExtension)
         }
@@ -357,7 +421,7 @@ abstract class CallService(
     val currentAudioOutputExtension: String?
         get() {
             try {
-                return mExecutor.submit<String> {
+                return submit<String>("getCurrentAudioOutputExtension") {
                     Log.i(TAG, "getCurrentAudioOutputExtension() running…")
                     JamiService.getCurrentAudioOutputPlugin()
                 }.get()
@@ -368,21 +432,21 @@ abstract class CallService(
         }
 
     fun playDtmf(key: String) {
-        mExecutor.execute {
+        execute("playDtmf") {
             Log.i(TAG, "playDTMF() running… $key")
             JamiService.playDTMF(key)
         }
     }
 
     fun setMuted(mute: Boolean) {
-        mExecutor.execute {
+        execute("setMuted") {
             Log.i(TAG, "muteCapture() running…")
             JamiService.muteCapture(mute)
         }
     }
 
     fun setLocalMediaMuted(accountId:String, callId: String, mediaType: String, mute: Boolean) {
-        mExecutor.execute {
+        execute("setLocalMediaMuted") {
             Log.i(TAG, "muteCapture() running…")
             JamiService.muteLocalMedia(accountId, callId, mediaType, mute)
         }
@@ -392,7 +456,7 @@ abstract class CallService(
         get() = JamiService.isCaptureMuted()
 
     fun transfer(accountId:String, callId: String, to: String) {
-        mExecutor.execute {
+        execute("transfer") {
             Log.i(TAG, "transfer() thread running…")
             if (JamiService.transfer(accountId, callId, to)) {
                 Log.i(TAG, "OK")
@@ -403,7 +467,7 @@ abstract class CallService(
     }
 
     fun attendedTransfer(accountId:String, transferId: String, targetID: String) {
-        mExecutor.execute {
+        execute("attendedTransfer") {
             Log.i(TAG, "attendedTransfer() thread running…")
             if (JamiService.attendedTransfer(accountId, transferId, targetID)) {
                 Log.i(TAG, "OK")
@@ -416,32 +480,32 @@ abstract class CallService(
     var recordPath: String?
         get() {
             try {
-                return mExecutor.submit<String> { JamiService.getRecordPath() }.get()
+                return submit<String>("getRecordPath") { JamiService.getRecordPath() }.get()
             } catch (e: Exception) {
                 Log.e(TAG, "Error running isCaptureMuted()", e)
             }
             return null
         }
         set(path) {
-            mExecutor.execute { JamiService.setRecordPath(path) }
+            execute("setRecordPath") { JamiService.setRecordPath(path) }
         }
 
     fun toggleRecordingCall(accountId:String, callId: String): Boolean {
-        mExecutor.execute { JamiService.toggleRecording(accountId, callId) }
+        execute("toggleRecordingCall") { JamiService.toggleRecording(accountId, callId) }
         return false
     }
 
     fun startRecordedFilePlayback(filepath: String): Boolean {
-        mExecutor.execute { JamiService.startRecordedFilePlayback(filepath) }
+        execute("startRecordedFilePlayback") { JamiService.startRecordedFilePlayback(filepath) }
         return false
     }
 
     fun stopRecordedFilePlayback() {
-        mExecutor.execute { JamiService.stopRecordedFilePlayback() }
+        execute("stopRecordedFilePlayback") { JamiService.stopRecordedFilePlayback() }
     }
 
     fun sendTextMessage(accountId: String, callId: String, msg: String) {
-        mExecutor.execute {
+        execute("sendTextMessage") {
             Log.i(TAG, "sendTextMessage() thread running…")
             val messages = StringMap().apply { setUnicode("text/plain", msg) }
             JamiService.sendTextMessage(accountId, callId, messages, "", false)
@@ -449,18 +513,18 @@ abstract class CallService(
     }
 
     fun sendAccountTextMessage(accountId: String, to: String, msg: String, flags: Int = 0): Single<Long> =
-        Single.fromCallable {
+        mAccountService.awaitAccountCommands(accountId).andThen(single("sendAccountTextMessage") {
             Log.i(TAG, "sendAccountTextMessage() running… $accountId $to $msg")
             JamiService.sendAccountTextMessage(accountId, to, StringMap().apply {
                 setUnicode("text/plain", msg)
             }, flags)
-        }.subscribeOn(Schedulers.from(mExecutor))
+        })
 
     fun cancelMessage(accountId: String, messageID: Long): Completable =
-        Completable.fromAction {
+        completable("cancelMessage") {
             Log.i(TAG, "CancelMessage() running…   Account ID:  $accountId Message ID  $messageID")
             JamiService.cancelMessage(accountId, messageID)
-        }.subscribeOn(Schedulers.from(mExecutor))
+        }
 
     private fun addCall(accountId: String, callId: String, from: Uri, direction: Call.Direction, media: List<Media>): Call =
         synchronized(calls) {
@@ -474,17 +538,31 @@ abstract class CallService(
             }.apply { setMediaList(media) }
         }
 
-    private fun addConference(call: Call): Conference {
+    /** @param previousId id of the conference the call was left alone in, if any */
+    private fun addConference(call: Call, previousId: String? = null): Conference {
         val confId = call.confId ?: call.daemonIdString!!
         var conference = conferences[confId]
         if (conference == null) {
             conference = Conference(call)
             conferences[confId] = conference
-            conferenceSubject.onNext(conference)
+            publishConference(conference, previousId)
         }
         return conference
     }
 
+    private fun publishConference(conf: Conference, previousId: String? = null) {
+        val participants = conf.participants
+        if (participants.isEmpty() && previousId == null) {
+            conferenceBus.publish(conf.id, conf)
+        } else {
+            val keys = ArrayList<String>(participants.size + 2)
+            keys.add(conf.id)
+            if (previousId != null) keys.add(previousId)
+            for (call in participants) call.daemonIdString?.let { keys.add(it) }
+            conferenceBus.publish(keys, conf)
+        }
+    }
+
     private fun parseCallState(accountId: String, callId: String, newState: String, callDetails: Map<String, String>): Call? {
         val callState = CallStatus.fromString(newState)
         var call = calls[callId]
@@ -538,10 +616,11 @@ abstract class CallService(
                         Log.d(TAG, "call state changed: ignoring ringing call, waiting for signal")
                         return
                     }
-                    callSubject.onNext(call)
+                    callBus.publish(call.daemonIdString, call)
                     if (call.callStatus === CallStatus.OVER) {
                         calls.remove(call.daemonIdString)
                         conferences.remove(call.daemonIdString)
+                        call.daemonIdString?.let { conferenceInfoUpdates.remove(it) }
                         updateConnectionCount()
                     }
                 }
@@ -556,11 +635,11 @@ abstract class CallService(
         if (call != null) {
             call.isAudioMuted = muted
             if (call.callStatus == CallStatus.CURRENT)
-                callSubject.onNext(call)
+                callBus.publish(call.daemonIdString, call)
         } else {
             conferences[callId]?.let { conf ->
                 conf.isAudioMuted = muted
-                conferenceSubject.onNext(conf)
+                publishConference(conf)
             }
         }
     }
@@ -569,11 +648,11 @@ abstract class CallService(
         calls[callId]?.let { call ->
             call.isVideoMuted = muted
             if (call.callStatus == CallStatus.CURRENT)
-                callSubject.onNext(call)
+                callBus.publish(call.daemonIdString, call)
         }
         conferences[callId]?.let { conf ->
             conf.isVideoMuted = muted
-            conferenceSubject.onNext(conf)
+            publishConference(conf)
         }
     }
 
@@ -582,7 +661,7 @@ abstract class CallService(
         val nMediaList = mediaList ?: emptyList()
         val medias = nMediaList.mapTo(ArrayList(nMediaList.size)) { mediaMap -> Media(mediaMap) }
         val call = addCall(accountId, callId, Uri.fromStringWithName(from).first, Call.Direction.INCOMING, medias)
-        callSubject.onNext(call)
+        callBus.publish(call.daemonIdString, call)
         updateConnectionCount()
     }
 
@@ -609,7 +688,7 @@ abstract class CallService(
                 setMediaList(media)
             }
         }
-        callSubject.onNext(call ?: return)
+        if (call != null) callBus.publish(call.daemonIdString, call)
     }
 
     /**
@@ -635,7 +714,7 @@ abstract class CallService(
         if(!videoExists)
             proposedMediaList.add(Media.DEFAULT_VIDEO.copy(source = uri))
 
-        mExecutor.execute {
+        execute("replaceVideoMedia") {
             JamiService.requestMediaChange(
                 call.account,
                 call.daemonIdString,
@@ -667,37 +746,36 @@ abstract class CallService(
     }
 
     fun joinParticipant(accountId: String, selCallId: String, account2Id: String, dragCallId: String): Single<Boolean> {
-        return Single.fromCallable { JamiService.joinParticipant(accountId, selCallId, account2Id, dragCallId) }
-            .subscribeOn(Schedulers.from(mExecutor))
+        return single("joinParticipant") { JamiService.joinParticipant(accountId, selCallId, account2Id, dragCallId) }
     }
 
     fun addParticipant(accountId: String, callId: String, account2Id: String, confId: String) {
-        mExecutor.execute { JamiService.addParticipant(accountId, callId, account2Id, confId) }
+        execute("addParticipant") { JamiService.addParticipant(accountId, callId, account2Id, confId) }
     }
 
     fun addMainParticipant(accountId: String, confId: String) {
-        mExecutor.execute { JamiService.addMainParticipant(accountId, confId) }
+        execute("addMainParticipant") { JamiService.addMainParticipant(accountId, confId) }
     }
 
     fun detachParticipant(accountId: String, callId: String) {
-        mExecutor.execute { JamiService.detachParticipant(accountId, callId) }
+        execute("detachParticipant") { JamiService.detachParticipant(accountId, callId) }
     }
 
     fun joinConference(accountId: String, selConfId: String, account2Id: String, dragConfId: String) {
-        mExecutor.execute { JamiService.joinConference(accountId, selConfId, account2Id, dragConfId) }
+        execute("joinConference") { JamiService.joinConference(accountId, selConfId, account2Id, dragConfId) }
     }
 
     fun hangUpConference(accountId: String, confId: String) {
         Log.i(TAG, "hangUpConference() running… $confId")
-        mExecutor.execute { JamiService.hangUpConference(accountId, confId) }
+        execute("hangUpConference") { JamiService.hangUpConference(accountId, confId) }
     }
 
     fun holdConference(accountId: String, confId: String) {
-        mExecutor.execute { JamiService.holdConference(accountId, confId) }
+        execute("holdConference") { JamiService.holdConference(accountId, confId) }
     }
 
     fun unholdConference(accountId: String, confId: String) {
-        mExecutor.execute { JamiService.unholdConference(accountId, confId) }
+        execute("unholdConference") { JamiService.unholdConference(accountId, confId) }
     }
 
     private fun getConference(call: Call): Conference = addConference(call)
@@ -718,17 +796,18 @@ abstract class CallService(
             }
             conferences.remove(callId)
         }
-        conferenceSubject.onNext(conf)
+        publishConference(conf)
     }
 
     fun conferenceRemoved(accountId: String, confId: String) {
         Log.d(TAG, "conference removed: $confId")
+        conferenceInfoUpdates.remove(confId)
         conferences.remove(confId)?.let { conf ->
             for (call in conf.participants) {
                 call.confId = null
             }
             conf.removeParticipants()
-            conferenceSubject.onNext(conf)
+            publishConference(conf)
         }
     }
 
@@ -764,11 +843,11 @@ abstract class CallService(
                     removed = true
                 }
             }
-            conferenceSubject.onNext(conf)
+            publishConference(conf)
             if (removed && conf.participants.size == 1) {
                 val call = conf.participants[0]
                 call.confId = null
-                addConference(call)
+                addConference(call, confId)
             }
         } catch (e: Exception) {
             Log.w(TAG, "exception in conferenceChanged", e)
@@ -785,6 +864,25 @@ abstract class CallService(
         }
     }
 
+    /** Runs the command [name] on the call lane, recording how long it waited and ran */
+    private inline fun execute(name: String, crossinline block: () -> Unit) {
+        val enqueued = System.nanoTime()
+        mExecutor.execute { mLatency.measure(name, enqueued) { block() } }
+    }
+
+    private inline fun <T> submit(name: String, crossinline block: () -> T): Future<T> {
+        val enqueued = System.nanoTime()
+        return mExecutor.submit<T> { mLatency.measure(name, enqueued) { block() } }
+    }
+
+    /** Runs the command [name] on the call lane once subscribed to, recording how long it waited and ran */
+    private fun <T : Any> single(name: String, block: () -> T): Single<T> = Single.defer {
+        val enqueued = System.nanoTime()
+        Single.fromCallable { mLatency.measure(name, enqueued, block) }.subscribeOn(scheduler)
+    }
+
+    private fun completable(name: String, block: () -> Unit): Completable = single(name, block).ignoreElement()
+
     companion object {
         @JvmStatic
         protected val TAG = CallService::class.simpleName!!
@@ -792,6 +890,7 @@ abstract class CallService(
         const val MIME_GEOLOCATION = "application/geo"
         const val MEDIA_TYPE_AUDIO = "MEDIA_TYPE_AUDIO"
         const val MEDIA_TYPE_VIDEO = "MEDIA_TYPE_VIDEO"
+        private const val PARTICIPANT_LOAD_CONCURRENCY = 4
 
         val CALL_ALLOWED_VAL = SystemCall(true)
         val CALL_DISALLOWED_VAL = SystemCall(false)
@@ -0,0 +1,190 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.core.Observable
+import io.reactivex.rxjava3.core.Scheduler
+import io.reactivex.rxjava3.disposables.Disposable
+import io.reactivex.rxjava3.disposables.SerialDisposable
+import net.jami.services.AccountService.ConnectionStatus
+import net.jami.services.AccountService.DeviceConnection
+import net.jami.utils.Log
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Polls the connections of an account and only emits when they changed.
+ * While [monitor] is subscribed to, the polling period doubles up to [MAX_PERIOD_MS] while nothing
+ * changes, and goes back to [MIN_PERIOD_MS] on the first change.
+ * Accounts [tracked][track] for the session keep being polled every [BACKGROUND_PERIOD_MS]
+ * when nothing monitors them, so their [churn] covers the whole session.
+ * Subscribers and tracking of the same account share a single poll.
+ */
+class ConnectionMonitor(
+    private val scheduler: Scheduler,
+    /** @return the connection list of the account, as returned by the daemon */
+    private val list: (accountId: String) -> List<Map<String, String?>>
+) {
+    data class Snapshot(
+        val accountId: String,
+        /** Established connections grouped by peer, sorted by peer */
+        val peers: List<Pair<String, List<DeviceConnection>>>,
+        val added: List<DeviceConnection>,
+        val removed: List<DeviceConnection>,
+        val changed: List<DeviceConnection>
+    )
+
+    /** Connection churn of an account since startup, seen by the poll of the account */
+    class Churn {
+        val opened = AtomicLong()
+        val closed = AtomicLong()
+        val changed = AtomicLong()
+        val polls = AtomicLong()
+
+        override fun toString(): String = "opened ${opened.get()}, closed ${closed.get()}, changed ${changed.get()}, polls ${polls.get()}"
+    }
+
+    private inner class AccountPoll(val accountId: String) {
+        val churn = Churn()
+        /** Subscribers of [monitor] */
+        val observers = AtomicInteger()
+        var tracking: Disposable? = null
+        /** Polls now, set while the account is polled */
+        @Volatile var kick: (() -> Unit)? = null
+        val shared: Observable<Snapshot> = poll(this).replay(1).refCount()
+    }
+
+    private val polls = HashMap<String, AccountPoll>()
+
+    private fun account(accountId: String): AccountPoll = synchronized(polls) {
+        polls.getOrPut(accountId) { AccountPoll(accountId) }
+    }
+
+    /** Connection churn of the account since startup, complete if the account is [tracked][track] */
+    fun churn(accountId: String): Churn = account(accountId).churn
+
+    /**
+     * Emits the connections of the account, then every change of them.
+     * Late subscribers first get the last emission, with the current connections.
+     * Fails if the connections can't be read.
+     */
+    fun monitor(accountId: String): Observable<Snapshot> = Observable.defer {
+        val account = account(accountId)
+        // Leave the background period as soon as the first subscriber comes in
+        if (account.observers.getAndIncrement() == 0)
+            account.kick?.invoke()
+        account.shared.doFinally { account.observers.decrementAndGet() }
+    }
+
+    /**
+     * Keeps polling the account until [untrack] is called, to count its churn all session long.
+     * A failed poll is retried after [BACKGROUND_PERIOD_MS].
+     */
+    fun track(accountId: String) {
+        val account = account(accountId)
+        synchronized(account) {
+            if (account.tracking != null) return
+            account.tracking = account.shared
+                .retryWhen { errors -> errors.delay(BACKGROUND_PERIOD_MS, TimeUnit.MILLISECONDS, scheduler) }
+                .subscribe({}) { e -> Log.e(TAG, "Can't track the connections of $accountId", e) }
+        }
+    }
+
+    fun untrack(accountId: String) {
+        val account = synchronized(polls) { polls[accountId] } ?: return
+        synchronized(account) {
+            account.tracking?.dispose()
+            account.tracking = null
+        }
+    }
+
+    private fun poll(account: AccountPoll): Observable<Snapshot> = Observable.create { emitter ->
+        val task = SerialDisposable()
+        emitter.setDisposable(task)
+        var previous: Map<String, DeviceConnection>? = null
+        var period = MIN_PERIOD_MS
+        lateinit var tick: Runnable
+        tick = Runnable {
+            try {
+                val current = read(account)
+                val snapshot = diff(account, previous, current)
+                previous = current
+                period = if (snapshot == null) (period * 2).coerceAtMost(MAX_PERIOD_MS) else MIN_PERIOD_MS
+                if (snapshot != null) emitter.onNext(snapshot)
+            } catch (e: Exception) {
+                // Stop polling, the subscriber may subscribe again
+                emitter.onError(e)
+                return@Runnable
+            }
+            if (!emitter.isDisposed) {
+                val delay = if (account.observers.get() == 0) BACKGROUND_PERIOD_MS else period
+                task.replace(scheduler.scheduleDirect(tick, delay, TimeUnit.MILLISECONDS))
+            }
+        }
+        account.kick = { task.replace(scheduler.scheduleDirect(tick)) }
+        task.replace(scheduler.scheduleDirect(tick))
+    }
+
+    private fun read(account: AccountPoll): Map<String, DeviceConnection> {
+        val accountId = account.accountId
+        account.churn.polls.incrementAndGet()
+        val connections = LinkedHashMap<String, DeviceConnection>()
+        for (it in list(accountId)) {
+            val status = ConnectionStatus.fromInt(it["status"]?.toInt() ?: 4)
+            if (status == ConnectionStatus.Waiting || status == ConnectionStatus.Connecting)
+                continue
+            val id = it["id"]!!
+            connections[id] = DeviceConnection(
+                accountId = accountId,
+                id = id,
+                device = it["device"]!!,
+                status = status,
+                peer = it["peer"]!!,
+                remoteAddress = it["remoteAddress"]
+            )
+        }
+        return connections
+    }
+
+    /** @return the changes from [previous] to [current], or null if nothing changed since a previous poll */
+    private fun diff(account: AccountPoll, previous: Map<String, DeviceConnection>?, current: Map<String, DeviceConnection>): Snapshot? {
+        val old = previous ?: emptyMap()
+        val added = current.values.filter { !old.containsKey(it.id) }
+        val removed = old.values.filter { !current.containsKey(it.id) }
+        val changed = current.values.filter { c -> old[c.id].let { it != null && it != c } }
+        if (previous != null && added.isEmpty() && removed.isEmpty() && changed.isEmpty())
+            return null
+        if (previous != null) {
+            account.churn.opened.addAndGet(added.size.toLong())
+            account.churn.closed.addAndGet(removed.size.toLong())
+            account.churn.changed.addAndGet(changed.size.toLong())
+        }
+        val peers = current.values
+            .groupBy { it.peer }
+            .map { Pair(it.key, it.value) }
+            .sortedBy { it.first }
+        return Snapshot(account.accountId, peers, added, removed, changed)
+    }
+
+    companion object {
+        private val TAG = ConnectionMonitor::class.simpleName!!
+        internal const val MIN_PERIOD_MS = 1000L
+        internal const val MAX_PERIOD_MS = 8000L
+        internal const val BACKGROUND_PERIOD_MS = 60_000L
+    }
+}
@@ -22,6 +22,7 @@ import io.reactivex.rxjava3.core.Observable
 import io.reactivex.rxjava3.core.Single
 import io.reactivex.rxjava3.disposables.CompositeDisposable
 import io.reactivex.rxjava3.schedulers.Schedulers
+import io.reactivex.rxjava3.subjects.SingleSubject
 import net.jami.model.*
 import net.jami.model.Account.ContactLocationEntry
 import net.jami.model.Call.CallStatus
@@ -41,9 +42,11 @@ class ConversationFacade(
     private val mNotificationService: NotificationService,
     private val mHardwareService: HardwareService,
     private val mDeviceRuntimeService: DeviceRuntimeService,
-    private val mPreferencesService: PreferencesService
+    private val mPreferencesService: PreferencesService,
+    private val historyMemory: HistoryMemoryManager
 ) {
     private val mDisposableBag = CompositeDisposable()
+    private val readState = ReadStateTracker(mHistoryService::setMessageNotified, mAccountService::setMessageDisplayed)
     val currentAccountSubject: Observable<Account> = mAccountService.currentAccountSubject
             .switchMapSingle { account: Account -> loadSmartlist(account) }
 
@@ -81,7 +84,7 @@ class ConversationFacade(
         conversation.getMessage(messageId)?.let { message ->
             message.isNotified = true
         }
-        mHistoryService.setMessageNotified(accountId, conversationUri, messageId)
+        readState.notified(accountId, conversationUri, messageId)
     }
 
     fun readMessages(accountId: String, contact: Uri): String? {
@@ -95,7 +98,7 @@ class ConversationFacade(
         account.refreshed(conversation)
 
         // Mark the message as read (daemon will deal with "read receipt" parameter on his own).
-        mAccountService.setMessageDisplayed(account.accountId, conversation.uri, lastMessage)
+        readState.displayed(account.accountId, conversation.uri, lastMessage)
 
         if (cancelNotification) {
             mNotificationService.cancelTextNotification(account.accountId, conversation.uri)
@@ -108,7 +111,6 @@ class ConversationFacade(
         var lastRead: String? = null
         for (message in messages) {
             if (conversation.isSwarm) {
-                mHistoryService.setMessageNotified(conversation.accountId, conversation.uri, message.messageId!!)
                 lastRead = message.messageId
             } else {
                 val did = message.daemonId
@@ -117,6 +119,8 @@ class ConversationFacade(
                 mHistoryService.updateInteraction(message, conversation.accountId).subscribe()
             }
         }
+        if (conversation.isSwarm && lastRead != null)
+            readState.notified(conversation.accountId, conversation.uri, lastRead)
         return lastRead
     }
 
@@ -253,14 +257,21 @@ class ConversationFacade(
             }
             var ret = conversation.loaded
             if (ret == null) {
-                ret = if (conversation.isSwarm) mAccountService.loadMore(conversation)
+                ret = if (conversation.isSwarm) mAccountService.hydrateConversation(conversation)
+                    .andThen(Single.defer { mAccountService.loadMore(conversation) })
+                    .cache()
                 else getConversationHistory(conversation)
                 conversation.loaded = ret
             }
-            return ret
+            return ret.doOnSuccess { historyMemory.touch(it) }
         }
     }
 
+    /** Prepares the full state of a conversation shown in the conversation list, before it is opened */
+    fun prefetchConversation(conversation: Conversation) {
+        if (conversation.isSwarm) mAccountService.prefetchConversation(conversation)
+    }
+
     fun getConversationProfile(accountId: String, conversationUri: Uri): Single<ConversationItemViewModel> =
         startConversation(accountId, conversationUri)
             .flatMap { getConversationProfile(it) }
@@ -398,7 +409,16 @@ class ConversationFacade(
         }
     }
 
-    data class ConversationList(val conversations: List<Conversation> = emptyList(), val searchResult: SearchResult = SearchResult.EMPTY_RESULT, val latestQuery: String = "") {
+    /**
+     * @param changes positional changes turning [changesBase] into [conversations], if known
+     */
+    data class ConversationList(
+        val conversations: List<Conversation> = emptyList(),
+        val searchResult: SearchResult = SearchResult.EMPTY_RESULT,
+        val latestQuery: String = "",
+        val changesBase: List<Conversation>? = null,
+        val changes: List<SortedConversationList.Change> = emptyList()
+    ) {
         fun isEmpty(): Boolean = conversations.isEmpty() && searchResult.result.isEmpty()
 
         fun getCombinedSize(): Int {
@@ -465,8 +485,8 @@ class ConversationFacade(
         }
 
     fun getConversationList(currentAccount: Observable<Account>): Observable<ConversationList> =
-        currentAccount.switchMap { account -> account.getConversationsSubject() }
-            .map { conversations -> ConversationList(conversations) }
+        currentAccount.switchMap { account -> account.getConversationUpdates() }
+            .map { update -> ConversationList(update.conversations, changesBase = update.base, changes = update.changes) }
 
     /**
      * Loads the smartlist from the database and updates the view
@@ -506,20 +526,62 @@ class ConversationFacade(
     }
 
     /**
-     * Loads a conversation's history from the database
+     * Loads the most recent page of a conversation's history from the database
      *
-     * @param conversation a conversation object with a valid conversation ID
+     * @param conversation a non-swarm conversation object with a valid conversation ID
      * @return a conversation single
      */
     private fun getConversationHistory(conversation: Conversation): Single<Conversation> =
-        mHistoryService.getConversationHistory(conversation.accountId, conversation.id!!)
+        mHistoryService.getConversationHistoryPage(conversation.accountId, conversation.id!!, null, HISTORY_PAGE_SIZE)
+            .onErrorReturn { ArrayList() }
             .map { loadedConversation: List<Interaction> ->
                 conversation.clearHistory(true)
                 conversation.setHistory(loadedConversation)
+                conversation.hasOlderHistory = loadedConversation.size == HISTORY_PAGE_SIZE
                 conversation
             }
             .cache()
 
+    /** Keeps the history of an open conversation loaded until [unpinHistory] */
+    fun pinHistory(conversation: Conversation) = historyMemory.pin(conversation)
+
+    fun unpinHistory(conversation: Conversation) = historyMemory.unpin(conversation)
+
+    /** Loads the history preceding the loaded history of [conversation] */
+    fun loadMore(conversation: Conversation): Single<Conversation> =
+        loadOlderHistory(conversation).doOnSuccess { historyMemory.touch(it) }
+
+    private fun loadOlderHistory(conversation: Conversation): Single<Conversation> {
+        if (conversation.isSwarm) return mAccountService.loadMore(conversation)
+        synchronized(conversation) {
+            conversation.loading?.let { return it }
+            val id = conversation.id
+            val before = conversation.oldestLoaded
+            if (id == null || before == null || !conversation.hasOlderHistory) return Single.just(conversation)
+            val ret = SingleSubject.create<Conversation>()
+            conversation.loading = ret
+            mHistoryService.getConversationHistoryPage(conversation.accountId, id, before, HISTORY_PAGE_SIZE)
+                .subscribe({ page ->
+                    synchronized(conversation) {
+                        // The history may have been cleared or reloaded in the meantime
+                        if (conversation.oldestLoaded === before) {
+                            conversation.addOlderHistory(page)
+                            conversation.hasOlderHistory = page.size == HISTORY_PAGE_SIZE
+                        }
+                        if (conversation.loading === ret) conversation.loading = null
+                    }
+                    ret.onSuccess(conversation)
+                }) { e ->
+                    // Older history is kept available so loading can be retried
+                    synchronized(conversation) {
+                        if (conversation.loading === ret) conversation.loading = null
+                    }
+                    ret.onError(e)
+                }
+            return ret
+        }
+    }
+
     fun clearHistory(accountId: String, contact: Uri): Completable = mHistoryService
         .clearHistory(contact.uri, accountId, false)
         .doOnSubscribe {
@@ -543,12 +605,15 @@ class ConversationFacade(
         if (txt.isRead) {
             if (txt.messageId == null) {
                 mHistoryService.updateInteraction(txt, accountId).subscribe()
-                mAccountService.setMessageDisplayed(txt.account, uri, txt.daemonIdString!!)
+                readState.displayed(accountId, uri, txt.daemonIdString!!)
             }
-            else mAccountService.setMessageDisplayed(txt.account, uri, txt.messageId!!)
+            else readState.displayed(accountId, uri, txt.messageId!!)
         }
 
-        startConversation(accountId, uri).subscribe(mNotificationService::showTextNotification)
+        startConversation(accountId, uri)
+            // Member roles and notification preferences are needed to notify swarm messages
+            .flatMap { c -> mAccountService.hydrateConversation(c).onErrorComplete().toSingleDefault(c) }
+            .subscribe(mNotificationService::showTextNotification)
     }
 
     fun acceptRequest(conversation: Conversation) {
@@ -659,6 +724,7 @@ class ConversationFacade(
 
     fun removeConversation(accountId: String, conversationUri: Uri): Completable {
         val account = mAccountService.getAccount(accountId) ?: return Completable.error(IllegalArgumentException("Unknown account"))
+        account.getByUri(conversationUri)?.let { historyMemory.remove(it) }
         return if (conversationUri.isSwarm) {
             // For a one to one conversation, contact is strongly related, so remove the contact.
             // This will remove related conversations
@@ -708,6 +774,7 @@ class ConversationFacade(
 
     companion object {
         private val TAG = ConversationFacade::class.simpleName!!
+        private const val HISTORY_PAGE_SIZE = 64
     }
 
     init {
@@ -729,6 +796,18 @@ class ConversationFacade(
                     mNotificationService.showIncomingTrustRequestNotification(account)
                 })
 
+        // Histories grow with new messages, account for it in the memory budget.
+        // Updates are emitted under the account lock, resampling takes conversation locks: never do it on that path.
+        mDisposableBag.add(mAccountService.observableAccountList
+                .switchMap { accounts ->
+                    Observable.merge(accounts.map { a -> a.getConversationUpdates(true) })
+                }
+                .observeOn(Schedulers.io())
+                .subscribe { update ->
+                    for (conversation in update.dirty)
+                        historyMemory.resample(conversation)
+                })
+
         mDisposableBag.add(mAccountService.incomingMessages
             .concatMapSingle { msg: TextMessage -> getAccountSubject(msg.account!!)
                     .map { a: Account -> a.addTextMessage(msg)
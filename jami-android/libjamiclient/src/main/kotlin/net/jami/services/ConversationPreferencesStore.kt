@@ -0,0 +1,224 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.core.Scheduler
+import io.reactivex.rxjava3.schedulers.Schedulers
+import net.jami.utils.Log
+import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Stores the preferences of the conversations of each account (color, symbol, last read message...)
+ * in one binary file per account, kept in memory once read.
+ * Changes are written in the background, [WRITE_DELAY_MS] after the first one, or on [flushAll].
+ * Preferences stored in the [legacy] format are migrated on first access to an account,
+ * which [preload] can do in the background. Accounts are loaded without blocking each other.
+ */
+class ConversationPreferencesStore(
+    private val directory: File,
+    private val legacy: Legacy? = null,
+    private val scheduler: Scheduler = Schedulers.io()
+) {
+    /** Preferences stored in the previous format, one file per conversation */
+    interface Legacy {
+        /** @return the preferences of each conversation of the account, by conversation uri */
+        fun read(accountId: String): Map<String, Map<String, String>>
+        /** Deletes the legacy preferences of the account, once migrated */
+        fun delete(accountId: String)
+    }
+
+    private class AccountPreferences {
+        val conversations = HashMap<String, MutableMap<String, String>>()
+        var loaded = false
+        var writeScheduled = false
+    }
+
+    private val accounts = HashMap<String, AccountPreferences>()
+
+    /** @return the preferences of the conversation */
+    fun get(accountId: String, conversationUri: String): Map<String, String> {
+        val account = account(accountId)
+        return synchronized(account) { account.conversations[conversationUri]?.let { HashMap(it) } ?: emptyMap() }
+    }
+
+    fun get(accountId: String, conversationUri: String, key: String): String? {
+        val account = account(accountId)
+        return synchronized(account) { account.conversations[conversationUri]?.get(key) }
+    }
+
+    /** Sets the preferences of the conversation, removing the keys set to null */
+    fun edit(accountId: String, conversationUri: String, changes: Map<String, String?>) {
+        val account = account(accountId)
+        synchronized(account) {
+            val preferences = account.conversations.getOrPut(conversationUri) { HashMap() }
+            var changed = false
+            for ((key, value) in changes) {
+                val previous = if (value == null) preferences.remove(key) else preferences.put(key, value)
+                if (previous != value) changed = true
+            }
+            if (preferences.isEmpty()) account.conversations.remove(conversationUri)
+            if (!changed || account.writeScheduled) return
+            account.writeScheduled = true
+        }
+        scheduler.scheduleDirect({ flush(accountId) }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS)
+    }
+
+    fun put(accountId: String, conversationUri: String, key: String, value: String?) =
+        edit(accountId, conversationUri, mapOf(key to value))
+
+    /** Reads or migrates the preferences of the account in the background, before they are accessed */
+    fun preload(accountId: String) {
+        scheduler.scheduleDirect { account(accountId) }
+    }
+
+    /** Writes the pending changes of every account in the background, without waiting for the write delay */
+    fun flushAll() {
+        scheduler.scheduleDirect {
+            for (accountId in synchronized(accounts) { accounts.keys.toList() })
+                flush(accountId)
+        }
+    }
+
+    /** Writes the pending changes of the account */
+    fun flush(accountId: String) {
+        val account = synchronized(accounts) { accounts[accountId] } ?: return
+        synchronized(account) {
+            if (!account.writeScheduled) return
+            account.writeScheduled = false
+            write(accountId, account.conversations)
+        }
+    }
+
+    /** Deletes the preferences of the account */
+    fun delete(accountId: String) {
+        synchronized(accounts) { accounts.remove(accountId) }?.let { synchronized(it) { it.writeScheduled = false } }
+        file(accountId).delete()
+        legacy?.delete(accountId)
+    }
+
+    /** @return the preferences of the account, loaded under the account lock only */
+    private fun account(accountId: String): AccountPreferences {
+        val account = synchronized(accounts) { accounts.getOrPut(accountId) { AccountPreferences() } }
+        synchronized(account) {
+            if (!account.loaded) {
+                account.conversations.putAll(load(accountId))
+                account.loaded = true
+            }
+        }
+        return account
+    }
+
+    private fun load(accountId: String): Map<String, MutableMap<String, String>> {
+        val start = System.nanoTime()
+        val file = file(accountId)
+        val conversations = if (file.exists()) {
+            read(file) ?: HashMap()
+        } else {
+            val migrated = legacy?.read(accountId)
+            if (migrated.isNullOrEmpty()) HashMap() else {
+                val conversations = migrated.mapValuesTo(HashMap()) { (_, v) -> HashMap(v) }
+                if (write(accountId, conversations)) legacy?.delete(accountId)
+                Log.w(TAG, "Migrated the preferences of ${conversations.size} conversations of $accountId")
+                conversations
+            }
+        }
+        Log.d(TAG, "Loaded the preferences of ${conversations.size} conversations in ${(System.nanoTime() - start) / 1_000_000} ms")
+        return conversations
+    }
+
+    private fun file(accountId: String) = File(directory, accountId + EXTENSION)
+
+    private fun write(accountId: String, conversations: Map<String, Map<String, String>>): Boolean {
+        val file = file(accountId)
+        val tmp = File(directory, file.name + ".tmp")
+        return try {
+            directory.mkdirs()
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out -> encode(out, conversations) }
+            if (!tmp.renameTo(file)) throw IOException("Can't rename $tmp")
+            true
+        } catch (e: IOException) {
+            Log.w(TAG, "Can't write conversation preferences of $accountId", e)
+            tmp.delete()
+            false
+        }
+    }
+
+    private fun read(file: File): MutableMap<String, MutableMap<String, String>>? = try {
+        DataInputStream(ByteArrayInputStream(file.readBytes())).use { decode(it) }
+    } catch (e: IOException) {
+        Log.w(TAG, "Ignoring invalid conversation preferences $file", e)
+        null
+    }
+
+    companion object {
+        private val TAG = ConversationPreferencesStore::class.simpleName!!
+        private const val EXTENSION = ".preferences"
+        private const val MAGIC = 0x4A435053 // JCPS
+        private const val VERSION = 1
+        private const val WRITE_DELAY_MS = 500L
+
+        internal fun encode(out: DataOutputStream, conversations: Map<String, Map<String, String>>) {
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeInt(conversations.size)
+            for ((uri, preferences) in conversations) {
+                writeString(out, uri)
+                out.writeInt(preferences.size)
+                for ((key, value) in preferences) {
+                    writeString(out, key)
+                    writeString(out, value)
+                }
+            }
+        }
+
+        internal fun decode(input: DataInputStream): MutableMap<String, MutableMap<String, String>> {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) throw IOException("Not a preferences file")
+            val count = input.readInt()
+            val conversations = HashMap<String, MutableMap<String, String>>(count * 2)
+            repeat(count) {
+                val uri = readString(input)
+                val size = input.readInt()
+                val preferences = HashMap<String, String>(size * 2)
+                repeat(size) { preferences[readString(input)] = readString(input) }
+                conversations[uri] = preferences
+            }
+            return conversations
+        }
+
+        private fun writeString(out: DataOutputStream, value: String) {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            out.writeInt(bytes.size)
+            out.write(bytes)
+        }
+
+        private fun readString(input: DataInputStream): String {
+            val size = input.readInt()
+            if (size < 0 || size > input.available()) throw EOFException()
+            val bytes = ByteArray(size)
+            input.readFully(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
+    }
+}
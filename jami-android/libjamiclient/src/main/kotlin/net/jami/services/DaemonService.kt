@@ -18,6 +18,7 @@ package net.jami.services
 
 import net.jami.daemon.*
 import net.jami.model.Uri
+import net.jami.utils.LatencyTracker
 import net.jami.utils.Log
 import java.util.concurrent.ScheduledExecutorService
 import javax.inject.Named
@@ -27,7 +28,8 @@ class DaemonService(
     @Named("DaemonExecutor") private val mExecutor: ScheduledExecutorService,
     private val mCallService: CallService,
     private val mHardwareService: HardwareService,
-    private val mAccountService: AccountService
+    private val mAccountService: AccountService,
+    private val mLatency: LatencyTracker
 ) {
     // references must be kept to avoid garbage collection while pointers are stored in the daemon.
     private var mHardwareCallback: DaemonVideoCallback? = null
@@ -45,6 +47,15 @@ class DaemonService(
         fun getDeviceName(ret: StringVect)
     }
 
+    /** Runs a callback on the daemon thread that called it */
+    private inline fun measure(name: String, block: () -> Unit) = mLatency.measure(name, 0L, block)
+
+    /** Runs a callback on the executor, recording its queue time */
+    private inline fun submit(name: String, crossinline block: () -> Unit) {
+        val enqueued = System.nanoTime()
+        mExecutor.submit { mLatency.measure(name, enqueued) { block() } }
+    }
+
     @Synchronized
     fun startDaemon() {
         if (!isStarted) {
@@ -81,29 +92,33 @@ class DaemonService(
 
     internal inner class DaemonConfigurationCallback : ConfigurationCallback() {
         override fun volumeChanged(device: String, value: Int) {
-            mAccountService.volumeChanged(device, value)
+            measure("volumeChanged") {
+                mAccountService.volumeChanged(device, value)
+            }
         }
 
         override fun accountsChanged() {
-            mExecutor.submit { mAccountService.accountsChanged() }
+            submit("accountsChanged") { mAccountService.accountsChanged() }
         }
 
         override fun stunStatusFailure(accountId: String) {
-            mAccountService.stunStatusFailure(accountId)
+            measure("stunStatusFailure") {
+                mAccountService.stunStatusFailure(accountId)
+            }
         }
 
         override fun registrationStateChanged(accountId: String, newState: String, code: Int, detailString: String) {
-            mExecutor.submit { mAccountService.registrationStateChanged(accountId, newState, code, detailString) }
+            submit("registrationStateChanged") { mAccountService.registrationStateChanged(accountId, newState, code, detailString) }
         }
 
         override fun volatileAccountDetailsChanged(account_id: String, details: StringMap) {
             val jdetails: Map<String, String> = details.toNative()
-            mExecutor.submit { mAccountService.volatileAccountDetailsChanged(account_id, jdetails) }
+            submit("volatileAccountDetailsChanged") { mAccountService.volatileAccountDetailsChanged(account_id, jdetails) }
         }
 
         override fun accountDetailsChanged(account_id: String, details: StringMap) {
             val jdetails: Map<String, String> = details.toNative()
-            mExecutor.submit { mAccountService.accountDetailsChanged(account_id, jdetails) }
+            submit("accountDetailsChanged") { mAccountService.accountDetailsChanged(account_id, jdetails) }
         }
 
         override fun activeCallsChanged(
@@ -111,273 +126,379 @@ class DaemonService(
             conversationId: String,
             activeCalls: VectMap,
         ) {
-            mAccountService.activeCallsChanged(accountId, conversationId, activeCalls.toNative())
+            measure("activeCallsChanged") {
+                mAccountService.activeCallsChanged(accountId, conversationId, activeCalls.toNative())
+            }
         }
 
         override fun profileReceived(accountId: String, peerId: String, path: String) {
-            mExecutor.submit { mAccountService.profileReceived(accountId, peerId, path) }
+            submit("profileReceived") { mAccountService.profileReceived(accountId, peerId, path) }
         }
 
         override fun accountProfileReceived(account_id: String, name: String, photo: String) {
-            mAccountService.accountProfileReceived(account_id, name, photo)
+            measure("accountProfileReceived") {
+                mAccountService.accountProfileReceived(account_id, name, photo)
+            }
         }
 
         override fun incomingAccountMessage(accountId: String, from: String, messageId: String, messages: StringMap) {
             if (messages.isEmpty()) return
             val jmessages: Map<String, String> = messages.toNativeFromUtf8()
-            mExecutor.submit { mAccountService.incomingAccountMessage(accountId, messageId, null, from, jmessages) }
+            submit("incomingAccountMessage") { mAccountService.incomingAccountMessage(accountId, messageId, null, from, jmessages) }
         }
 
         override fun accountMessageStatusChanged(accountId: String, conversationId: String, peer: String, messageId: String, status: Int) {
-            mExecutor.submit {
+            submit("accountMessageStatusChanged") {
                 mAccountService.accountMessageStatusChanged(accountId, conversationId, messageId, peer, status)
             }
         }
 
         override fun composingStatusChanged(accountId: String, conversationId: String, contactUri: String, status: Int) {
-            mExecutor.submit { mAccountService.composingStatusChanged(accountId, conversationId, contactUri, status) }
+            submit("composingStatusChanged") { mAccountService.composingStatusChanged(accountId, conversationId, contactUri, status) }
         }
 
         override fun errorAlert(alert: Int) {
-            mExecutor.submit { mAccountService.errorAlert(alert) }
+            submit("errorAlert") { mAccountService.errorAlert(alert) }
         }
 
         override fun getHardwareAudioFormat(ret: IntVect) {
-            mSystemInfoCallbacks.getHardwareAudioFormat(ret)
+            measure("getHardwareAudioFormat") {
+                mSystemInfoCallbacks.getHardwareAudioFormat(ret)
+            }
         }
 
         override fun getAppDataPath(name: String, ret: StringVect) {
-            mSystemInfoCallbacks.getAppDataPath(name, ret)
+            measure("getAppDataPath") {
+                mSystemInfoCallbacks.getAppDataPath(name, ret)
+            }
         }
 
         override fun getDeviceName(ret: StringVect) {
-            mSystemInfoCallbacks.getDeviceName(ret)
+            measure("getDeviceName") {
+                mSystemInfoCallbacks.getDeviceName(ret)
+            }
         }
 
         override fun knownDevicesChanged(accountId: String, devices: StringMap) {
             val jdevices: Map<String, String> = devices.toNativeFromUtf8()
-            mExecutor.submit { mAccountService.knownDevicesChanged(accountId, jdevices) }
+            submit("knownDevicesChanged") { mAccountService.knownDevicesChanged(accountId, jdevices) }
         }
 
         override fun exportOnRingEnded(accountId: String, code: Int, pin: String) {
-            mAccountService.exportOnRingEnded(accountId, code, pin)
+            measure("exportOnRingEnded") {
+                mAccountService.exportOnRingEnded(accountId, code, pin)
+            }
         }
 
         override fun nameRegistrationEnded(accountId: String, state: Int, name: String) {
-            mAccountService.nameRegistrationEnded(accountId, state, name)
+            measure("nameRegistrationEnded") {
+                mAccountService.nameRegistrationEnded(accountId, state, name)
+            }
         }
 
         override fun registeredNameFound(accountId: String, state: Int, address: String, name: String) {
-            mAccountService.registeredNameFound(accountId, state, address, name)
+            measure("registeredNameFound") {
+                mAccountService.registeredNameFound(accountId, state, address, name)
+            }
         }
 
         override fun userSearchEnded(accountId: String, state: Int, query: String, results: VectMap) {
-            mAccountService.userSearchEnded(accountId, state, query, results.toNative())
+            measure("userSearchEnded") {
+                mAccountService.userSearchEnded(accountId, state, query, results.toNative())
+            }
         }
 
         override fun migrationEnded(accountId: String, state: String) {
-            mAccountService.migrationEnded(accountId, state)
+            measure("migrationEnded") {
+                mAccountService.migrationEnded(accountId, state)
+            }
         }
 
         override fun deviceRevocationEnded(accountId: String, device: String, state: Int) {
-            mAccountService.deviceRevocationEnded(accountId, device, state)
+            measure("deviceRevocationEnded") {
+                mAccountService.deviceRevocationEnded(accountId, device, state)
+            }
         }
 
         override fun incomingTrustRequest(accountId: String, conversationId: String, from: String, message: Blob, received: Long) {
         }
 
         override fun contactAdded(accountId: String, uri: String, confirmed: Boolean) {
-            mExecutor.submit { mAccountService.contactAdded(accountId, uri, confirmed) }
+            submit("contactAdded") { mAccountService.contactAdded(accountId, uri, confirmed) }
         }
 
         override fun contactRemoved(accountId: String, uri: String, blocked: Boolean) {
-            mExecutor.submit { mAccountService.contactRemoved(accountId, uri, blocked) }
+            submit("contactRemoved") { mAccountService.contactRemoved(accountId, uri, blocked) }
         }
 
         override fun messageSend(message: String) {
-            mHardwareService.logMessage(message)
+            measure("messageSend") {
+                mHardwareService.logMessage(message)
+            }
         }
     }
 
     internal inner class DaemonCallAndConferenceCallback : Callback() {
         override fun callStateChanged(accountId: String, callId: String, newState: String, detailCode: Int) {
-            mCallService.callStateChanged(accountId, callId, newState, detailCode)
+            measure("callStateChanged") {
+                mCallService.callStateChanged(accountId, callId, newState, detailCode)
+            }
         }
 
         override fun audioMuted(callId: String, muted: Boolean) {
-            mCallService.audioMuted(callId, muted)
+            measure("audioMuted") {
+                mCallService.audioMuted(callId, muted)
+            }
         }
 
         override fun videoMuted(callId: String, muted: Boolean) {
-            mCallService.videoMuted(callId, muted)
+            measure("videoMuted") {
+                mCallService.videoMuted(callId, muted)
+            }
         }
 
         override fun incomingCall(accountId: String, callId: String, from: String) {
-            // Should be kept while multi-stream is not enabled for Android by default
-            mCallService.incomingCallWithMedia(accountId, callId, from, null)
+            measure("incomingCall") {
+                // Should be kept while multi-stream is not enabled for Android by default
+                mCallService.incomingCallWithMedia(accountId, callId, from, null)
+            }
         }
 
         override fun incomingCallWithMedia(accountId: String, callId: String, from: String, mediaList: VectMap) {
-            mCallService.incomingCallWithMedia(accountId, callId, from, mediaList)
+            measure("incomingCallWithMedia") {
+                mCallService.incomingCallWithMedia(accountId, callId, from, mediaList)
+            }
         }
 
         override fun mediaChangeRequested(accountId: String, callId: String, mediaList: VectMap) {
-            mCallService.mediaChangeRequested(accountId, callId, mediaList)
+            measure("mediaChangeRequested") {
+                mCallService.mediaChangeRequested(accountId, callId, mediaList)
+            }
         }
 
         override fun mediaNegotiationStatus(callId: String, event: String, mediaList: VectMap) {
-            mCallService.mediaNegotiationStatus(callId, event, mediaList)
+            measure("mediaNegotiationStatus") {
+                mCallService.mediaNegotiationStatus(callId, event, mediaList)
+            }
         }
 
         override fun connectionUpdate(id: String, state: Int) {
-            mCallService.connectionUpdate(id, state)
+            measure("connectionUpdate") {
+                mCallService.connectionUpdate(id, state)
+            }
         }
 
         override fun remoteRecordingChanged(call_id: String, peer_number: String, state: Boolean) {
-            mCallService.remoteRecordingChanged(call_id, Uri.fromString(peer_number), state)
+            measure("remoteRecordingChanged") {
+                mCallService.remoteRecordingChanged(call_id, Uri.fromString(peer_number), state)
+            }
         }
 
         override fun onConferenceInfosUpdated(confId: String, infos: VectMap) {
-            mCallService.onConferenceInfoUpdated(confId, infos.toNative())
+            measure("onConferenceInfosUpdated") {
+                mCallService.onConferenceInfoUpdated(confId, infos.toNative())
+            }
         }
 
         override fun incomingMessage(accountId: String, callId: String, from: String, messages: StringMap) {
             if (messages.isEmpty()) return
             val jmessages: Map<String, String> = messages.toNativeFromUtf8()
-            mExecutor.submit { mCallService.incomingMessage(accountId, callId, from, jmessages) }
+            submit("incomingMessage") { mCallService.incomingMessage(accountId, callId, from, jmessages) }
         }
 
         override fun conferenceCreated(accountId: String, conversationId: String, confId: String) {
-            mCallService.conferenceCreated(accountId, conversationId, confId)
+            measure("conferenceCreated") {
+                mCallService.conferenceCreated(accountId, conversationId, confId)
+            }
         }
 
         override fun conferenceRemoved(accountId: String, confId: String) {
-            mCallService.conferenceRemoved(accountId, confId)
+            measure("conferenceRemoved") {
+                mCallService.conferenceRemoved(accountId, confId)
+            }
         }
 
         override fun conferenceChanged(accountId: String, confId: String, state: String) {
-            mCallService.conferenceChanged(accountId, confId, state)
+            measure("conferenceChanged") {
+                mCallService.conferenceChanged(accountId, confId, state)
+            }
         }
 
         override fun recordPlaybackFilepath(id: String, filename: String) {
-            mCallService.recordPlaybackFilepath(id, filename)
+            measure("recordPlaybackFilepath") {
+                mCallService.recordPlaybackFilepath(id, filename)
+            }
         }
 
         override fun onRtcpReportReceived(callId: String, stats: IntegerMap) {
-            mCallService.onRtcpReportReceived(callId)
+            measure("onRtcpReportReceived") {
+                mCallService.onRtcpReportReceived(callId)
+            }
         }
     }
 
     internal inner class DaemonPresenceCallback : PresenceCallback() {
         override fun newServerSubscriptionRequest(remote: String) {
-            Log.d(TAG, "newServerSubscriptionRequest: $remote")
+            measure("newServerSubscriptionRequest") {
+                Log.d(TAG, "newServerSubscriptionRequest: $remote")
+            }
         }
 
         override fun serverError(accountId: String, error: String, message: String) {
-            Log.d(TAG, "serverError: $accountId, $error, $message")
+            measure("serverError") {
+                Log.d(TAG, "serverError: $accountId, $error, $message")
+            }
         }
 
         override fun newBuddyNotification(accountId: String, buddyUri: String, status: Int, lineStatus: String) {
-            mAccountService.getAccount(accountId)?.presenceUpdate(buddyUri, status)
+            measure("newBuddyNotification") {
+                mAccountService.getAccount(accountId)?.presenceUpdate(buddyUri, status)
+            }
         }
 
         override fun subscriptionStateChanged(accountId: String, buddyUri: String, state: Int) {
-            Log.d(TAG, "subscriptionStateChanged: $accountId, $buddyUri, $state")
+            measure("subscriptionStateChanged") {
+                Log.d(TAG, "subscriptionStateChanged: $accountId, $buddyUri, $state")
+            }
         }
     }
 
     private inner class DaemonVideoCallback : VideoCallback() {
         override fun decodingStarted(id: String, shmPath: String, width: Int, height: Int, isMixer: Boolean) {
-            mHardwareService.decodingStarted(id, shmPath, width, height, isMixer)
+            measure("decodingStarted") {
+                mHardwareService.decodingStarted(id, shmPath, width, height, isMixer)
+            }
         }
 
         override fun decodingStopped(id: String, shmPath: String, isMixer: Boolean) {
-            mHardwareService.decodingStopped(id, shmPath, isMixer)
+            measure("decodingStopped") {
+                mHardwareService.decodingStopped(id, shmPath, isMixer)
+            }
         }
 
         override fun getCameraInfo(camId: String, formats: IntVect, sizes: UintVect, rates: UintVect) {
-            mHardwareService.getCameraInfo(camId, formats, sizes, rates)
+            measure("getCameraInfo") {
+                mHardwareService.getCameraInfo(camId, formats, sizes, rates)
+            }
         }
 
         override fun setParameters(camId: String, format: Int, width: Int, height: Int, rate: Int) {
-            mHardwareService.setParameters(camId, format, width, height, rate)
+            measure("setParameters") {
+                mHardwareService.setParameters(camId, format, width, height, rate)
+            }
         }
 
         override fun requestKeyFrame(camId: String) {
-            mHardwareService.requestKeyFrame(camId)
+            measure("requestKeyFrame") {
+                mHardwareService.requestKeyFrame(camId)
+            }
         }
 
         override fun setBitrate(camId: String, bitrate: Int) {
-            mHardwareService.setBitrate(camId, bitrate)
+            measure("setBitrate") {
+                mHardwareService.setBitrate(camId, bitrate)
+            }
         }
 
         override fun startCapture(camId: String) {
-            mHardwareService.startCapture(camId)
+            measure("startCapture") {
+                mHardwareService.startCapture(camId)
+            }
         }
 
         override fun stopCapture(camId: String) {
-            mHardwareService.stopCapture(camId)
+            measure("stopCapture") {
+                mHardwareService.stopCapture(camId)
+            }
         }
     }
 
     internal inner class DaemonDataTransferCallback : DataTransferCallback() {
         override fun dataTransferEvent(accountId: String, conversationId: String, interactionId: String, fileId: String, eventCode: Int) {
-            Log.d(TAG, "dataTransferEvent: conversationId=$conversationId, fileId=$fileId, eventCode=$eventCode")
-            mAccountService.dataTransferEvent(accountId, conversationId, interactionId, fileId, eventCode)
+            measure("dataTransferEvent") {
+                Log.d(TAG, "dataTransferEvent: conversationId=$conversationId, fileId=$fileId, eventCode=$eventCode")
+                mAccountService.dataTransferEvent(accountId, conversationId, interactionId, fileId, eventCode)
+            }
         }
     }
 
     internal inner class ConversationCallbackImpl : ConversationCallback() {
         override fun swarmLoaded(id: Long, accountId: String, conversationId: String, messages: SwarmMessageVect) {
-            mAccountService.swarmLoaded(id, accountId, conversationId, messages)
+            measure("swarmLoaded") {
+                mAccountService.swarmLoaded(id, accountId, conversationId, messages)
+            }
         }
 
         override fun messagesFound(id: Long, accountId: String, conversationId: String, messages: VectMap) {
-            mAccountService.messagesFound(id, accountId, conversationId, messages.toNative())
+            measure("messagesFound") {
+                mAccountService.messagesFound(id, accountId, conversationId, messages.toNative())
+            }
         }
 
         override fun conversationReady(accountId: String, conversationId: String) {
-            mAccountService.conversationReady(accountId, conversationId)
+            measure("conversationReady") {
+                mAccountService.conversationReady(accountId, conversationId)
+            }
         }
 
         override fun conversationRemoved(accountId: String, conversationId: String) {
-            mAccountService.conversationRemoved(accountId, conversationId)
+            measure("conversationRemoved") {
+                mAccountService.conversationRemoved(accountId, conversationId)
+            }
         }
 
         override fun conversationRequestReceived(accountId: String, conversationId: String, metadata: StringMap) {
-            mAccountService.conversationRequestReceived(accountId, conversationId, metadata.toNativeFromUtf8())
+            measure("conversationRequestReceived") {
+                mAccountService.conversationRequestReceived(accountId, conversationId, metadata.toNativeFromUtf8())
+            }
         }
 
         override fun conversationRequestDeclined(accountId: String, conversationId: String) {
-            mAccountService.conversationRequestDeclined(accountId, conversationId)
+            measure("conversationRequestDeclined") {
+                mAccountService.conversationRequestDeclined(accountId, conversationId)
+            }
         }
 
         override fun conversationMemberEvent(accountId: String, conversationId: String, uri: String, event: Int) {
-            mAccountService.conversationMemberEvent(accountId, conversationId, uri, event)
+            measure("conversationMemberEvent") {
+                mAccountService.conversationMemberEvent(accountId, conversationId, uri, event)
+            }
         }
 
         override fun conversationProfileUpdated(accountId: String, conversationId: String, profile: StringMap) {
-            mAccountService.conversationProfileUpdated(accountId, conversationId, profile)
+            measure("conversationProfileUpdated") {
+                mAccountService.conversationProfileUpdated(accountId, conversationId, profile)
+            }
         }
 
         override fun conversationPreferencesUpdated(accountId: String, conversationId: String, preferences: StringMap) {
-            mAccountService.conversationPreferencesUpdated(accountId, conversationId, preferences)
+            measure("conversationPreferencesUpdated") {
+                mAccountService.conversationPreferencesUpdated(accountId, conversationId, preferences)
+            }
         }
 
         override fun swarmMessageReceived(accountId: String, conversationId: String, message: SwarmMessage) {
-            mAccountService.swarmMessageReceived(accountId, conversationId, message)
+            measure("swarmMessageReceived") {
+                mAccountService.swarmMessageReceived(accountId, conversationId, message)
+            }
         }
 
         override fun swarmMessageUpdated(accountId: String, conversationId: String, message: SwarmMessage) {
-            mAccountService.swarmMessageUpdated(accountId, conversationId, message)
+            measure("swarmMessageUpdated") {
+                mAccountService.swarmMessageUpdated(accountId, conversationId, message)
+            }
         }
 
         override fun reactionAdded(accountId: String, conversationId: String, messageId: String, reaction: StringMap) {
-            mAccountService.reactionAdded(accountId, conversationId, messageId, reaction)
+            measure("reactionAdded") {
+                mAccountService.reactionAdded(accountId, conversationId, messageId, reaction)
+            }
         }
 
         override fun reactionRemoved(accountId: String, conversationId: String, messageId: String, reactionId: String) {
-            mAccountService.reactionRemoved(accountId, conversationId, messageId, reactionId)
+            measure("reactionRemoved") {
+                mAccountService.reactionRemoved(accountId, conversationId, messageId, reactionId)
+            }
         }
     }
 
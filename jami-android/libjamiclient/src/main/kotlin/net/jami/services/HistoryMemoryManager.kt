@@ -0,0 +1,163 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import net.jami.model.Conversation
+import net.jami.utils.Log
+import java.util.IdentityHashMap
+
+/**
+ * Keeps the memory used by loaded conversation histories under a process-wide budget.
+ * Loaded conversations are tracked by last access, and the least recently used histories
+ * are unloaded once their estimated footprint exceeds the budget.
+ * The footprint of a history is sampled each time it is touched or extended, so the manager
+ * never needs to lock a conversation while holding its own lock.
+ * Open conversations are pinned and never unloaded: a history is only unloaded under the
+ * conversation lock, after checking again that it wasn't pinned or shown in the meantime.
+ */
+class HistoryMemoryManager(budget: Long) {
+    // Loaded conversations with their last sampled footprint, least recently accessed first
+    private val conversations = LinkedHashMap<Conversation, Long>(16, 0.75f, true)
+    private val pinned: MutableMap<Conversation, Int> = IdentityHashMap()
+    private var used = 0L
+
+    /** Maximum estimated memory used by loaded histories, in bytes */
+    var budget: Long = budget
+        set(value) {
+            synchronized(this) { field = value }
+            trim()
+        }
+
+    /** Number of histories unloaded since creation */
+    var unloadCount = 0L
+        @Synchronized get
+        private set
+
+    /** Estimated memory released by unloading histories since creation, in bytes */
+    var unloadedBytes = 0L
+        @Synchronized get
+        private set
+
+    /** Number of tracked loaded histories */
+    val loadedCount: Int
+        @Synchronized get() = conversations.size
+
+    /** Estimated memory currently used by loaded histories, in bytes */
+    val usedBytes: Long
+        @Synchronized get() = used
+
+    /** Marks the history of [conversation] as recently used and unloads the coldest ones if needed */
+    fun touch(conversation: Conversation) {
+        val size = footprint(conversation)
+        synchronized(this) { update(conversation, size) }
+        trim()
+    }
+
+    /** Samples again the footprint of a tracked history that was extended, and unloads the coldest ones if needed */
+    fun resample(conversation: Conversation) {
+        val size = footprint(conversation)
+        synchronized(this) {
+            if (!conversations.containsKey(conversation)) return
+            update(conversation, size)
+        }
+        trim()
+    }
+
+    /** Prevents the history of an open conversation from being unloaded */
+    fun pin(conversation: Conversation) {
+        val size = footprint(conversation)
+        synchronized(this) {
+            pinned[conversation] = (pinned[conversation] ?: 0) + 1
+            update(conversation, size)
+        }
+    }
+
+    @Synchronized
+    fun unpin(conversation: Conversation) {
+        val count = pinned[conversation] ?: return
+        if (count > 1) pinned[conversation] = count - 1
+        else pinned.remove(conversation)
+    }
+
+    /** Stops tracking a conversation that was removed or cleared */
+    @Synchronized
+    fun remove(conversation: Conversation) {
+        conversations.remove(conversation)?.let { used -= it }
+        pinned.remove(conversation)
+    }
+
+    /** Unloads the least recently used histories until the estimated footprint fits in the budget */
+    fun trim() {
+        val evicted = ArrayList<Pair<Conversation, Long>>()
+        synchronized(this) {
+            val it = conversations.entries.iterator()
+            while (used > budget && it.hasNext()) {
+                val (conversation, size) = it.next()
+                if (isInUse(conversation))
+                    continue
+                it.remove()
+                evicted.add(Pair(conversation, size))
+                used -= size
+                unloadCount++
+                unloadedBytes += size
+            }
+        }
+        // Unload outside of the manager lock, histories can be large
+        for ((conversation, evictedSize) in evicted) {
+            val unloaded = synchronized(conversation) {
+                // The conversation may have been opened or touched since it was picked
+                if (!isEvictable(conversation)) false
+                else {
+                    Log.d(TAG, "Unloading history of ${conversation.uri}")
+                    conversation.unloadHistory()
+                    true
+                }
+            }
+            if (!unloaded) {
+                // Track it again, unless pin() or touch() already did
+                val size = footprint(conversation)
+                synchronized(this) {
+                    unloadCount--
+                    unloadedBytes -= evictedSize
+                    if (!conversations.containsKey(conversation))
+                        update(conversation, size)
+                }
+            }
+        }
+    }
+
+    private fun isInUse(conversation: Conversation): Boolean =
+        pinned.containsKey(conversation) || conversation.isVisible || conversation.loading != null
+
+    /** @return true if a conversation picked by [trim] wasn't used or tracked again since */
+    @Synchronized
+    private fun isEvictable(conversation: Conversation): Boolean =
+        !conversations.containsKey(conversation) && !isInUse(conversation)
+
+    private fun update(conversation: Conversation, size: Long) {
+        used += size - (conversations.put(conversation, size) ?: 0L)
+    }
+
+    companion object {
+        private val TAG = HistoryMemoryManager::class.simpleName!!
+        // Rough memory cost of a loaded interaction with its subjects and view state
+        const val INTERACTION_FOOTPRINT = 1024L
+
+        fun footprint(conversation: Conversation): Long =
+            conversation.loadedHistorySize * INTERACTION_FOOTPRINT
+    }
+}
@@ -17,6 +17,7 @@
 package net.jami.services
 
 import com.j256.ormlite.dao.Dao
+import com.j256.ormlite.misc.TransactionManager
 import com.j256.ormlite.support.ConnectionSource
 import io.reactivex.rxjava3.core.Completable
 import io.reactivex.rxjava3.core.Scheduler
@@ -24,11 +25,50 @@ import io.reactivex.rxjava3.core.Single
 import io.reactivex.rxjava3.schedulers.Schedulers
 import net.jami.model.*
 import net.jami.model.Interaction.InteractionStatus
+import net.jami.utils.LatencyTracker
 import net.jami.utils.Log
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Stores the history of non-swarm conversations, in one database per account.
+ * Each account has its own writer thread, so that slow writes of an account don't delay the others.
+ * Reads run on a small pool shared by all accounts, concurrently with the writers.
+ * Databases not in use are closed beyond [MAX_OPEN_DATABASES], least recently used first.
+ * If [latency] is set, the queue wait of the writers and readers and the number of open databases are reported.
+ */
+abstract class HistoryService(latency: LatencyTracker? = null) {
+    private val writers: MutableMap<String, Scheduler> = ConcurrentHashMap()
+    private val writerProbe = latency?.probe("History writers")
+    private val readers: Scheduler = Schedulers.from(executor("history-reader", READER_THREADS, latency?.probe("History readers")))
+    // Number of running operations of each open database, least recently used first
+    private val openDatabases = LinkedHashMap<String, IntArray>(8, 0.75f, true)
+    // Accounts whose database is being closed and deleted, guarded by openDatabases
+    private val clearing = HashSet<String>()
+    private var maxOpenDatabases = 0
+    // Inserts and updates, committed in one transaction per account
+    private val writeQueue = HistoryWriteQueue(::writer, WRITE_BATCH_SIZE, WRITE_DELAY_MS) { accountId, writes ->
+        withDatabase(accountId) {
+            TransactionManager.callInTransaction(getConnectionSource(accountId)) {
+                for (write in writes) write()
+            }
+        }
+    }
+
+    init {
+        latency?.gauge("History open databases") {
+            synchronized(openDatabases) { "${openDatabases.size} (max $maxOpenDatabases)" }
+        }
+    }
+
+    /** @return the scheduler running the writes of the account, one at a time */
+    internal fun writer(accountId: String): Scheduler =
+        writers.computeIfAbsent(accountId) { Schedulers.from(executor("history-writer", 1, writerProbe)) }
 
-abstract class HistoryService {
-    val scheduler: Scheduler = Schedulers.single()
     protected abstract fun getConnectionSource(dbName: String): ConnectionSource?
     protected abstract fun getInteractionDataDao(dbName: String): Dao<Interaction, Int>
     protected abstract fun getConversationDataDao(dbName: String): Dao<ConversationHistory, Int>
@@ -38,9 +78,99 @@ abstract class HistoryService {
     abstract fun getLastMessageNotified(accountId: String, conversationUri: Uri): String?
 
     protected abstract fun deleteAccountHistory(accountId: String)
+
+    /** Prepares the storage of the account in the background, before its conversations are accessed */
+    open fun preload(accountId: String) {}
+
+    /** Closes the database of the account, opened again on next access */
+    protected open fun closeDatabase(accountId: String) {}
+
+    /**
+     * Deletes the database of the account.
+     * Waits for the running reads to end before closing it, and reads started meanwhile wait for the deletion.
+     */
     fun clearHistory(accountId: String): Completable = Completable
-        .fromAction { deleteAccountHistory(accountId) }
-        .subscribeOn(scheduler)
+        .fromAction {
+            writeQueue.discard(accountId)
+            synchronized(openDatabases) {
+                clearing.add(accountId)
+                while ((openDatabases[accountId]?.get(0) ?: 0) > 0)
+                    lock.wait()
+                openDatabases.remove(accountId)
+                closeDatabase(accountId)
+            }
+            try {
+                deleteAccountHistory(accountId)
+            } finally {
+                synchronized(openDatabases) {
+                    clearing.remove(accountId)
+                    lock.notifyAll()
+                }
+            }
+        }
+        .subscribeOn(writer(accountId))
+
+    /**
+     * Commits the queued writes of the account.
+     * Called on the writer of the account before any other access, so that it sees the previous writes.
+     */
+    protected fun flushWrites(accountId: String) = writeQueue.flush(accountId)
+
+    /** Runs [block] with the database of the account, which can't be closed meanwhile */
+    private inline fun <T> withDatabase(accountId: String, block: () -> T): T {
+        synchronized(openDatabases) {
+            while (accountId in clearing)
+                lock.wait()
+            openDatabases.getOrPut(accountId) { IntArray(1) }[0]++
+            if (openDatabases.size > maxOpenDatabases) maxOpenDatabases = openDatabases.size
+        }
+        try {
+            return block()
+        } finally {
+            synchronized(openDatabases) {
+                openDatabases[accountId]?.let { if (--it[0] == 0 && accountId in clearing) lock.notifyAll() }
+                closeIdleDatabases()
+            }
+        }
+    }
+
+    // Monitor of openDatabases, to wait for readers and clears
+    @Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+    private val lock: Object
+        get() = openDatabases as Object
+
+    private fun closeIdleDatabases() {
+        var excess = openDatabases.size - MAX_OPEN_DATABASES
+        val it = openDatabases.entries.iterator()
+        while (excess > 0 && it.hasNext()) {
+            val (accountId, users) = it.next()
+            if (users[0] == 0) {
+                it.remove()
+                closeDatabase(accountId)
+                excess--
+            }
+        }
+    }
+
+    /** Runs [action] on the writer of the account, after its queued writes */
+    private fun <T : Any> write(accountId: String, action: () -> T): Single<T> = Single
+        .fromCallable {
+            withDatabase(accountId) {
+                flushWrites(accountId)
+                action()
+            }
+        }
+        .subscribeOn(writer(accountId))
+
+    /**
+     * Runs [query] on a reader once the queued writes of the account are committed.
+     * Doesn't wait for the writer if the account has no queued write.
+     */
+    private fun <T : Any> read(accountId: String, query: () -> T): Single<T> = Single.defer {
+        val read = Single.fromCallable { withDatabase(accountId, query) }.subscribeOn(readers)
+        if (writeQueue.isIdle(accountId)) read
+        else Completable.fromAction { flushWrites(accountId) }.subscribeOn(writer(accountId)).andThen(read)
+    }
 
     /**
      * Clears a conversation's history
@@ -51,10 +181,10 @@ abstract class HistoryService {
      * @return
      */
     fun clearHistory(contactId: String, accountId: String, deleteConversation: Boolean): Completable =
-        if (accountId.isEmpty()) Completable.complete() else Completable.fromAction {
+        if (accountId.isEmpty()) Completable.complete() else write(accountId) {
             var deleted = 0
             val conversation = getConversationDataDao(accountId).queryBuilder()
-                .where().eq(ConversationHistory.COLUMN_PARTICIPANT, contactId).queryForFirst() ?: return@fromAction
+                .where().eq(ConversationHistory.COLUMN_PARTICIPANT, contactId).queryForFirst() ?: return@write
             val deleteBuilder = getInteractionDataDao(accountId).deleteBuilder()
             if (deleteConversation) {
                 // complete delete, remove conversation and all interactions
@@ -68,7 +198,7 @@ abstract class HistoryService {
             }
             deleted += deleteBuilder.delete()
             Log.w(TAG, "clearHistory: removed $deleted elements")
-        }.subscribeOn(scheduler)
+        }.ignoreElement()
 
     /**
      * Clears all interactions in the app. Maintains contact events and actual conversations.
@@ -76,32 +206,32 @@ abstract class HistoryService {
      * @param accounts the list of accounts in the app
      * @return a completable
      */
-    fun clearHistory(accounts: List<Account>): Completable = Completable.fromAction {
-        for (account in accounts) {
+    fun clearHistory(accounts: List<Account>): Completable = Completable.merge(accounts.map { account ->
+        write(account.accountId) {
             getInteractionDataDao(account.accountId).deleteBuilder().let { deleteBuilder ->
                 deleteBuilder.where().ne(Interaction.COLUMN_TYPE, Interaction.InteractionType.CONTACT.toString())
                 deleteBuilder.delete()
             }
-        }
-    }.subscribeOn(scheduler)
+        }.ignoreElement()
+    })
 
-    fun updateInteraction(interaction: Interaction, accountId: String): Completable = Completable
-        .fromAction { getInteractionDataDao(accountId).update(interaction) }
-        .subscribeOn(scheduler)
+    /** Queues an update of the interaction, committed with the other pending writes of the account */
+    fun updateInteraction(interaction: Interaction, accountId: String): Completable =
+        writeQueue.write(accountId) { getInteractionDataDao(accountId).update(interaction) }
 
-    fun deleteInteraction(id: Int, accountId: String): Completable = Completable
-        .fromAction { getInteractionDataDao(accountId).deleteById(id) }
-        .subscribeOn(scheduler)
+    fun deleteInteraction(id: Int, accountId: String): Completable =
+        write(accountId) { getInteractionDataDao(accountId).deleteById(id) }.ignoreElement()
 
     /**
-     * Inserts an interaction into the database, and if necessary, a conversation
+     * Inserts an interaction into the database, and if necessary, a conversation.
+     * The insert is queued and committed with the other pending writes of the account.
      *
      * @param accountId    the user's account ID
      * @param conversation the conversation
      * @param interaction  the interaction to insert
      * @return a conversation single
      */
-    fun insertInteraction(accountId: String, conversation: Conversation, interaction: Interaction): Completable = Completable.fromAction {
+    fun insertInteraction(accountId: String, conversation: Conversation, interaction: Interaction): Completable = writeQueue.write(accountId) {
         Log.d(TAG, "Inserting interaction for account -> $accountId")
         val conversationDataDao = getConversationDataDao(accountId)
         val history = conversationDataDao.queryBuilder().where().eq(ConversationHistory.COLUMN_PARTICIPANT, conversation.participant).queryForFirst() ?:
@@ -111,7 +241,6 @@ abstract class HistoryService {
         getInteractionDataDao(accountId).create(interaction)
     }
         .doOnError { e: Throwable -> Log.e(TAG, "Can't insert interaction", e) }
-        .subscribeOn(scheduler)
 
     /**
      * Loads data required to load the smartlist. Only requires the most recent message or contact action.
@@ -119,31 +248,11 @@ abstract class HistoryService {
      * @param accountId required to query the appropriate account database
      * @return a list of the most recent interactions with each contact
      */
-    fun getSmartlist(accountId: String): Single<List<Interaction>> = Single.fromCallable {
+    fun getSmartlist(accountId: String): Single<List<Interaction>> = read(accountId) {
         Log.d(TAG, "Loading smartlist {$accountId}")
-        // a raw query is done as MAX is not supported by ormlite without a raw query and a raw query cannot be combined with an orm query so a complete raw query is done
-        // raw row mapper maps the sqlite result which is a list of strings, into the interactions object
-        getInteractionDataDao(accountId).queryRaw("""
-    SELECT * FROM (SELECT DISTINCT id, author, conversation, MAX(timestamp), body, type, status, daemon_id, is_read, extra_data from interactions GROUP BY interactions.conversation) as final
-    JOIN conversations
-    WHERE conversations.id = final.conversation
-    GROUP BY final.conversation
-    
-    """.trimIndent(), { columnNames: Array<String>, resultColumns: Array<String> ->
-                Interaction(
-                    resultColumns[0],
-                    resultColumns[1],
-                    ConversationHistory(resultColumns[2].toInt(), resultColumns[12]),
-                    resultColumns[3],
-                    resultColumns[4],
-                    resultColumns[5],
-                    resultColumns[6],
-                    resultColumns[7],
-                    resultColumns[8],
-                    resultColumns[9]
-                )}).results
+        // The last interaction of each conversation is read from the summary table, maintained on each write
+        InteractionQueries.smartlist(getInteractionDataDao(accountId).connectionSource)
     }
-        .subscribeOn(scheduler)
         .doOnError { e: Throwable -> Log.e(TAG, "Can't load smartlist from database", e) }
         .onErrorReturn { ArrayList() }
 
@@ -154,18 +263,33 @@ abstract class HistoryService {
      * @param conversationId the conversation id
      * @return a conversation and all of its interactions
      */
-    fun getConversationHistory(accountId: String, conversationId: Int): Single<List<Interaction>> = Single.fromCallable {
+    fun getConversationHistory(accountId: String, conversationId: Int): Single<List<Interaction>> = read(accountId) {
         Log.d(TAG, "Loading conversation history:  Account ID -> $accountId, ConversationID -> $conversationId")
         val interactionDataDao = getInteractionDataDao(accountId)
         interactionDataDao.query(interactionDataDao.queryBuilder()
                 .orderBy(Interaction.COLUMN_TIMESTAMP, true)
                 .where().eq(Interaction.COLUMN_CONVERSATION, conversationId)
                 .prepare())
-    }.subscribeOn(scheduler)
+    }
         .doOnError { e: Throwable -> Log.e(TAG, "Can't load conversation from database", e) }
         .onErrorReturn { ArrayList() }
 
-    fun incomingMessage(accountId: String, daemonId: String?, from: String, message: String): Single<TextMessage> = Single.fromCallable {
+    /**
+     * Retrieves a page of a conversation history, ordered by timestamp.
+     * Pages are selected by keyset, so loading older pages doesn't scan the more recent interactions.
+     *
+     * @param accountId      the user's account id
+     * @param conversationId the conversation id
+     * @param before         the oldest interaction already loaded, or null to load the most recent page
+     * @param limit          the maximum number of interactions to load
+     * @return up to [limit] interactions preceding [before], or an error if the database can't be read
+     */
+    fun getConversationHistoryPage(accountId: String, conversationId: Int, before: Interaction?, limit: Int): Single<List<Interaction>> = read(accountId) {
+        InteractionQueries.historyPage(getInteractionDataDao(accountId).connectionSource, conversationId, before, limit)
+    }
+        .doOnError { e: Throwable -> Log.e(TAG, "Can't load conversation from database", e) }
+
+    fun incomingMessage(accountId: String, daemonId: String?, from: String, message: String): Single<TextMessage> = write(accountId) {
         val fromUri = Uri.fromString(from).uri
         val conversationDataDao = getConversationDataDao(accountId)
         val conversation = conversationDataDao.queryBuilder().where().eq(ConversationHistory.COLUMN_PARTICIPANT, fromUri)
@@ -177,7 +301,7 @@ abstract class HistoryService {
         Log.w(TAG, "New text messsage " + txt.author + " " + txt.daemonId + " " + txt.body)
         getInteractionDataDao(accountId).create(txt)
         txt
-    }.subscribeOn(scheduler)
+    }
 
     fun accountMessageStatusChanged(
         accountId: String,
@@ -185,12 +309,10 @@ abstract class HistoryService {
         peer: String,
         interactionStatus: InteractionStatus,
         messageState: Interaction.MessageStates,
-    ): Single<TextMessage> = Single.fromCallable {
-        val textList = getInteractionDataDao(accountId).queryForEq(Interaction.COLUMN_DAEMON_ID, daemonId)
-        if (textList == null || textList.isEmpty()) {
-            throw RuntimeException("accountMessageStatusChanged: not able to find message with id $daemonId in database")
-        }
-        val text = textList[0]
+    ): Single<TextMessage> = write(accountId) {
+        val connectionSource = getInteractionDataDao(accountId).connectionSource
+        val text = (daemonId.toLongOrNull() ?: daemonId.toLongOrNull(16))?.let { InteractionQueries.findByDaemonId(connectionSource, it) }
+            ?: throw RuntimeException("accountMessageStatusChanged: not able to find message with id $daemonId in database")
         val participant = Uri.fromString(peer).uri
         if (text.conversation!!.participant != participant) {
             throw RuntimeException("accountMessageStatusChanged: received an invalid text message")
@@ -198,12 +320,36 @@ abstract class HistoryService {
         val msg = TextMessage(text)
         msg.status = interactionStatus
         msg.statusMap = msg.statusMap.plus(accountId to messageState)
-        getInteractionDataDao(accountId).update(msg)
+        InteractionQueries.updateStatus(connectionSource, msg)
         msg.account = accountId
         msg
-    }.subscribeOn(scheduler)
+    }
 
     companion object {
         private val TAG = HistoryService::class.java.simpleName
+        private const val WRITE_BATCH_SIZE = 256
+        private const val WRITE_DELAY_MS = 50L
+        private const val READER_THREADS = 2
+        private const val MAX_OPEN_DATABASES = 4
+        private const val IDLE_THREAD_TIMEOUT_S = 30L
+
+        /** @return an executor of [threads] threads stopping when idle, recording the queue wait and run time in [probe] */
+        private fun executor(name: String, threads: Int, probe: LatencyTracker.Probe?): Executor {
+            val pool = ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT_S, TimeUnit.SECONDS, LinkedBlockingQueue()) { r -> Thread(r, name) }
+            pool.allowCoreThreadTimeOut(true)
+            if (probe == null) return pool
+            return Executor { task ->
+                val enqueued = System.nanoTime()
+                pool.execute {
+                    val start = System.nanoTime()
+                    probe.wait.recordNanos(start - enqueued)
+                    try {
+                        task.run()
+                    } finally {
+                        probe.run.recordNanos(System.nanoTime() - start)
+                    }
+                }
+            }
+        }
     }
 }
\ No newline at end of file
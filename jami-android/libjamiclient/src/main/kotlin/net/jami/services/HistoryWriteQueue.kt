@@ -0,0 +1,111 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.core.Completable
+import io.reactivex.rxjava3.core.Scheduler
+import io.reactivex.rxjava3.subjects.CompletableSubject
+import java.util.concurrent.TimeUnit
+
+/**
+ * Groups database writes per account, so that they are committed together.
+ * Pending writes of an account are run by [commit] on the [scheduler] of the account once [batchSize] writes
+ * are queued, or [delay] milliseconds after the first one, or when [flush] is called.
+ */
+internal class HistoryWriteQueue(
+    private val scheduler: (accountId: String) -> Scheduler,
+    private val batchSize: Int,
+    private val delay: Long,
+    private val commit: (accountId: String, writes: List<() -> Unit>) -> Unit
+) {
+    private class Write(val action: () -> Unit, val completion: CompletableSubject)
+
+    private class Batch {
+        val writes = ArrayList<Write>()
+        var scheduled = false
+    }
+
+    private val batches = HashMap<String, Batch>()
+    // Accounts with a batch being committed
+    private val committing = HashSet<String>()
+
+    /** @return a Completable completing when [action] is committed, queued on subscription */
+    fun write(accountId: String, action: () -> Unit): Completable = Completable.defer {
+        val completion = CompletableSubject.create()
+        val schedule = synchronized(batches) {
+            val batch = batches.getOrPut(accountId) { Batch() }
+            batch.writes.add(Write(action, completion))
+            when {
+                batch.writes.size >= batchSize -> {
+                    batch.scheduled = true
+                    0L
+                }
+                !batch.scheduled -> {
+                    batch.scheduled = true
+                    delay
+                }
+                else -> -1L
+            }
+        }
+        if (schedule == 0L)
+            scheduler(accountId).scheduleDirect { flush(accountId) }
+        else if (schedule > 0L)
+            scheduler(accountId).scheduleDirect({ flush(accountId) }, schedule, TimeUnit.MILLISECONDS)
+        completion
+    }
+
+    /** @return true if the account has no write pending or being committed */
+    fun isIdle(accountId: String): Boolean = synchronized(batches) {
+        !batches.containsKey(accountId) && !committing.contains(accountId)
+    }
+
+    /** Commits the pending writes of the account. Must be called on the [scheduler] of the account. */
+    fun flush(accountId: String) {
+        val writes = synchronized(batches) {
+            batches.remove(accountId)?.writes?.also { committing.add(accountId) }
+        } ?: return
+        try {
+            commitAll(accountId, writes)
+        } finally {
+            synchronized(batches) { committing.remove(accountId) }
+        }
+    }
+
+    private fun commitAll(accountId: String, writes: List<Write>) {
+        try {
+            commit(accountId, writes.map { it.action })
+        } catch (e: Exception) {
+            // Retry one by one so that a failing write doesn't fail the others
+            for (write in writes) {
+                try {
+                    commit(accountId, listOf(write.action))
+                    write.completion.onComplete()
+                } catch (e: Exception) {
+                    write.completion.onError(e)
+                }
+            }
+            return
+        }
+        for (write in writes) write.completion.onComplete()
+    }
+
+    /** Drops the pending writes of the account */
+    fun discard(accountId: String) {
+        val writes = synchronized(batches) { batches.remove(accountId)?.writes } ?: return
+        for (write in writes) write.completion.onError(IllegalStateException("History of $accountId was deleted"))
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import com.j256.ormlite.field.FieldType
+import com.j256.ormlite.field.SqlType
+import com.j256.ormlite.stmt.StatementBuilder.StatementType
+import com.j256.ormlite.support.CompiledStatement
+import com.j256.ormlite.support.ConnectionSource
+import com.j256.ormlite.support.DatabaseConnection
+import com.j256.ormlite.support.DatabaseResults
+import net.jami.model.Conversation
+import net.jami.model.ConversationHistory
+import net.jami.model.ConversationSummary
+import net.jami.model.Interaction
+import net.jami.model.Interaction.InteractionStatus
+import net.jami.model.Interaction.InteractionType
+
+/**
+ * Hot queries on the interactions table.
+ * Rows are read by column position with their stored type, without the reflection of the DAO mapping
+ * or the parsing of raw string results. ORMLite still manages the schema.
+ * The SQL of each statement is constant, so that SQLite reuses its compiled form from the connection statement cache.
+ */
+internal object InteractionQueries {
+    private const val COLUMNS = "i.${Interaction.COLUMN_ID}, i.${Interaction.COLUMN_AUTHOR}, i.${Interaction.COLUMN_CONVERSATION}, " +
+            "i.${Interaction.COLUMN_TIMESTAMP}, i.${Interaction.COLUMN_BODY}, i.${Interaction.COLUMN_TYPE}, i.${Interaction.COLUMN_STATUS}, " +
+            "i.${Interaction.COLUMN_DAEMON_ID}, i.${Interaction.COLUMN_IS_READ}, i.${Interaction.COLUMN_EXTRA_FLAG}"
+    // Position of the participant column of the queries joining the conversations
+    private const val PARTICIPANT = 10
+    private const val HISTORY_ORDER = " ORDER BY i.${Interaction.COLUMN_TIMESTAMP} DESC, i.${Interaction.COLUMN_ID} DESC"
+
+    internal const val HISTORY = "SELECT $COLUMNS FROM ${Interaction.TABLE_NAME} i" +
+            " WHERE i.${Interaction.COLUMN_CONVERSATION} = ?" + HISTORY_ORDER
+    // The timestamp range seeks in the conversation index, the id only breaks ties
+    internal const val HISTORY_BEFORE = "SELECT $COLUMNS FROM ${Interaction.TABLE_NAME} i" +
+            " WHERE i.${Interaction.COLUMN_CONVERSATION} = ? AND i.${Interaction.COLUMN_TIMESTAMP} <= ?" +
+            " AND (i.${Interaction.COLUMN_TIMESTAMP} < ? OR i.${Interaction.COLUMN_ID} < ?)" + HISTORY_ORDER
+    internal const val SMARTLIST = "SELECT $COLUMNS, c.${ConversationHistory.COLUMN_PARTICIPANT} FROM ${ConversationSummary.TABLE_NAME} s" +
+            " JOIN ${Interaction.TABLE_NAME} i ON i.${Interaction.COLUMN_ID} = s.${ConversationSummary.COLUMN_LAST_ID}" +
+            " JOIN ${ConversationHistory.TABLE_NAME} c ON c.${ConversationHistory.COLUMN_CONVERSATION_ID} = s.${ConversationSummary.COLUMN_CONVERSATION}"
+    internal const val BY_DAEMON_ID = "SELECT $COLUMNS, c.${ConversationHistory.COLUMN_PARTICIPANT} FROM ${Interaction.TABLE_NAME} i" +
+            " JOIN ${ConversationHistory.TABLE_NAME} c ON c.${ConversationHistory.COLUMN_CONVERSATION_ID} = i.${Interaction.COLUMN_CONVERSATION}" +
+            " WHERE i.${Interaction.COLUMN_DAEMON_ID} = ?"
+    internal const val UPDATE_STATUS = "UPDATE ${Interaction.TABLE_NAME}" +
+            " SET ${Interaction.COLUMN_STATUS} = ?, ${Interaction.COLUMN_IS_READ} = ? WHERE ${Interaction.COLUMN_ID} = ?"
+
+    private val NO_FIELDS = emptyArray<FieldType>()
+    private const val DEFAULT_EXTRA_FLAG = "{}"
+
+    /** @return up to [limit] interactions of the conversation preceding [before], ordered by timestamp */
+    fun historyPage(source: ConnectionSource, conversationId: Int, before: Interaction?, limit: Int): List<Interaction> {
+        // Interactions only reference the conversation by id
+        val conversation = ConversationHistory().apply { id = conversationId }
+        return query(source, if (before == null) HISTORY else HISTORY_BEFORE, limit, { statement ->
+            statement.setObject(0, conversationId, SqlType.INTEGER)
+            if (before != null) {
+                statement.setObject(1, before.timestamp, SqlType.LONG)
+                statement.setObject(2, before.timestamp, SqlType.LONG)
+                statement.setObject(3, before.id, SqlType.INTEGER)
+            }
+        }) { results -> readInteraction(results, conversation) }.asReversed()
+    }
+
+    /** @return the last interaction of each conversation, from the conversation summary */
+    fun smartlist(source: ConnectionSource): List<Interaction> =
+        query(source, SMARTLIST, 0, {}) { results -> readInteraction(results, readConversation(results)) }
+
+    /** @return the interaction with the daemon id, with its conversation participant */
+    fun findByDaemonId(source: ConnectionSource, daemonId: Long): Interaction? =
+        query(source, BY_DAEMON_ID, 1, { statement -> statement.setObject(0, daemonId, SqlType.LONG) }) { results ->
+            readInteraction(results, readConversation(results))
+        }.firstOrNull()
+
+    /** Updates the status and read state of the interaction */
+    fun updateStatus(source: ConnectionSource, interaction: Interaction): Int {
+        val connection = source.getReadWriteConnection(Interaction.TABLE_NAME)
+        try {
+            return compile(connection, UPDATE_STATUS, StatementType.UPDATE).use { statement ->
+                statement.setObject(0, interaction.status.name, SqlType.STRING)
+                statement.setObject(1, interaction.mIsRead, SqlType.INTEGER)
+                statement.setObject(2, interaction.id, SqlType.INTEGER)
+                statement.runUpdate()
+            }
+        } finally {
+            source.releaseConnection(connection)
+        }
+    }
+
+    private inline fun <T> query(
+        source: ConnectionSource,
+        sql: String,
+        maxRows: Int,
+        bind: (CompiledStatement) -> Unit,
+        read: (DatabaseResults) -> T
+    ): List<T> {
+        val connection = source.getReadOnlyConnection(Interaction.TABLE_NAME)
+        try {
+            compile(connection, sql, StatementType.SELECT_RAW).use { statement ->
+                bind(statement)
+                if (maxRows > 0) statement.setMaxRows(maxRows)
+                statement.runQuery(null).use { results ->
+                    val rows = ArrayList<T>()
+                    var next = results.first()
+                    while (next) {
+                        rows.add(read(results))
+                        next = results.next()
+                    }
+                    return rows
+                }
+            }
+        } finally {
+            source.releaseConnection(connection)
+        }
+    }
+
+    private fun compile(connection: DatabaseConnection, sql: String, type: StatementType): CompiledStatement =
+        connection.compileStatement(sql, type, NO_FIELDS, DatabaseConnection.DEFAULT_RESULT_FLAGS, false)
+
+    private fun readConversation(results: DatabaseResults) = ConversationHistory().apply {
+        id = results.getInt(2)
+        participant = results.getString(PARTICIPANT)
+    }
+
+    private fun readInteraction(results: DatabaseResults, conversation: ConversationHistory): Interaction {
+        // Null columns are only reported right after being read
+        val daemonId = results.getLong(7).takeUnless { results.wasNull(7) }
+        return Conversation.getTypedInteraction(Interaction(
+            results.getInt(0),
+            results.getString(1),
+            conversation,
+            results.getLong(3),
+            results.getString(4),
+            InteractionType.fromString(results.getString(5) ?: ""),
+            InteractionStatus.fromString(results.getString(6) ?: ""),
+            daemonId,
+            results.getInt(8),
+            results.getString(9) ?: DEFAULT_EXTRA_FLAG
+        ))
+    }
+}
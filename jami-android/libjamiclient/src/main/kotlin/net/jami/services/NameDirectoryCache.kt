@@ -0,0 +1,295 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.core.Scheduler
+import io.reactivex.rxjava3.core.Single
+import io.reactivex.rxjava3.schedulers.Schedulers
+import net.jami.services.AccountService.LookupState
+import net.jami.services.AccountService.RegisteredName
+import net.jami.utils.LatencyTracker
+import net.jami.utils.Log
+import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Caches name directory lookups of each account, in memory and in [directory].
+ * Found names are kept for [FOUND_TTL_MS], names and addresses that aren't registered for [NOT_FOUND_TTL_MS].
+ * Network errors are not cached.
+ * Concurrent lookups of the same name or address share a single request.
+ * If [latency] is set, the time of the requests is recorded under "Name lookups"
+ * and the cache statistics are reported under "Name cache".
+ */
+class NameDirectoryCache(
+    private val directory: File?,
+    latency: LatencyTracker? = null,
+    private val scheduler: Scheduler = Schedulers.io(),
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+    private class Entry(val name: String, val address: String?, val state: LookupState, val expires: Long)
+
+    private class Names {
+        val byName = HashMap<String, Entry>()
+        val byAddress = HashMap<String, Entry>()
+        var writeScheduled = false
+    }
+
+    class Stats(val hits: Long, val notFoundHits: Long, val misses: Long, val coalesced: Long) {
+        override fun toString(): String = "hits $hits (not found $notFoundHits), misses $misses, coalesced $coalesced"
+    }
+
+    private val accounts = HashMap<String, Names>()
+    // Ongoing requests, by account and name or address
+    private val pending = HashMap<Pair<String, String>, Single<RegisteredName>>()
+    private val hits = AtomicLong()
+    private val notFoundHits = AtomicLong()
+    private val misses = AtomicLong()
+    private val coalesced = AtomicLong()
+    private val probe = latency?.probe("Name lookups")
+
+    init {
+        latency?.gauge("Name cache") { stats() }
+    }
+
+    /** @return the cached result of looking up [name], or null */
+    fun findByName(accountId: String, name: String): RegisteredName? =
+        find(accountId, name) { it.byName }
+
+    /** @return the cached result of looking up [address], or null */
+    fun findByAddress(accountId: String, address: String): RegisteredName? =
+        find(accountId, address) { it.byAddress }
+
+    /** @return true if the result of looking up [address] is cached, without counting it as a hit */
+    fun containsAddress(accountId: String, address: String): Boolean =
+        entry(accountId, address) { it.byAddress } != null
+
+    /** @return the cached result of looking up [name], or the result of [request], shared with concurrent lookups */
+    fun lookupName(accountId: String, name: String, request: Single<RegisteredName>): Single<RegisteredName> =
+        findByName(accountId, name)?.let { Single.just(it) } ?: lookup(accountId, NAME_PREFIX + name, request)
+
+    /**
+     * Looks up [name] to check if it can be registered.
+     * Only found names are answered from the cache: a name that wasn't registered may have been since.
+     */
+    fun lookupNameAvailability(accountId: String, name: String, request: Single<RegisteredName>): Single<RegisteredName> {
+        val cached = entry(accountId, name) { it.byName }
+        if (cached != null && cached.state == LookupState.Success) {
+            hits.incrementAndGet()
+            return Single.just(RegisteredName(accountId, cached.name, cached.address, cached.state))
+        }
+        return lookup(accountId, NAME_PREFIX + name, request)
+    }
+
+    /** @return the cached result of looking up [address], or the result of [request], shared with concurrent lookups */
+    fun lookupAddress(accountId: String, address: String, request: Single<RegisteredName>): Single<RegisteredName> =
+        findByAddress(accountId, address)?.let { Single.just(it) } ?: lookup(accountId, ADDRESS_PREFIX + address, request)
+
+    /** Caches the result of a lookup */
+    fun put(result: RegisteredName) {
+        val ttl = when (result.state) {
+            LookupState.Success -> FOUND_TTL_MS
+            LookupState.NotFound, LookupState.Invalid -> NOT_FOUND_TTL_MS
+            LookupState.NetworkError -> return
+        }
+        val entry = Entry(result.name, result.address, result.state, clock() + ttl)
+        val names = names(result.accountId)
+        synchronized(names) {
+            if (entry.name.isNotEmpty()) names.byName[entry.name] = entry
+            if (!entry.address.isNullOrEmpty()) names.byAddress[entry.address] = entry
+        }
+        scheduleWrite(result.accountId, names)
+    }
+
+    /** Forgets the cached lookups of [name] in every loaded account, after it was registered */
+    fun forgetName(name: String) {
+        val loaded = synchronized(accounts) { accounts.toList() }
+        for ((accountId, names) in loaded) {
+            val removed = synchronized(names) {
+                names.byName.remove(name)?.also { entry ->
+                    if (!entry.address.isNullOrEmpty() && names.byAddress[entry.address] === entry)
+                        names.byAddress.remove(entry.address)
+                }
+            }
+            if (removed != null) scheduleWrite(accountId, names)
+        }
+    }
+
+    private fun scheduleWrite(accountId: String, names: Names) {
+        synchronized(names) {
+            if (names.writeScheduled || directory == null || accountId.isEmpty()) return
+            names.writeScheduled = true
+        }
+        scheduler.scheduleDirect({ flush(accountId) }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS)
+    }
+
+    /** Writes the pending changes of the account */
+    fun flush(accountId: String) {
+        val names = synchronized(accounts) { accounts[accountId] } ?: return
+        synchronized(names) {
+            if (!names.writeScheduled) return
+            names.writeScheduled = false
+            write(accountId, names)
+        }
+    }
+
+    /** Deletes the cache of the account */
+    fun delete(accountId: String) {
+        synchronized(accounts) { accounts.remove(accountId) }?.let { synchronized(it) { it.writeScheduled = false } }
+        directory?.let { File(it, accountId + EXTENSION).delete() }
+    }
+
+    fun stats() = Stats(hits.get(), notFoundHits.get(), misses.get(), coalesced.get())
+
+    private inline fun find(accountId: String, key: String, index: (Names) -> MutableMap<String, Entry>): RegisteredName? {
+        val entry = entry(accountId, key, index) ?: return null
+        hits.incrementAndGet()
+        if (entry.state != LookupState.Success) notFoundHits.incrementAndGet()
+        return RegisteredName(accountId, entry.name, entry.address, entry.state)
+    }
+
+    /** @return the unexpired entry of [key], removing it if it expired */
+    private inline fun entry(accountId: String, key: String, index: (Names) -> MutableMap<String, Entry>): Entry? {
+        val names = names(accountId)
+        synchronized(names) {
+            val map = index(names)
+            val entry = map[key] ?: return null
+            if (entry.expires <= clock()) {
+                map.remove(key)
+                return null
+            }
+            return entry
+        }
+    }
+
+    private fun lookup(accountId: String, key: String, request: Single<RegisteredName>): Single<RegisteredName> {
+        val pendingKey = Pair(accountId, key)
+        synchronized(pending) {
+            pending[pendingKey]?.let {
+                coalesced.incrementAndGet()
+                return it
+            }
+            misses.incrementAndGet()
+            val start = System.nanoTime()
+            return request
+                .doOnSuccess {
+                    probe?.run?.recordNanos(System.nanoTime() - start)
+                    put(it)
+                }
+                .doFinally { synchronized(pending) { pending.remove(pendingKey) } }
+                .cache()
+                .apply { pending[pendingKey] = this }
+        }
+    }
+
+    private fun names(accountId: String): Names = synchronized(accounts) {
+        accounts.getOrPut(accountId) { load(accountId) }
+    }
+
+    private fun load(accountId: String): Names {
+        val names = Names()
+        if (directory == null || accountId.isEmpty()) return names
+        val file = File(directory, accountId + EXTENSION)
+        if (!file.exists()) return names
+        try {
+            val now = clock()
+            DataInputStream(ByteArrayInputStream(file.readBytes())).use { input ->
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) throw IOException("Not a name cache")
+                repeat(input.readInt()) {
+                    val name = readString(input)!!
+                    val address = readString(input)
+                    val entry = Entry(name, address, LookupState.fromInt(input.readByte().toInt()), input.readLong())
+                    if (entry.expires > now) {
+                        if (entry.name.isNotEmpty()) names.byName[entry.name] = entry
+                        if (!entry.address.isNullOrEmpty()) names.byAddress[entry.address] = entry
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Ignoring invalid name cache $file", e)
+            file.delete()
+        }
+        return names
+    }
+
+    private fun write(accountId: String, names: Names) {
+        val file = File(directory, accountId + EXTENSION)
+        val tmp = File(directory, file.name + ".tmp")
+        val now = clock()
+        val entries = Collections.newSetFromMap(IdentityHashMap<Entry, Boolean>())
+        names.byName.values.filterTo(entries) { it.expires > now }
+        names.byAddress.values.filterTo(entries) { it.expires > now }
+        try {
+            directory!!.mkdirs()
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+                out.writeInt(MAGIC)
+                out.writeInt(VERSION)
+                out.writeInt(entries.size)
+                for (entry in entries) {
+                    writeString(out, entry.name)
+                    writeString(out, entry.address)
+                    out.writeByte(entry.state.ordinal)
+                    out.writeLong(entry.expires)
+                }
+            }
+            if (!tmp.renameTo(file)) throw IOException("Can't rename $tmp")
+        } catch (e: IOException) {
+            Log.w(TAG, "Can't write name cache of $accountId", e)
+            tmp.delete()
+        }
+    }
+
+    companion object {
+        private val TAG = NameDirectoryCache::class.simpleName!!
+        private const val EXTENSION = ".names"
+        private const val MAGIC = 0x4A4E4443 // JNDC
+        private const val VERSION = 1
+        private const val NAME_PREFIX = "name:"
+        private const val ADDRESS_PREFIX = "address:"
+        private const val WRITE_DELAY_MS = 2000L
+        internal val FOUND_TTL_MS = TimeUnit.DAYS.toMillis(7)
+        internal val NOT_FOUND_TTL_MS = TimeUnit.HOURS.toMillis(1)
+
+        private fun writeString(out: DataOutputStream, value: String?) {
+            if (value == null) {
+                out.writeInt(-1)
+            } else {
+                val bytes = value.toByteArray(Charsets.UTF_8)
+                out.writeInt(bytes.size)
+                out.write(bytes)
+            }
+        }
+
+        private fun readString(input: DataInputStream): String? {
+            val size = input.readInt()
+            if (size < 0) return null
+            if (size > input.available()) throw EOFException()
+            val bytes = ByteArray(size)
+            input.readFully(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.core.Scheduler
+import io.reactivex.rxjava3.schedulers.Schedulers
+import net.jami.model.Uri
+import java.util.concurrent.TimeUnit
+
+/**
+ * Collapses the read state updates of each conversation:
+ * the last notified message is saved and the displayed marker is sent to the daemon
+ * at most once per [delay], with the latest message id received during that time.
+ */
+class ReadStateTracker(
+    private val notify: (accountId: String, conversationUri: Uri, messageId: String) -> Unit,
+    private val display: (accountId: String, conversationUri: Uri, messageId: String) -> Unit,
+    private val scheduler: Scheduler = Schedulers.computation(),
+    private val delay: Long = DELAY_MS
+) {
+    private class Pending(val accountId: String, val conversationUri: Uri) {
+        var notified: String? = null
+        var displayed: String? = null
+    }
+
+    private val pending = LinkedHashMap<Pair<String, Uri>, Pending>()
+
+    /** Saves [messageId] as the last notified message of the conversation */
+    fun notified(accountId: String, conversationUri: Uri, messageId: String) =
+        update(accountId, conversationUri) { it.notified = messageId }
+
+    /** Sends [messageId] to the daemon as the last displayed message of the conversation */
+    fun displayed(accountId: String, conversationUri: Uri, messageId: String) =
+        update(accountId, conversationUri) { it.displayed = messageId }
+
+    private inline fun update(accountId: String, conversationUri: Uri, change: (Pending) -> Unit) {
+        val schedule = synchronized(pending) {
+            val key = Pair(accountId, conversationUri)
+            val empty = pending.isEmpty()
+            change(pending.getOrPut(key) { Pending(accountId, conversationUri) })
+            empty
+        }
+        if (schedule) scheduler.scheduleDirect(::flush, delay, TimeUnit.MILLISECONDS)
+    }
+
+    /** Applies the pending updates now */
+    fun flush() {
+        val updates = synchronized(pending) {
+            ArrayList(pending.values).also { pending.clear() }
+        }
+        for (update in updates) {
+            update.notified?.let { notify(update.accountId, update.conversationUri, it) }
+            update.displayed?.let { display(update.accountId, update.conversationUri, it) }
+        }
+    }
+
+    companion object {
+        private const val DELAY_MS = 300L
+    }
+}
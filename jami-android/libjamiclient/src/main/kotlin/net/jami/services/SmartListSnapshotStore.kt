@@ -0,0 +1,222 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import net.jami.utils.Log
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Persists the conversation list of each account, so that it can be shown at startup
+ * before the daemon loaded the conversations.
+ * Snapshots are stored in a versioned binary format in [directory], one file per account,
+ * written atomically and read through a memory mapping.
+ */
+class SmartListSnapshotStore(private val directory: File) {
+    class Member(val uri: String, val role: Int)
+
+    class Preview(
+        val type: Int,
+        val author: String?,
+        val body: String?,
+        val timestamp: Long,
+        val isIncoming: Boolean,
+        val transferStatus: Int,
+        val isRead: Boolean,
+        /** Call duration or contact event ordinal, needed to show those events */
+        val detail: Long = 0
+    )
+
+    class Entry(
+        val conversationId: String,
+        val mode: Int,
+        val title: String?,
+        val description: String?,
+        val avatarHash: Int,
+        val members: List<Member>,
+        val lastEvent: Preview?,
+        val preferences: Map<String, String>
+    )
+
+    private val snapshots: MutableMap<String, List<Entry>> = ConcurrentHashMap()
+    private val created = System.nanoTime()
+
+    /** Time elapsed since the store was created, in milliseconds */
+    val elapsed: Long
+        get() = (System.nanoTime() - created) / 1_000_000
+
+    /** Reads the snapshots of all accounts in memory */
+    fun preload() {
+        val start = System.nanoTime()
+        val files = directory.listFiles { f -> f.name.endsWith(EXTENSION) } ?: return
+        var count = 0
+        for (file in files) {
+            val accountId = file.name.removeSuffix(EXTENSION)
+            if (snapshots.containsKey(accountId)) continue
+            readFile(file)?.let {
+                snapshots[accountId] = it
+                count += it.size
+            }
+        }
+        Log.d(TAG, "Preloaded $count conversations in ${(System.nanoTime() - start) / 1_000_000} ms")
+    }
+
+    /** @return the conversation list of the account, or null if there is no valid snapshot */
+    fun read(accountId: String): List<Entry>? =
+        snapshots[accountId] ?: readFile(file(accountId))?.also { snapshots[accountId] = it }
+
+    @Synchronized
+    fun write(accountId: String, entries: List<Entry>) {
+        snapshots[accountId] = entries
+        val file = file(accountId)
+        val tmp = File(directory, file.name + ".tmp")
+        try {
+            directory.mkdirs()
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out -> encode(out, entries) }
+            if (!tmp.renameTo(file)) throw IOException("Can't rename $tmp")
+        } catch (e: IOException) {
+            Log.w(TAG, "Can't write snapshot for $accountId", e)
+            tmp.delete()
+        }
+    }
+
+    @Synchronized
+    fun delete(accountId: String) {
+        snapshots.remove(accountId)
+        file(accountId).delete()
+    }
+
+    private fun file(accountId: String) = File(directory, accountId + EXTENSION)
+
+    private fun readFile(file: File): List<Entry>? {
+        if (!file.exists()) return null
+        return try {
+            RandomAccessFile(file, "r").use { raf ->
+                val channel = raf.channel
+                decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+            }
+        } catch (e: Exception) {
+            when (e) {
+                is IOException, is BufferUnderflowException, is IllegalArgumentException -> {
+                    Log.w(TAG, "Ignoring invalid snapshot $file", e)
+                    file.delete()
+                    null
+                }
+                else -> throw e
+            }
+        }
+    }
+
+    companion object {
+        private val TAG = SmartListSnapshotStore::class.simpleName!!
+        private const val EXTENSION = ".smartlist"
+        private const val MAGIC = 0x4A534C53 // JSLS
+        private const val VERSION = 2
+
+        internal fun encode(out: DataOutputStream, entries: List<Entry>) {
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeInt(entries.size)
+            for (entry in entries) {
+                writeString(out, entry.conversationId)
+                out.writeByte(entry.mode)
+                writeString(out, entry.title)
+                writeString(out, entry.description)
+                out.writeInt(entry.avatarHash)
+                out.writeInt(entry.members.size)
+                for (member in entry.members) {
+                    writeString(out, member.uri)
+                    out.writeByte(member.role)
+                }
+                val preview = entry.lastEvent
+                out.writeBoolean(preview != null)
+                if (preview != null) {
+                    out.writeByte(preview.type)
+                    writeString(out, preview.author)
+                    writeString(out, preview.body)
+                    out.writeLong(preview.timestamp)
+                    out.writeBoolean(preview.isIncoming)
+                    out.writeByte(preview.transferStatus)
+                    out.writeBoolean(preview.isRead)
+                    out.writeLong(preview.detail)
+                }
+                out.writeInt(entry.preferences.size)
+                for ((key, value) in entry.preferences) {
+                    writeString(out, key)
+                    writeString(out, value)
+                }
+            }
+        }
+
+        /** @return the decoded entries, or null if the snapshot has another version */
+        internal fun decode(buffer: ByteBuffer): List<Entry>? {
+            if (buffer.int != MAGIC) throw IllegalArgumentException("Not a snapshot")
+            if (buffer.int != VERSION) return null
+            val count = buffer.int
+            val entries = ArrayList<Entry>(count)
+            repeat(count) {
+                val id = readString(buffer)!!
+                val mode = buffer.get().toInt()
+                val title = readString(buffer)
+                val description = readString(buffer)
+                val avatarHash = buffer.int
+                val members = List(buffer.int) { Member(readString(buffer)!!, buffer.get().toInt()) }
+                val preview = if (buffer.get().toInt() != 0) Preview(
+                    buffer.get().toInt(),
+                    readString(buffer),
+                    readString(buffer),
+                    buffer.long,
+                    buffer.get().toInt() != 0,
+                    buffer.get().toInt(),
+                    buffer.get().toInt() != 0,
+                    buffer.long
+                ) else null
+                val preferences = HashMap<String, String>()
+                repeat(buffer.int) { preferences[readString(buffer)!!] = readString(buffer)!! }
+                entries.add(Entry(id, mode, title, description, avatarHash, members, preview, preferences))
+            }
+            return entries
+        }
+
+        private fun writeString(out: DataOutputStream, value: String?) {
+            if (value == null) {
+                out.writeInt(-1)
+            } else {
+                val bytes = value.toByteArray(Charsets.UTF_8)
+                out.writeInt(bytes.size)
+                out.write(bytes)
+            }
+        }
+
+        private fun readString(buffer: ByteBuffer): String? {
+            val size = buffer.int
+            if (size < 0) return null
+            if (size > buffer.remaining()) throw BufferUnderflowException()
+            val bytes = ByteArray(size)
+            buffer.get(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
+    }
+}
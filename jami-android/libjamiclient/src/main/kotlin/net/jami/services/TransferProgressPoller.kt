@@ -0,0 +1,98 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.core.Scheduler
+import io.reactivex.rxjava3.disposables.Disposable
+import net.jami.model.Conversation
+import net.jami.model.DataTransfer
+import net.jami.model.Interaction.TransferStatus
+import java.util.IdentityHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Polls the progress of all ongoing data transfers with a single task.
+ * Transfers are polled every [VISIBLE_PERIOD_MS] while one of their conversations is visible,
+ * every [BACKGROUND_PERIOD_MS] otherwise.
+ * [onProgress] is only called for transfers whose progress changed by at least 1% (and [MIN_DELTA_BYTES]),
+ * or that reached their total size.
+ */
+class TransferProgressPoller(
+    private val scheduler: Scheduler,
+    /** @return the current progress of the transfer, in bytes */
+    private val progress: (Conversation, DataTransfer) -> Long,
+    private val onProgress: (DataTransfer) -> Unit
+) {
+    private class Entry(val conversation: Conversation, var emitted: Long)
+
+    private val transfers = IdentityHashMap<DataTransfer, Entry>()
+    private var task: Disposable? = null
+
+    /** Polls [transfer] until it is not ongoing anymore */
+    fun add(conversation: Conversation, transfer: DataTransfer) {
+        synchronized(transfers) {
+            transfers[transfer] = Entry(conversation, transfer.bytesProgress)
+            if (task == null) schedule(period())
+        }
+    }
+
+    /** Polls the ongoing transfers once. */
+    internal fun poll() {
+        val entries = synchronized(transfers) { ArrayList(transfers.entries) }
+        val ended = ArrayList<DataTransfer>()
+        for ((transfer, entry) in entries) {
+            if (transfer.transferStatus != TransferStatus.TRANSFER_ONGOING) {
+                ended.add(transfer)
+                continue
+            }
+            val bytes = progress(entry.conversation, transfer)
+            val total = transfer.totalSize
+            val changed = synchronized(transfer) {
+                if (transfer.transferStatus != TransferStatus.TRANSFER_ONGOING) return@synchronized false
+                transfer.bytesProgress = bytes
+                val delta = bytes - entry.emitted
+                (delta != 0L && bytes == total) || delta >= maxOf(total / 100, MIN_DELTA_BYTES)
+            }
+            if (changed) {
+                entry.emitted = bytes
+                onProgress(transfer)
+            }
+        }
+        synchronized(transfers) {
+            for (transfer in ended) transfers.remove(transfer)
+            task = null
+            if (transfers.isNotEmpty()) schedule(period())
+        }
+    }
+
+    /** Number of transfers being polled */
+    val size: Int
+        get() = synchronized(transfers) { transfers.size }
+
+    private fun period(): Long =
+        if (transfers.values.any { it.conversation.isVisible }) VISIBLE_PERIOD_MS else BACKGROUND_PERIOD_MS
+
+    private fun schedule(delay: Long) {
+        task = scheduler.scheduleDirect(::poll, delay, TimeUnit.MILLISECONDS)
+    }
+
+    companion object {
+        internal const val VISIBLE_PERIOD_MS = 500L
+        internal const val BACKGROUND_PERIOD_MS = 2000L
+        private const val MIN_DELTA_BYTES = 64 * 1024L
+    }
+}
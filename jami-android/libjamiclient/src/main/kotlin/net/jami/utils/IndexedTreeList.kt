@@ -0,0 +1,246 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import java.util.Random
+
+/**
+ * Mutable list backed by an implicit treap.
+ * Positional access, insertion and removal are O(log n).
+ * Each inserted element gets a [Node] handle that stays valid while the element is in the list,
+ * so its current position can be found, or an element inserted next to it, without scanning.
+ */
+class IndexedTreeList<E> : AbstractMutableList<E>() {
+    class Node<E> internal constructor(value: E, internal val priority: Int) {
+        var value: E = value
+            internal set
+        internal var left: Node<E>? = null
+        internal var right: Node<E>? = null
+        internal var parent: Node<E>? = null
+        internal var size = 1
+    }
+
+    private var root: Node<E>? = null
+    private val random = Random()
+
+    override val size: Int
+        get() = root?.size ?: 0
+
+    override fun get(index: Int): E = node(index).value
+
+    override fun set(index: Int, element: E): E {
+        val node = node(index)
+        val previous = node.value
+        node.value = element
+        return previous
+    }
+
+    override fun add(index: Int, element: E) {
+        addNode(index, element)
+    }
+
+    override fun removeAt(index: Int): E {
+        if (index < 0 || index >= size) throw IndexOutOfBoundsException("Index: $index, Size: $size")
+        val (left, rest) = split(root, index)
+        val (removed, right) = split(rest, 1)
+        root = merge(left, right)?.apply { parent = null }
+        modCount++
+        removed!!.parent = null
+        return removed.value
+    }
+
+    override fun clear() {
+        root = null
+        modCount++
+    }
+
+    override fun iterator(): MutableIterator<E> = object : MutableIterator<E> {
+        private var next: Node<E>? = root?.let { first(it) }
+        private var last: Node<E>? = null
+        private var expectedModCount = modCount
+
+        override fun hasNext(): Boolean = next != null
+
+        override fun next(): E {
+            if (modCount != expectedModCount) throw ConcurrentModificationException()
+            val n = next ?: throw NoSuchElementException()
+            next = successor(n)
+            last = n
+            return n.value
+        }
+
+        override fun remove() {
+            val n = last ?: throw IllegalStateException()
+            if (modCount != expectedModCount) throw ConcurrentModificationException()
+            removeNode(n)
+            last = null
+            expectedModCount = modCount
+        }
+    }
+
+    /** @return the node at [index] */
+    fun node(index: Int): Node<E> {
+        if (index < 0 || index >= size) throw IndexOutOfBoundsException("Index: $index, Size: $size")
+        var n = root!!
+        var i = index
+        while (true) {
+            val leftSize = n.left?.size ?: 0
+            n = if (i < leftSize) {
+                n.left!!
+            } else if (i == leftSize) {
+                return n
+            } else {
+                i -= leftSize + 1
+                n.right!!
+            }
+        }
+    }
+
+    /** @return the current position of [node], or -1 if it is not part of this list */
+    fun positionOf(node: Node<E>): Int {
+        var index = node.left?.size ?: 0
+        var n = node
+        while (true) {
+            val p = n.parent ?: break
+            if (n === p.right) index += (p.left?.size ?: 0) + 1
+            n = p
+        }
+        return if (n === root) index else -1
+    }
+
+    /**
+     * Binary search in a list where all the elements matching [predicate] come first.
+     * @return the number of elements matching [predicate]
+     */
+    fun partitionPoint(predicate: (E) -> Boolean): Int {
+        var n = root
+        var index = 0
+        while (n != null) {
+            n = if (predicate(n.value)) {
+                index += (n.left?.size ?: 0) + 1
+                n.right
+            } else {
+                n.left
+            }
+        }
+        return index
+    }
+
+    fun addNode(index: Int, element: E): Node<E> {
+        if (index < 0 || index > size) throw IndexOutOfBoundsException("Index: $index, Size: $size")
+        val node = Node(element, random.nextInt())
+        val (left, right) = split(root, index)
+        root = merge(merge(left, node), right)!!.apply { parent = null }
+        modCount++
+        return node
+    }
+
+    /**
+     * Inserts [elements] at [index] in O(k + log n), k being the number of inserted elements.
+     * @return the nodes of the inserted elements, in order
+     */
+    fun addNodes(index: Int, elements: Collection<E>): List<Node<E>> {
+        if (index < 0 || index > size) throw IndexOutOfBoundsException("Index: $index, Size: $size")
+        if (elements.isEmpty()) return emptyList()
+        // Build the treap of the new elements from their sequence using the right spine as a stack
+        val nodes = ArrayList<Node<E>>(elements.size)
+        val spine = ArrayList<Node<E>>()
+        for (element in elements) {
+            val node = Node(element, random.nextInt())
+            nodes.add(node)
+            var last: Node<E>? = null
+            while (spine.isNotEmpty() && spine[spine.size - 1].priority < node.priority) {
+                last = spine.removeAt(spine.size - 1)
+                update(last)
+            }
+            node.left = last
+            if (spine.isNotEmpty()) spine[spine.size - 1].right = node
+            spine.add(node)
+        }
+        for (i in spine.indices.reversed()) update(spine[i])
+        val (left, right) = split(root, index)
+        root = merge(merge(left, spine[0]), right)!!.apply { parent = null }
+        modCount++
+        return nodes
+    }
+
+    fun addBefore(node: Node<E>, element: E): Node<E> = addNode(checkedPositionOf(node), element)
+
+    fun addAfter(node: Node<E>, element: E): Node<E> = addNode(checkedPositionOf(node) + 1, element)
+
+    fun removeNode(node: Node<E>) {
+        removeAt(checkedPositionOf(node))
+    }
+
+    private fun checkedPositionOf(node: Node<E>): Int =
+        positionOf(node).also { require(it != -1) { "Node is not part of this list" } }
+
+    private fun split(node: Node<E>?, count: Int): Pair<Node<E>?, Node<E>?> {
+        if (node == null) return Pair(null, null)
+        val leftSize = node.left?.size ?: 0
+        return if (count <= leftSize) {
+            val (l, r) = split(node.left, count)
+            node.left = r
+            update(node)
+            l?.parent = null
+            Pair(l, node)
+        } else {
+            val (l, r) = split(node.right, count - leftSize - 1)
+            node.right = l
+            update(node)
+            r?.parent = null
+            Pair(node, r)
+        }
+    }
+
+    private fun merge(a: Node<E>?, b: Node<E>?): Node<E>? {
+        if (a == null) return b
+        if (b == null) return a
+        return if (a.priority > b.priority) {
+            a.right = merge(a.right, b)
+            update(a)
+            a
+        } else {
+            b.left = merge(a, b.left)
+            update(b)
+            b
+        }
+    }
+
+    private fun update(node: Node<E>) {
+        node.size = 1 + (node.left?.size ?: 0) + (node.right?.size ?: 0)
+        node.left?.parent = node
+        node.right?.parent = node
+    }
+
+    companion object {
+        private fun <E> first(node: Node<E>): Node<E> {
+            var n = node
+            while (true) n = n.left ?: return n
+        }
+
+        private fun <E> successor(node: Node<E>): Node<E>? {
+            node.right?.let { return first(it) }
+            var n = node
+            while (true) {
+                val p = n.parent ?: return null
+                if (n === p.left) return p
+                n = p
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import io.reactivex.rxjava3.core.Observable
+import io.reactivex.rxjava3.subjects.PublishSubject
+import io.reactivex.rxjava3.subjects.Subject
+
+/**
+ * Dispatches events to the subscribers of their key, and to the subscribers of all events.
+ * A subject is kept for a key only while it has subscribers, so publishing an event
+ * costs one lookup per key whatever the number of subscribers of other keys.
+ */
+class KeyedEventBus<K : Any, T : Any> {
+    private class Entry<T : Any>(val subject: Subject<T>) {
+        var subscribers = 0
+    }
+
+    private val subject: Subject<T> = PublishSubject.create()
+    private val entries = HashMap<K, Entry<T>>()
+
+    /** All the events */
+    val all: Observable<T>
+        get() = subject
+
+    /** @return the events published with [key] */
+    fun updates(key: K): Observable<T> = Observable.defer {
+        acquire(key).doFinally { release(key) }
+    }
+
+    fun publish(key: K?, event: T) {
+        subject.onNext(event)
+        if (key != null) get(key)?.onNext(event)
+    }
+
+    /** Publishes [event] once to each subscriber of any of [keys] */
+    fun publish(keys: Collection<K>, event: T) {
+        subject.onNext(event)
+        when (keys.size) {
+            0 -> {}
+            1 -> get(keys.first())?.onNext(event)
+            else -> {
+                val subjects = synchronized(entries) { keys.mapNotNullTo(LinkedHashSet()) { entries[it]?.subject } }
+                for (s in subjects) s.onNext(event)
+            }
+        }
+    }
+
+    /** Number of keys that have subscribers */
+    val size: Int
+        get() = synchronized(entries) { entries.size }
+
+    private fun get(key: K): Subject<T>? = synchronized(entries) { entries[key]?.subject }
+
+    private fun acquire(key: K): Observable<T> = synchronized(entries) {
+        entries.getOrPut(key) { Entry(PublishSubject.create<T>().toSerialized()) }
+            .apply { subscribers++ }
+            .subject
+    }
+
+    private fun release(key: K) = synchronized(entries) {
+        val entry = entries[key] ?: return@synchronized
+        if (--entry.subscribers == 0)
+            entries.remove(key)
+    }
+}
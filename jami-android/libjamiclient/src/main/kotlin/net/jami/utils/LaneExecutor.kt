@@ -0,0 +1,160 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Delayed
+import java.util.concurrent.RunnableScheduledFuture
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Runs daemon commands on separate lanes, so that call commands never wait behind queued messaging or bulk work.
+ * Each lane has its own threads, with a thread priority following the lane priority.
+ * Daemon callbacks run on the daemon threads that call them. Those that update account or conversation state
+ * are handed to the Messaging lane, so they stay ordered with the account commands.
+ * Tasks are only ordered within a lane: call commands that depend on account configuration (placing a call,
+ * account messages) wait for the pending configuration commands of the account before being queued on the Call lane.
+ * If [startupLane] is set, the other lanes only start running tasks once [started] is called,
+ * so that work queued on them runs after the daemon startup done on [startupLane].
+ * If [latency] is set, the wait and run time of every task is also recorded under "<lane> lane".
+ */
+class LaneExecutor(
+    threads: Map<Lane, Int> = emptyMap(),
+    latency: LatencyTracker? = null,
+    startupLane: Lane? = null
+) {
+    enum class Lane(val threadName: String, val priority: Int) {
+        /** Call and media signaling */
+        Call("DRing-call", Thread.MAX_PRIORITY),
+        /** Account and conversation commands and events */
+        Messaging("DRing", Thread.NORM_PRIORITY),
+        /** Synchronization, polling and maintenance */
+        Bulk("DRing-bulk", Thread.MIN_PRIORITY)
+    }
+
+    class LaneStats(
+        val lane: Lane,
+        /** Tasks waiting in the lane, including delayed tasks */
+        val queueDepth: Int,
+        val maxQueueDepth: Int,
+        val executed: Long,
+        /** Average and maximum time between a task being due and starting, in milliseconds */
+        val averageWait: Double,
+        val maxWait: Long
+    ) {
+        override fun toString(): String =
+            "${lane.name}: depth $queueDepth (max $maxQueueDepth), executed $executed, wait avg %.2f ms max $maxWait ms".format(averageWait)
+    }
+
+    private class LaneThreadFactory(private val lane: Lane) : ThreadFactory {
+        private val count = AtomicInteger()
+        override fun newThread(r: Runnable): Thread =
+            Thread(r, if (count.getAndIncrement() == 0) lane.threadName else "${lane.threadName}-$count").apply {
+                priority = lane.priority
+            }
+    }
+
+    /** Scheduled executor of a lane, recording how long tasks wait once they are due */
+    private class LanePool(val lane: Lane, threads: Int, private val probe: LatencyTracker.Probe?)
+        : ScheduledThreadPoolExecutor(threads, LaneThreadFactory(lane)) {
+        // Start time of the task running on the current thread
+        private val started = ThreadLocal.withInitial { LongArray(1) }
+        private var executed = 0L
+        private var totalWait = 0L
+        private var maxWait = 0L
+        private var maxQueueDepth = 0
+
+        override fun <V> decorateTask(runnable: Runnable, task: RunnableScheduledFuture<V>): RunnableScheduledFuture<V> {
+            recordDepth()
+            return task
+        }
+
+        override fun <V> decorateTask(callable: Callable<V>, task: RunnableScheduledFuture<V>): RunnableScheduledFuture<V> {
+            recordDepth()
+            return task
+        }
+
+        override fun beforeExecute(t: Thread, r: Runnable) {
+            // Time since the task was due
+            val wait = (r as? Delayed)?.let { -it.getDelay(TimeUnit.NANOSECONDS) }?.coerceAtLeast(0) ?: 0L
+            synchronized(this) {
+                executed++
+                totalWait += wait
+                if (wait > maxWait) maxWait = wait
+            }
+            if (probe != null) {
+                probe.wait.recordNanos(wait)
+                started.get()[0] = System.nanoTime()
+            }
+        }
+
+        override fun afterExecute(r: Runnable?, t: Throwable?) {
+            if (probe != null)
+                probe.run.recordNanos(System.nanoTime() - started.get()[0])
+        }
+
+        private fun recordDepth() {
+            val depth = queue.size + 1
+            synchronized(this) { if (depth > maxQueueDepth) maxQueueDepth = depth }
+        }
+
+        @Synchronized
+        fun stats() = LaneStats(lane, queue.size, maxQueueDepth, executed,
+            if (executed == 0L) 0.0 else totalWait / executed / 1_000_000.0, maxWait / 1_000_000)
+    }
+
+    private val pools: Map<Lane, LanePool> = Lane.entries.associateWith {
+        LanePool(it, threads[it] ?: 1, latency?.probe("${it.name} lane"))
+    }
+    private val startup = CountDownLatch(if (startupLane == null) 0 else 1)
+
+    init {
+        // Block every thread of the other lanes until startup is done
+        if (startupLane != null) {
+            for (pool in pools.values) {
+                if (pool.lane != startupLane)
+                    repeat(pool.corePoolSize) { pool.execute { awaitStartup() } }
+            }
+        }
+    }
+
+    private fun awaitStartup() {
+        try {
+            startup.await()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    /** @return the executor of [lane] */
+    operator fun get(lane: Lane): ScheduledExecutorService = pools[lane]!!
+
+    /** Lets every lane run its tasks, once the daemon is started */
+    fun started() = startup.countDown()
+
+    fun stats(): List<LaneStats> = pools.values.map { it.stats() }
+
+    fun shutdown() {
+        started()
+        for (pool in pools.values) pool.shutdown()
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free histogram of durations in microseconds, with logarithmic buckets
+ * of about 6% relative precision, similar to an HDR histogram.
+ * Recording doesn't allocate.
+ */
+class LatencyHistogram {
+    private val buckets = AtomicLongArray(BUCKET_COUNT)
+    private val total = AtomicLong()
+    private val sum = AtomicLong()
+    private val maximum = AtomicLong()
+
+    val count: Long
+        get() = total.get()
+
+    /** Average duration in microseconds */
+    val mean: Double
+        get() = total.get().let { if (it == 0L) 0.0 else sum.get().toDouble() / it }
+
+    /** Maximum duration in microseconds */
+    val max: Long
+        get() = maximum.get()
+
+    fun recordNanos(nanos: Long) = record(nanos / 1000)
+
+    fun record(micros: Long) {
+        val value = micros.coerceIn(0, MAX_VALUE)
+        buckets.incrementAndGet(bucketOf(value))
+        total.incrementAndGet()
+        sum.addAndGet(value)
+        var current = maximum.get()
+        while (value > current && !maximum.compareAndSet(current, value))
+            current = maximum.get()
+    }
+
+    /** @return the upper bound, in microseconds, of the duration below which [percentile] % of the values are */
+    fun valueAt(percentile: Double): Long {
+        val count = total.get()
+        if (count == 0L) return 0
+        val target = Math.ceil(count * percentile / 100.0).toLong().coerceAtLeast(1)
+        var seen = 0L
+        for (i in 0 until BUCKET_COUNT) {
+            seen += buckets.get(i)
+            if (seen >= target) return minOf(upperBound(i), maximum.get())
+        }
+        return maximum.get()
+    }
+
+    fun reset() {
+        for (i in 0 until BUCKET_COUNT) buckets.set(i, 0)
+        total.set(0)
+        sum.set(0)
+        maximum.set(0)
+    }
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 4
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        // About 19 hours
+        private const val MAX_VALUE = (1L shl 36) - 1
+        private val BUCKET_COUNT = bucketOf(MAX_VALUE) + 1
+
+        internal fun bucketOf(value: Long): Int {
+            if (value < SUB_BUCKETS) return value.toInt()
+            val shift = 63 - java.lang.Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS
+            return SUB_BUCKETS * (shift + 1) + (value ushr shift).toInt() - SUB_BUCKETS
+        }
+
+        internal fun upperBound(bucket: Int): Long {
+            if (bucket < SUB_BUCKETS) return bucket.toLong()
+            val shift = bucket / SUB_BUCKETS - 1
+            val top = (bucket % SUB_BUCKETS + SUB_BUCKETS).toLong()
+            return ((top + 1) shl shift) - 1
+        }
+    }
+}
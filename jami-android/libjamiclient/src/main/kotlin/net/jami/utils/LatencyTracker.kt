@@ -0,0 +1,95 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Records, for each daemon callback or command, how long it waited in an executor queue
+ * before running and how long it ran.
+ * Gauges report other values along with the latencies.
+ */
+class LatencyTracker {
+    class Probe(val name: String) {
+        /** Time between being queued and starting */
+        val wait = LatencyHistogram()
+        /** Time between starting and ending */
+        val run = LatencyHistogram()
+    }
+
+    class Stats(
+        val name: String,
+        val count: Long,
+        val waitP50: Long,
+        val waitP99: Long,
+        val waitMax: Long,
+        val runP50: Long,
+        val runP99: Long,
+        val runMax: Long
+    ) {
+        override fun toString(): String =
+            "$name: $count, wait p50 ${format(waitP50)} p99 ${format(waitP99)} max ${format(waitMax)}," +
+                    " run p50 ${format(runP50)} p99 ${format(runP99)} max ${format(runMax)}"
+    }
+
+    private val probes: MutableMap<String, Probe> = ConcurrentHashMap()
+    private val gauges: MutableMap<String, () -> Any> = ConcurrentHashMap()
+
+    fun probe(name: String): Probe = probes[name] ?: probes.computeIfAbsent(name) { Probe(it) }
+
+    /**
+     * Runs [block], recording its duration under [name].
+     * @param enqueued the [System.nanoTime] at which the work was queued, or 0 if it runs where it was requested
+     */
+    inline fun <T> measure(name: String, enqueued: Long = 0L, block: () -> T): T {
+        val probe = probe(name)
+        val start = System.nanoTime()
+        if (enqueued != 0L) probe.wait.recordNanos(start - enqueued)
+        try {
+            return block()
+        } finally {
+            probe.run.recordNanos(System.nanoTime() - start)
+        }
+    }
+
+    /** @return the statistics of every probe, slowest first */
+    fun stats(): List<Stats> = probes.values
+        .filter { it.run.count > 0 }
+        .map { Stats(it.name, it.run.count,
+            it.wait.valueAt(50.0), it.wait.valueAt(99.0), it.wait.max,
+            it.run.valueAt(50.0), it.run.valueAt(99.0), it.run.max) }
+        .sortedByDescending { it.runP99 + it.waitP99 }
+
+    /** Reports the current result of [value] under [name] */
+    fun gauge(name: String, value: () -> Any) {
+        gauges[name] = value
+    }
+
+    fun dump(): List<String> = stats().map { it.toString() } + gauges.map { (name, value) -> "$name: ${value()}" }
+
+    fun reset() {
+        for (probe in probes.values) {
+            probe.wait.reset()
+            probe.run.reset()
+        }
+    }
+
+    companion object {
+        private fun format(micros: Long): String =
+            if (micros < 1000) "${micros}µs" else "%.1fms".format(micros / 1000.0)
+    }
+}
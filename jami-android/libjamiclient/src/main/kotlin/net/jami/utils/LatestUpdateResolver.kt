@@ -0,0 +1,55 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import io.reactivex.rxjava3.core.Maybe
+import io.reactivex.rxjava3.core.Observable
+import io.reactivex.rxjava3.subjects.PublishSubject
+import io.reactivex.rxjava3.subjects.Subject
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Resolves keyed updates asynchronously, keeping only the result of the latest update of each key:
+ * a resolution still running when a newer update of the same key arrives is cancelled, so a stale
+ * result is never emitted after a newer one. The updates of a key are dropped once it is [removed][remove].
+ */
+class LatestUpdateResolver<K : Any, T : Any, R : Any>(resolve: (T) -> Maybe<R>) {
+    private val updates: Subject<Pair<K, T>> = PublishSubject.create<Pair<K, T>>().toSerialized()
+    private val removals: Subject<K> = PublishSubject.create<K>().toSerialized()
+    private val active = AtomicInteger()
+
+    /**
+     * Results of the latest update of each key, emitted serially from the thread completing the resolution.
+     * Must be subscribed to once.
+     */
+    val results: Observable<R> = updates
+        .groupBy { it.first }
+        .flatMap { group -> group
+            .takeUntil(removals.filter { it == group.key })
+            .switchMapMaybe { resolve(it.second) }
+            .doOnSubscribe { active.incrementAndGet() }
+            .doFinally { active.decrementAndGet() } }
+
+    /** Number of keys with an update being resolved or waiting for a newer one */
+    val size: Int
+        get() = active.get()
+
+    fun update(key: K, update: T) = updates.onNext(Pair(key, update))
+
+    /** Cancels the pending resolution of [key] and releases its state */
+    fun remove(key: K) = removals.onNext(key)
+}
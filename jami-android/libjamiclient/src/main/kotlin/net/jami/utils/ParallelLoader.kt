@@ -0,0 +1,42 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import io.reactivex.rxjava3.core.Maybe
+import io.reactivex.rxjava3.core.Observable
+import io.reactivex.rxjava3.core.Scheduler
+
+/**
+ * Loads [items] on [scheduler] with at most [concurrency] loads in flight, and blocks while
+ * handing the results to [merge] on the calling thread, in the order of [items], [chunkSize] at a time.
+ * Items for which [load] returns null are skipped.
+ */
+fun <T : Any, R : Any> loadOrdered(
+    items: List<T>,
+    concurrency: Int,
+    chunkSize: Int,
+    scheduler: Scheduler,
+    load: (T) -> R?,
+    merge: (List<R>) -> Unit
+) {
+    if (items.isEmpty()) return
+    Observable.fromIterable(items)
+        .concatMapEager({ item -> Maybe.fromCallable<R> { load(item) }.subscribeOn(scheduler).toObservable() },
+            concurrency.coerceAtLeast(1), 1)
+        .buffer(chunkSize)
+        .blockingSubscribe { merge(it) }
+}
@@ -0,0 +1,51 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+/**
+ * Accumulates the time spent in the named phases of a task.
+ * Phases can run concurrently: the time of a phase is then the sum of the time spent by each thread.
+ */
+class PhaseTimer {
+    private val phases = LinkedHashMap<String, Long>()
+    private val start = System.nanoTime()
+
+    fun <T> measure(phase: String, block: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            add(phase, System.nanoTime() - start)
+        }
+    }
+
+    @Synchronized
+    fun add(phase: String, nanos: Long) {
+        phases[phase] = (phases[phase] ?: 0L) + nanos
+    }
+
+    /** Time spent in each phase, in milliseconds, in the order the phases were first measured */
+    @Synchronized
+    fun durations(): Map<String, Long> = phases.mapValuesTo(LinkedHashMap()) { it.value / 1_000_000 }
+
+    /** Time elapsed since the timer was created, in milliseconds */
+    val elapsed: Long
+        get() = (System.nanoTime() - start) / 1_000_000
+
+    override fun toString(): String =
+        durations().entries.joinToString(", ", postfix = ", total: $elapsed ms") { "${it.key}: ${it.value} ms" }
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.model
+
+import io.reactivex.rxjava3.schedulers.TestScheduler
+import org.junit.Assert
+import org.junit.Test
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+class AccountTest {
+    @Test
+    fun coalesceConversationUpdates() {
+        val scheduler = TestScheduler()
+        val account = Account("test", emptyMap(), emptyList(),
+            mapOf(ConfigKey.ACCOUNT_REGISTRATION_STATUS.key to AccountConfig.RegistrationState.REGISTERED.name))
+        account.listUpdateScheduler = scheduler
+        account.listUpdateWindow = 16
+        val conversations = (0 until 200).map { i ->
+            account.newSwarm("swarm$i", Conversation.Mode.Public).apply {
+                post(this, i.toLong())
+                account.conversationStarted(this)
+            }
+        }
+        account.setHistoryLoaded()
+        scheduler.advanceTimeBy(16, TimeUnit.MILLISECONDS)
+
+        val updates = ArrayList<SortedConversationList.Update>()
+        account.getConversationUpdates(true).subscribe { updates.add(it) }
+        Assert.assertEquals(1, updates.size)
+        val displayed = updates[0].conversations.toMutableList()
+        val updated = HashSet<Conversation>()
+
+        // 1000 updates at 10 updates per millisecond
+        val random = Random(42)
+        for (i in 0 until 1_000) {
+            val conversation = conversations[random.nextInt(conversations.size)]
+            post(conversation, 1_000L + i)
+            account.conversationUpdated(conversation)
+            updated.add(conversation)
+            if (i % 10 == 9) scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS)
+        }
+        scheduler.advanceTimeBy(16, TimeUnit.MILLISECONDS)
+
+        // One emission per window
+        Assert.assertTrue(updates.size - 1 <= 100 / 16 + 2)
+
+        // Replaying the coalesced changes gives the final list, and all updated conversations were reported
+        val dirty = HashSet<Conversation>()
+        for (i in 1 until updates.size) {
+            val update = updates[i]
+            Assert.assertSame(updates[i - 1].conversations, update.base)
+            for (change in update.changes) {
+                if (change is SortedConversationList.Change.Move)
+                    displayed.add(change.to, displayed.removeAt(change.from))
+            }
+            dirty.addAll(update.dirty)
+        }
+        Assert.assertEquals(updates.last().conversations, displayed)
+        Assert.assertEquals(updated, dirty)
+    }
+
+    @Test
+    fun unreadConversationCount() {
+        val account = Account("test", emptyMap(), emptyList(),
+            mapOf(ConfigKey.ACCOUNT_REGISTRATION_STATUS.key to AccountConfig.RegistrationState.REGISTERED.name))
+        account.listUpdateWindow = 0
+        val conversations = (0 until 100).map { i ->
+            account.newSwarm("swarm$i", Conversation.Mode.Public).apply {
+                post(this, i.toLong())
+                account.conversationStarted(this)
+            }
+        }
+        account.setHistoryLoaded()
+        var emitted = -1
+        account.unreadConversations.subscribe { emitted = it }
+        Assert.assertEquals(100, account.unreadConversationCount)
+
+        // Counter matches a full scan of the list after each read or new message
+        val random = Random(42)
+        for (i in 0 until 1_000) {
+            val conversation = conversations[random.nextInt(conversations.size)]
+            if (random.nextBoolean()) {
+                conversation.readMessages()
+            } else {
+                post(conversation, 1_000L + i)
+                account.conversationUpdated(conversation)
+            }
+            val unread = account.getConversations().count { it.lastEvent?.isRead == false }
+            Assert.assertEquals(unread, account.unreadConversationCount)
+            Assert.assertEquals(unread, emitted)
+        }
+    }
+}
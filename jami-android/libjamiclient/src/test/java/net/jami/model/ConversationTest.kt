@@ -185,6 +185,205 @@ class ConversationTest {
     fun updateFileTransfer() {
     }
 
+    @Test
+    fun addSwarmElementsInDaemonOrder() {
+        // The daemon loads history from the most recent message to the oldest one
+        swarmIngest(1_000) { it.reversed() }
+    }
+
+    @Test
+    fun addSwarmElementsInChronologicalOrder() {
+        swarmIngest(1_000) { it }
+    }
+
+    @Test
+    fun addSwarmElementsInRandomOrder() {
+        swarmIngest(1_000) { it.shuffled(Random(42)) }
+    }
+
+    @Test
+    fun addSwarmElementsBatch() {
+        val swarm = Conversation("", Uri(Uri.SWARM_SCHEME, "swarm"), Conversation.Mode.Public)
+        val messages = swarmMessages(swarm, 1_000)
+        val ranges = ArrayList<List<Interaction>>()
+        swarm.insertedRanges.subscribe { ranges.add(it) }
+        // Most recent page first, then the older pages, as loaded from the daemon
+        for (page in messages.chunked(100).reversed())
+            swarm.addSwarmElements(page.reversed())
+        Assert.assertEquals(messages, swarm.aggregateHistory.toList())
+        Assert.assertSame(messages.last(), swarm.lastEvent)
+        Assert.assertEquals(10, ranges.size)
+        Assert.assertTrue(ranges.all { it.size == 100 })
+    }
+
+    @Test
+    fun swarmHistoryWindow() {
+        val swarm = Conversation("", Uri(Uri.SWARM_SCHEME, "swarm"), Conversation.Mode.Public)
+        swarm.historyWindow = 1_000
+        val messages = swarmMessages(swarm, 10_001)
+        val head = messages.last()
+        val history = messages.subList(0, 10_000)
+        // Scroll back through the whole history, page by page
+        for (page in history.chunked(500).reversed()) {
+            swarm.setViewportAnchor(swarm.aggregateHistory.firstOrNull()?.messageId)
+            swarm.addSwarmElements(page.reversed())
+        }
+        Assert.assertEquals(history.subList(0, 1_000), swarm.aggregateHistory.toList())
+        Assert.assertEquals(1_000, swarm.residentCount)
+        Assert.assertEquals(1_000, swarm.peakResidentCount)
+        Assert.assertEquals("", swarm.getOlderHistoryRoot())
+
+        // A new message can't be attached but is still the last event
+        swarm.addSwarmElement(head, true)
+        Assert.assertSame(head, swarm.lastEvent)
+        // Detached messages count toward the window
+        Assert.assertEquals(1_000, swarm.residentCount)
+        Assert.assertNull(swarm.getMessage(head.messageId!!))
+
+        // Scroll forward: the newer history is loaded again from the head
+        swarm.setViewportAnchor("m999")
+        Assert.assertEquals("m999", swarm.getNewerHistoryRoot())
+        // Still evicted until the newer page is inserted
+        Assert.assertEquals("m999", swarm.getNewerHistoryRoot())
+        swarm.addSwarmElements(messages.subList(999, messages.size).reversed())
+        Assert.assertEquals(messages.subList(499, 1_499), swarm.aggregateHistory.toList())
+        Assert.assertEquals(1_000, swarm.residentCount)
+        Assert.assertEquals("m498", swarm.getOlderHistoryRoot())
+        Assert.assertEquals("m1498", swarm.getNewerHistoryRoot())
+        Assert.assertEquals(9_000L + 1 + 499 + 8_502, swarm.evictedCount)
+
+        // Newer history inserted without eviction
+        swarm.historyWindow = 0
+        swarm.addSwarmElements(messages.subList(1_498, messages.size).reversed())
+        Assert.assertNull(swarm.getNewerHistoryRoot())
+    }
+
+    @Test
+    fun unloadSwarmHistory() {
+        val swarm = Conversation("", Uri(Uri.SWARM_SCHEME, "swarm"), Conversation.Mode.Public)
+        val messages = swarmMessages(swarm, 100)
+        swarm.addSwarmElements(messages.reversed())
+        swarm.unloadHistory()
+        Assert.assertEquals(0, swarm.loadedHistorySize)
+        Assert.assertNull(swarm.loaded)
+        Assert.assertSame(messages.last(), swarm.lastEvent)
+        Assert.assertEquals("m99", swarm.getOlderHistoryRoot())
+        // Reloaded from the most recent message
+        swarm.addSwarmElements(messages.subList(68, 100).reversed())
+        Assert.assertEquals(messages.subList(68, 100), swarm.aggregateHistory.toList())
+        Assert.assertEquals("m67", swarm.getOlderHistoryRoot())
+    }
+
+    @Test
+    fun removeSwarmElement() {
+        val swarm = Conversation("", Uri(Uri.SWARM_SCHEME, "swarm"), Conversation.Mode.Public)
+        val messages = swarmMessages(swarm, 10)
+        for (m in messages) swarm.addSwarmElement(m, false)
+        swarm.removeInteraction(messages[4])
+        Assert.assertEquals(9, swarm.aggregateHistory.size)
+        Assert.assertNull(swarm.getMessage("m4"))
+        Assert.assertEquals(messages.filter { it !== messages[4] }, swarm.aggregateHistory.toList())
+    }
+
+    @Test
+    fun unreadMessageCount() {
+        val swarm = Conversation("", Uri(Uri.SWARM_SCHEME, "swarm"), Conversation.Mode.Public)
+        val messages = swarmMessages(swarm, 2_000).toMutableList()
+        messages[500].read()
+        // Most recent page first, then the older one
+        swarm.addSwarmElements(messages.subList(1_000, 2_000).reversed())
+        Assert.assertEquals(unreadScan(swarm), swarm.unreadMessageCount)
+        swarm.addSwarmElements(messages.subList(0, 1_000).reversed())
+        Assert.assertEquals(1_499, swarm.unreadMessageCount)
+
+        // Counter matches a full scan after each read, new message or removal
+        val random = Random(42)
+        for (i in 0 until 5_000) {
+            when (random.nextInt(3)) {
+                0 -> messages[random.nextInt(messages.size)].read()
+                1 -> {
+                    val parent = swarm.aggregateHistory.last().messageId
+                    val message = TextMessage("ring:test", "", 2_000L + i, swarm, "message", true).apply {
+                        setSwarmInfo("swarm", "n$i", parent)
+                    }
+                    messages.add(message)
+                    swarm.addSwarmElement(message, true)
+                }
+                else -> swarm.removeInteraction(messages.removeAt(random.nextInt(messages.size)))
+            }
+            Assert.assertEquals(unreadScan(swarm), swarm.unreadMessageCount)
+        }
+        swarm.readMessages()
+        Assert.assertEquals(0, swarm.unreadMessageCount)
+
+        // SIP conversations count by timestamp
+        val sip = conversation!!
+        for (i in 0 until 10)
+            sip.addTextMessage(TextMessage("ring:test", "", i.toLong(), sip, "message $i", true))
+        Assert.assertEquals(10, sip.unreadMessageCount)
+        sip.readMessages()
+        Assert.assertEquals(0, sip.unreadMessageCount)
+        sip.addTextMessage(TextMessage("ring:test", "", 10L, sip, "message", true))
+        Assert.assertEquals(1, sip.unreadMessageCount)
+        Assert.assertEquals(1, sip.unreadTextMessages.size)
+    }
+
+    @Test
+    fun redeliveredSwarmElements() {
+        val swarm = Conversation("", Uri(Uri.SWARM_SCHEME, "swarm"), Conversation.Mode.Public)
+        swarm.addSwarmElements(swarmMessages(swarm, 10).reversed())
+        Assert.assertEquals(10, swarm.unreadMessageCount)
+        // The last message is delivered again, now read
+        val copy = swarmMessages(swarm, 10).last().apply { read() }
+        swarm.addSwarmElements(listOf(copy))
+        Assert.assertEquals(unreadScan(swarm), swarm.unreadMessageCount)
+        Assert.assertEquals(0, swarm.unreadMessageCount)
+    }
+
+    @Test
+    fun readInOrder() {
+        val swarm = Conversation("", Uri(Uri.SWARM_SCHEME, "swarm"), Conversation.Mode.Public)
+        val messages = swarmMessages(swarm, 100)
+        swarm.addSwarmElements(messages.reversed())
+        // Oldest first, as a synced chain is read
+        for (i in 0 until 50) {
+            messages[i].read()
+            Assert.assertEquals(99 - i, swarm.unreadMessageCount)
+        }
+        // Reading a message marks the ones before it as read
+        messages[80].read()
+        Assert.assertEquals(19, swarm.unreadMessageCount)
+        messages[60].read()
+        Assert.assertEquals(19, swarm.unreadMessageCount)
+        messages[99].read()
+        Assert.assertEquals(0, swarm.unreadMessageCount)
+    }
+
+    /** Counts the unread text messages at the end of the loaded history, as a full scan */
+    private fun unreadScan(swarm: Conversation): Int =
+        swarm.aggregateHistory.reversed().filterIsInstance<TextMessage>().takeWhile { !it.isRead }.size
+
+    /**
+     * Feeds a synthetic linear swarm history of [size] messages in the order given by [order]
+     * and checks the resulting linearization.
+     */
+    private fun swarmIngest(size: Int, order: (List<Interaction>) -> List<Interaction>) {
+        val swarm = Conversation("", Uri(Uri.SWARM_SCHEME, "swarm"), Conversation.Mode.Public)
+        val messages = swarmMessages(swarm, size)
+        val input = order(messages)
+        for (m in input) swarm.addSwarmElement(m, false)
+        Assert.assertEquals(size, swarm.aggregateHistory.size)
+        Assert.assertEquals(messages, swarm.aggregateHistory.toList())
+        Assert.assertSame(messages.last(), swarm.lastEvent)
+    }
+
+    private fun swarmMessages(swarm: Conversation, size: Int): List<Interaction> =
+        (0 until size).map { i ->
+            TextMessage("ring:test", "", i.toLong(), swarm, "message $i", true).apply {
+                setSwarmInfo("swarm", "m$i", if (i == 0) null else "m${i - 1}")
+            }
+        }
+
     @Test
     @Throws(Exception::class)
     fun removeAll() {
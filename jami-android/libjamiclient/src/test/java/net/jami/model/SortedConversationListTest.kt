@@ -0,0 +1,71 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.model
+
+import org.junit.Assert
+import org.junit.Test
+import java.util.Random
+
+class SortedConversationListTest {
+    @Test
+    fun updatesMatchFullSort() {
+        val random = Random(42)
+        val conversations = (0 until 2_000).map { i -> conversation(i, random.nextInt(1_000_000).toLong()) }
+        val sorted = SortedConversationList()
+        sorted.reset(conversations)
+        Assert.assertEquals(conversations.sortedByDescending { it.lastEvent!!.timestamp }, sorted.toList())
+
+        // Replay the positional changes on a copy of the list, as an adapter would
+        val displayed = sorted.toMutableList()
+        for (i in 0 until 10_000) {
+            val conversation = conversations[random.nextInt(conversations.size)]
+            post(conversation, random.nextInt(2_000_000).toLong())
+            sorted.update(conversation)?.let { move ->
+                displayed.add(move.to, displayed.removeAt(move.from))
+            }
+        }
+        Assert.assertEquals(displayed, sorted.toList())
+        val timestamps = sorted.map { it.lastEvent!!.timestamp }
+        Assert.assertEquals(timestamps.sortedDescending(), timestamps)
+    }
+
+    @Test
+    fun reconcile() {
+        val conversations = (0 until 10).map { i -> conversation(i, i.toLong()) }
+        val sorted = SortedConversationList()
+        sorted.reset(conversations.subList(0, 8))
+        val displayed: MutableList<Conversation?> = sorted.toMutableList()
+        val current = conversations.subList(2, 10)
+        post(conversations[3], 20)
+        for (change in sorted.reconcile(current)) {
+            when (change) {
+                is SortedConversationList.Change.Insert -> displayed.add(change.position, null)
+                is SortedConversationList.Change.Remove -> displayed.removeAt(change.position)
+                is SortedConversationList.Change.Move -> displayed.add(change.to, displayed.removeAt(change.from))
+            }
+        }
+        val expected = listOf(conversations[3]) + conversations.subList(4, 10).reversed() + conversations[2]
+        Assert.assertEquals(expected, sorted.toList())
+        // Inserted conversations are the new ones, the others were moved as expected
+        Assert.assertEquals(expected.map { if (it === conversations[8] || it === conversations[9]) null else it }, displayed)
+    }
+
+    private fun conversation(i: Int, timestamp: Long) =
+        Conversation("", Uri(Uri.SWARM_SCHEME, "swarm$i"), Conversation.Mode.Public).apply {
+            post(this, timestamp)
+        }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.schedulers.TestScheduler
+import net.jami.services.AccountService.ConnectionStatus
+import org.junit.Assert
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class ConnectionMonitorTest {
+    private fun connection(id: Int, peer: String, status: ConnectionStatus = ConnectionStatus.Connected) = mapOf(
+        "id" to "$id", "device" to "device$id", "peer" to peer, "status" to status.value.toString(), "remoteAddress" to null
+    )
+
+    @Test
+    fun emitChanges() {
+        val scheduler = TestScheduler()
+        var connections = listOf(connection(1, "peerB"), connection(2, "peerA"), connection(3, "peerA", ConnectionStatus.Connecting))
+        var polls = 0
+        val monitor = ConnectionMonitor(scheduler) { polls++; connections }
+        val observer = monitor.monitor("account").test()
+
+        scheduler.triggerActions()
+        observer.assertValueCount(1)
+        val first = observer.values()[0]
+        Assert.assertEquals(listOf("peerA", "peerB"), first.peers.map { it.first })
+        Assert.assertEquals(2, first.added.size)
+
+        // Nothing changed: no emission, and the period backs off
+        scheduler.advanceTimeBy(ConnectionMonitor.MIN_PERIOD_MS * 7, TimeUnit.MILLISECONDS)
+        observer.assertValueCount(1)
+        Assert.assertEquals(4, polls)
+
+        connections = listOf(connection(1, "peerB", ConnectionStatus.TLS), connection(4, "peerC"))
+        scheduler.advanceTimeBy(ConnectionMonitor.MIN_PERIOD_MS * 8, TimeUnit.MILLISECONDS)
+        observer.assertValueCount(2)
+        val second = observer.values()[1]
+        Assert.assertEquals(listOf("4"), second.added.map { it.id })
+        Assert.assertEquals(listOf("2"), second.removed.map { it.id })
+        Assert.assertEquals(listOf("1"), second.changed.map { it.id })
+        Assert.assertEquals(1L, monitor.churn("account").opened.get())
+        Assert.assertEquals(1L, monitor.churn("account").closed.get())
+        Assert.assertEquals(1L, monitor.churn("account").changed.get())
+
+        // Back to the fast period after a change
+        scheduler.advanceTimeBy(ConnectionMonitor.MIN_PERIOD_MS, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(6, polls)
+
+        observer.dispose()
+        scheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+        Assert.assertEquals(6, polls)
+    }
+
+    @Test
+    fun sharedPoll() {
+        val scheduler = TestScheduler()
+        var connections = listOf(connection(1, "peerA"))
+        var polls = 0
+        val monitor = ConnectionMonitor(scheduler) { polls++; connections }
+        val first = monitor.monitor("account").test()
+        scheduler.triggerActions()
+        // A late subscriber gets the current connections without polling again
+        val second = monitor.monitor("account").test()
+        second.assertValueCount(1)
+        Assert.assertEquals(1, polls)
+
+        connections = listOf(connection(1, "peerA"), connection(2, "peerB"))
+        scheduler.advanceTimeBy(ConnectionMonitor.MIN_PERIOD_MS, TimeUnit.MILLISECONDS)
+        first.assertValueCount(2)
+        second.assertValueCount(2)
+        Assert.assertEquals(2, polls)
+        Assert.assertEquals(1L, monitor.churn("account").opened.get())
+
+        first.dispose()
+        second.dispose()
+        scheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+        Assert.assertEquals(2, polls)
+    }
+
+    @Test
+    fun trackedInBackground() {
+        val scheduler = TestScheduler()
+        var connections = listOf(connection(1, "peerA"))
+        var polls = 0
+        val monitor = ConnectionMonitor(scheduler) { accountId ->
+            if (accountId == "account") polls++
+            connections
+        }
+        monitor.track("account")
+        monitor.track("other")
+        scheduler.triggerActions()
+        Assert.assertEquals(1, polls)
+
+        // Nothing monitors the account: polled at the background period
+        connections = listOf(connection(2, "peerB"))
+        scheduler.advanceTimeBy(ConnectionMonitor.BACKGROUND_PERIOD_MS - 1, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(1, polls)
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(2, polls)
+        Assert.assertEquals(1L, monitor.churn("account").opened.get())
+        Assert.assertEquals(1L, monitor.churn("account").closed.get())
+        // Each account counts its own churn
+        Assert.assertEquals(1L, monitor.churn("other").opened.get())
+
+        // A subscriber gets the last connections and polls right away, at the fast period
+        val observer = monitor.monitor("account").test()
+        observer.assertValueCount(1)
+        scheduler.triggerActions()
+        Assert.assertEquals(3, polls)
+        scheduler.advanceTimeBy(ConnectionMonitor.MIN_PERIOD_MS * 2, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(4, polls)
+        observer.dispose()
+        // Still tracked after the subscriber left
+        scheduler.advanceTimeBy(ConnectionMonitor.BACKGROUND_PERIOD_MS * 2, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(6, polls)
+
+        monitor.untrack("account")
+        scheduler.advanceTimeBy(1, TimeUnit.HOURS)
+        Assert.assertEquals(6, polls)
+    }
+
+    @Test
+    fun failedPoll() {
+        val scheduler = TestScheduler()
+        var polls = 0
+        val monitor = ConnectionMonitor(scheduler) {
+            if (++polls == 2) throw IllegalStateException("daemon unavailable")
+            listOf(connection(1, "peerA"))
+        }
+        val observer = monitor.monitor("account").test()
+        scheduler.triggerActions()
+        observer.assertValueCount(1)
+
+        scheduler.advanceTimeBy(ConnectionMonitor.MIN_PERIOD_MS * 2, TimeUnit.MILLISECONDS)
+        observer.assertError(IllegalStateException::class.java)
+        // Polling stopped with the error
+        scheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+        Assert.assertEquals(2, polls)
+    }
+}
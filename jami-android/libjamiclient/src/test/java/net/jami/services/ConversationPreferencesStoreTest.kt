@@ -0,0 +1,114 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.schedulers.TestScheduler
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class ConversationPreferencesStoreTest {
+    private class FakeLegacy(val conversations: Map<String, Map<String, String>>) : ConversationPreferencesStore.Legacy {
+        var reads = 0
+        var deleted = false
+        override fun read(accountId: String): Map<String, Map<String, String>> {
+            reads++
+            return if (deleted) emptyMap() else conversations
+        }
+        override fun delete(accountId: String) {
+            deleted = true
+        }
+    }
+
+    @Test
+    fun editAndReload() {
+        val directory = Files.createTempDirectory("preferences").toFile()
+        try {
+            val store = ConversationPreferencesStore(directory)
+            store.edit("account", "jami:peer", mapOf("color" to "#ff0000", "symbol" to "é"))
+            store.put("account", "jami:peer", "symbol", null)
+            store.put("account", "jami:other", "lastRead", "42")
+            Assert.assertEquals(mapOf("color" to "#ff0000"), store.get("account", "jami:peer"))
+            store.flush("account")
+
+            val reloaded = ConversationPreferencesStore(directory)
+            Assert.assertEquals(mapOf("color" to "#ff0000"), reloaded.get("account", "jami:peer"))
+            Assert.assertEquals("42", reloaded.get("account", "jami:other", "lastRead"))
+            Assert.assertTrue(reloaded.get("account2", "jami:peer").isEmpty())
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun migrateAtStartup() {
+        val directory = Files.createTempDirectory("preferences").toFile()
+        try {
+            val legacy = FakeLegacy((0 until COUNT).associate { i ->
+                "jami:peer$i" to mapOf("color" to "#00ff00", "symbol" to "😀", "lastRead" to "$i")
+            })
+            Assert.assertEquals("7", ConversationPreferencesStore(directory, legacy).get("account", "jami:peer7", "lastRead"))
+            Assert.assertTrue(legacy.deleted)
+
+            val store = ConversationPreferencesStore(directory, legacy)
+            for (i in 0 until COUNT)
+                Assert.assertEquals(legacy.conversations["jami:peer$i"], store.get("account", "jami:peer$i"))
+            Assert.assertEquals(1, legacy.reads)
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun preloadAndFlushAll() {
+        val directory = Files.createTempDirectory("preferences").toFile()
+        try {
+            val scheduler = TestScheduler()
+            val legacy = FakeLegacy(mapOf("jami:peer" to mapOf("lastRead" to "1")))
+            val store = ConversationPreferencesStore(directory, legacy, scheduler)
+            // Migrated in the background
+            store.preload("account")
+            Assert.assertEquals(0, legacy.reads)
+            scheduler.triggerActions()
+            Assert.assertEquals(1, legacy.reads)
+
+            // Written before the write delay
+            store.put("account", "jami:peer", "draft", "Hello")
+            store.flushAll()
+            scheduler.triggerActions()
+            Assert.assertEquals("Hello", ConversationPreferencesStore(directory).get("account", "jami:peer", "draft"))
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun invalidFile() {
+        val directory = Files.createTempDirectory("preferences").toFile()
+        try {
+            File(directory, "account.preferences").writeBytes(byteArrayOf(1, 2, 3))
+            Assert.assertTrue(ConversationPreferencesStore(directory).get("account", "jami:peer").isEmpty())
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    companion object {
+        private const val COUNT = 100
+    }
+}
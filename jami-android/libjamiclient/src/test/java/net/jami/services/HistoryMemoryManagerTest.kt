@@ -0,0 +1,124 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import net.jami.model.Conversation
+import net.jami.model.Interaction
+import net.jami.model.TextMessage
+import net.jami.model.Uri
+import org.junit.Assert
+import org.junit.Test
+
+class HistoryMemoryManagerTest {
+    @Test
+    fun leastRecentlyUsedFirst() {
+        val manager = HistoryMemoryManager(30 * HistoryMemoryManager.INTERACTION_FOOTPRINT)
+        val a = loaded("a", 10)
+        val b = loaded("b", 10)
+        val c = loaded("c", 10)
+        manager.touch(a)
+        manager.touch(b)
+        manager.touch(c)
+        manager.touch(a)
+        Assert.assertEquals(0L, manager.unloadCount)
+
+        val d = loaded("d", 10)
+        manager.touch(d)
+        Assert.assertEquals(0, b.loadedHistorySize)
+        for (conversation in listOf(a, c, d))
+            Assert.assertEquals(10, conversation.loadedHistorySize)
+        Assert.assertEquals(1L, manager.unloadCount)
+        Assert.assertEquals(10 * HistoryMemoryManager.INTERACTION_FOOTPRINT, manager.unloadedBytes)
+        Assert.assertEquals(30 * HistoryMemoryManager.INTERACTION_FOOTPRINT, manager.usedBytes)
+        Assert.assertEquals(3, manager.loadedCount)
+    }
+
+    @Test
+    fun pinnedNotUnloaded() {
+        val manager = HistoryMemoryManager(20 * HistoryMemoryManager.INTERACTION_FOOTPRINT)
+        val a = loaded("a", 10)
+        val b = loaded("b", 10)
+        val c = loaded("c", 10)
+        manager.pin(a)
+        manager.touch(b)
+        manager.touch(c)
+        // The least recently used history is pinned, the next one is unloaded
+        Assert.assertEquals(10, a.loadedHistorySize)
+        Assert.assertEquals(0, b.loadedHistorySize)
+        Assert.assertEquals(10, c.loadedHistorySize)
+
+        manager.budget = 10 * HistoryMemoryManager.INTERACTION_FOOTPRINT
+        Assert.assertEquals(10, a.loadedHistorySize)
+        Assert.assertEquals(0, c.loadedHistorySize)
+
+        manager.unpin(a)
+        manager.budget = 0
+        Assert.assertEquals(0, a.loadedHistorySize)
+        Assert.assertEquals(0L, manager.usedBytes)
+        Assert.assertEquals(0, manager.loadedCount)
+    }
+
+    @Test
+    fun footprintUpdatedOnTouch() {
+        val manager = HistoryMemoryManager(100 * HistoryMemoryManager.INTERACTION_FOOTPRINT)
+        val a = loaded("a", 10)
+        manager.touch(a)
+        Assert.assertEquals(10 * HistoryMemoryManager.INTERACTION_FOOTPRINT, manager.usedBytes)
+
+        // Older history loaded
+        a.addSwarmElements(messages(a, "a", 10, 30))
+        manager.touch(a)
+        Assert.assertEquals(40 * HistoryMemoryManager.INTERACTION_FOOTPRINT, manager.usedBytes)
+
+        manager.remove(a)
+        Assert.assertEquals(0L, manager.usedBytes)
+        Assert.assertEquals(0L, manager.unloadCount)
+        Assert.assertEquals(40, a.loadedHistorySize)
+    }
+
+    @Test
+    fun footprintUpdatedOnResample() {
+        val manager = HistoryMemoryManager(30 * HistoryMemoryManager.INTERACTION_FOOTPRINT)
+        val a = loaded("a", 10)
+        val b = loaded("b", 10)
+        manager.touch(a)
+        manager.touch(b)
+        // Untracked histories are ignored
+        manager.resample(loaded("c", 10))
+        Assert.assertEquals(2, manager.loadedCount)
+
+        // New messages in b push a over the budget
+        b.addSwarmElements(messages(b, "b", 10, 25))
+        manager.resample(b)
+        Assert.assertEquals(0, a.loadedHistorySize)
+        Assert.assertEquals(25 * HistoryMemoryManager.INTERACTION_FOOTPRINT, manager.usedBytes)
+        Assert.assertEquals(1, manager.loadedCount)
+    }
+
+    private fun loaded(name: String, size: Int): Conversation =
+        Conversation("", Uri(Uri.SWARM_SCHEME, name), Conversation.Mode.Public).apply {
+            addSwarmElements(messages(this, name, 0, size))
+        }
+
+    /** Messages [from] the most recent one (0) back to [to] messages in the past */
+    private fun messages(conversation: Conversation, name: String, from: Int, to: Int): List<Interaction> =
+        (from until to).map { i ->
+            TextMessage("ring:test", "", -i.toLong(), conversation, "message $i", true).apply {
+                setSwarmInfo(name, "$name$i", "$name${i + 1}")
+            }
+        }
+}
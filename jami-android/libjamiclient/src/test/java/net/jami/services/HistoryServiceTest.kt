@@ -0,0 +1,303 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import com.j256.ormlite.dao.Dao
+import com.j256.ormlite.dao.DaoManager
+import com.j256.ormlite.jdbc.JdbcConnectionSource
+import com.j256.ormlite.support.ConnectionSource
+import com.j256.ormlite.table.TableUtils
+import io.reactivex.rxjava3.core.Completable
+import net.jami.model.ConversationHistory
+import net.jami.model.ConversationSummary
+import net.jami.model.Interaction
+import net.jami.model.InteractionIndexes
+import net.jami.model.TextMessage
+import net.jami.model.Uri
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class HistoryServiceTest {
+    /** History stored in a SQLite file through JDBC */
+    private class JdbcHistoryService(file: File, indexed: Boolean = true) : HistoryService() {
+        val connectionSource = JdbcConnectionSource("jdbc:sqlite:${file.absolutePath}")
+        private val interactionDao: Dao<Interaction, Int> = DaoManager.createDao(connectionSource, Interaction::class.java)
+        private val conversationDao: Dao<ConversationHistory, Int> = DaoManager.createDao(connectionSource, ConversationHistory::class.java)
+
+        init {
+            TableUtils.createTableIfNotExists(connectionSource, ConversationHistory::class.java)
+            TableUtils.createTableIfNotExists(connectionSource, Interaction::class.java)
+            for (statement in ConversationSummary.CREATE) interactionDao.executeRawNoArgs(statement)
+            if (indexed) createIndexes()
+        }
+
+        fun createIndexes() {
+            for (statement in InteractionIndexes.CREATE) interactionDao.executeRawNoArgs(statement)
+        }
+
+        /** @return the details of the query plan of [sql] */
+        fun queryPlan(sql: String, vararg args: String): List<String> =
+            interactionDao.queryRaw("EXPLAIN QUERY PLAN $sql", *args).results.map { it.last() }
+
+        /** @return the summary rows as (conversation, last id, unread count) */
+        fun summary(): List<Triple<Int, Int, Int>> = interactionDao.queryRaw(
+            "SELECT conversation, last_id, unread_count FROM ${ConversationSummary.TABLE_NAME} ORDER BY conversation"
+        ).results.map { Triple(it[0].toInt(), it[1].toInt(), it[2].toInt()) }
+
+        /** Called once by the next access to the database */
+        @Volatile
+        var onAccess: (() -> Unit)? = null
+
+        override fun getConnectionSource(dbName: String): ConnectionSource = connectionSource
+        public override fun getInteractionDataDao(dbName: String): Dao<Interaction, Int> {
+            onAccess?.let { onAccess = null; it() }
+            return interactionDao
+        }
+        public override fun getConversationDataDao(dbName: String): Dao<ConversationHistory, Int> = conversationDao
+        override fun getHelper(dbName: String): Any? = null
+        override fun setMessageNotified(accountId: String, conversationUri: Uri, lastId: String) {}
+        override fun getLastMessageNotified(accountId: String, conversationUri: Uri): String? = null
+        override fun deleteAccountHistory(accountId: String) {}
+
+        // Databases of all accounts share the connection, only the closings are recorded
+        val closed = ArrayList<String>()
+        override fun closeDatabase(accountId: String) {
+            synchronized(closed) { closed.add(accountId) }
+        }
+    }
+
+    private fun withHistory(block: (JdbcHistoryService, ConversationHistory, List<Interaction>) -> Unit) {
+        val file = File.createTempFile("history", ".db")
+        val service = JdbcHistoryService(file)
+        try {
+            val conversation = ConversationHistory("sip:peer")
+            service.getConversationDataDao(ACCOUNT).create(conversation)
+            val messages = (0 until COUNT).map { i ->
+                TextMessage("sip:peer", ACCOUNT, null, conversation, "Message $i").apply {
+                    timestamp = i.toLong()
+                    service.getInteractionDataDao(ACCOUNT).create(this)
+                }
+            }
+            block(service, conversation, messages)
+        } finally {
+            service.connectionSource.close()
+            file.delete()
+        }
+    }
+
+    @Test
+    fun readYourWrites() = withHistory { service, conversation, messages ->
+        for (message in messages) {
+            message.read()
+            service.updateInteraction(message, ACCOUNT).subscribe()
+        }
+        // Queued updates are committed before the history is read
+        val history = service.getConversationHistory(ACCOUNT, conversation.id!!).blockingGet()
+        Assert.assertEquals(COUNT, history.size)
+        Assert.assertTrue(history.all { it.isRead })
+    }
+
+    @Test
+    fun accountsDontWaitForEachOther() = withHistory { service, _, _ ->
+        val latch = CountDownLatch(1)
+        // A slow write on another account
+        service.writer("other").scheduleDirect { latch.await() }
+        try {
+            val smartlist = service.getSmartlist(ACCOUNT).timeout(5, TimeUnit.SECONDS).blockingGet()
+            Assert.assertEquals(1, smartlist.size)
+        } finally {
+            latch.countDown()
+        }
+    }
+
+    @Test
+    fun closeIdleDatabases() = withHistory { service, _, _ ->
+        val accounts = (0 until 6).map { "account$it" }
+        for (account in accounts) service.getSmartlist(account).blockingGet()
+        // Least recently used first, beyond 4 open databases
+        Assert.assertEquals(accounts.take(2), service.closed)
+    }
+
+    @Test
+    fun clearWaitsForReads() = withHistory { service, _, _ ->
+        val reading = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        service.onAccess = { reading.countDown(); release.await() }
+        val read = service.getSmartlist(ACCOUNT).test()
+        Assert.assertTrue(reading.await(5, TimeUnit.SECONDS))
+        val clear = service.clearHistory(ACCOUNT).test()
+        // The database isn't closed under the running read
+        Thread.sleep(100)
+        Assert.assertTrue(synchronized(service.closed) { service.closed.isEmpty() })
+        release.countDown()
+        read.await(5, TimeUnit.SECONDS)
+        read.assertComplete()
+        clear.await(5, TimeUnit.SECONDS)
+        clear.assertComplete()
+        Assert.assertEquals(listOf(ACCOUNT), service.closed)
+    }
+
+    @Test
+    fun batchedUpdates() = withHistory { service, _, messages ->
+        Completable.merge(messages.map { message ->
+            message.read()
+            service.updateInteraction(message, ACCOUNT)
+        }).blockingAwait()
+        Assert.assertTrue(service.getInteractionDataDao(ACCOUNT).queryForAll().all { it.isRead })
+    }
+
+    @Test
+    fun conversationSummary() = withHistory { service, conversation, messages ->
+        val dao = service.getInteractionDataDao(ACCOUNT)
+        val other = ConversationHistory("sip:other")
+        service.getConversationDataDao(ACCOUNT).create(other)
+        val outgoing = TextMessage(null, ACCOUNT, null, other, "Outgoing").apply { timestamp = 10 }
+        dao.create(outgoing)
+        Assert.assertEquals(listOf(
+            Triple(conversation.id!!, messages.last().id, COUNT),
+            Triple(other.id!!, outgoing.id, 0)
+        ), service.summary())
+
+        // Reading and deleting messages
+        messages.take(10).forEach { it.read(); dao.update(it) }
+        dao.delete(messages.last())
+        Assert.assertEquals(Triple(conversation.id!!, messages[COUNT - 2].id, COUNT - 11), service.summary()[0])
+        dao.delete(outgoing)
+        Assert.assertEquals(1, service.summary().size)
+
+        val smartlist = service.getSmartlist(ACCOUNT).blockingGet()
+        Assert.assertEquals(1, smartlist.size)
+        Assert.assertEquals(messages[COUNT - 2].id, smartlist[0].id)
+        Assert.assertEquals("sip:peer", smartlist[0].conversation!!.participant)
+
+        // Backfilling an existing database gives the same summary
+        val summary = service.summary()
+        dao.executeRawNoArgs("DELETE FROM ${ConversationSummary.TABLE_NAME}")
+        dao.executeRawNoArgs(ConversationSummary.BACKFILL)
+        Assert.assertEquals(summary, service.summary())
+    }
+
+    @Test
+    fun historyPages() = withHistory { service, conversation, messages ->
+        // Interactions with the same timestamp are ordered by id
+        val dao = service.getInteractionDataDao(ACCOUNT)
+        val tied = (0 until 3).map { TextMessage("sip:peer", ACCOUNT, null, conversation, "Tied $it").apply {
+            timestamp = 100
+            dao.create(this)
+        } }
+        val expected = (messages.take(101) + tied + messages.drop(101)).map { it.id }
+        val loaded = ArrayList<Int>()
+        var before: Interaction? = null
+        while (true) {
+            val page = service.getConversationHistoryPage(ACCOUNT, conversation.id!!, before, 64).blockingGet()
+            loaded.addAll(0, page.map { it.id })
+            if (page.size < 64) break
+            before = page.first()
+        }
+        Assert.assertEquals(expected, loaded)
+    }
+
+    @Test
+    fun firstPage() = withHistory { service, conversation, _ ->
+        val full = service.getConversationHistory(ACCOUNT, conversation.id!!).blockingGet()
+        val page = service.getConversationHistoryPage(ACCOUNT, conversation.id!!, null, 64).blockingGet()
+        Assert.assertEquals(COUNT, full.size)
+        Assert.assertEquals(full.takeLast(64).map { it.id }, page.map { it.id })
+    }
+
+    @Test
+    fun messageStatus() = withHistory { service, _, messages ->
+        val dao = service.getInteractionDataDao(ACCOUNT)
+        val message = messages[42].apply { daemonId = 0xabcdefL }
+        dao.update(message)
+        val updated = service.accountMessageStatusChanged(ACCOUNT, "abcdef", "sip:peer",
+            Interaction.InteractionStatus.DISPLAYED, Interaction.MessageStates.DISPLAYED).blockingGet()
+        Assert.assertEquals(message.id, updated.id)
+        Assert.assertEquals("sip:peer", updated.conversation!!.participant)
+        val stored = dao.queryForId(message.id)
+        Assert.assertEquals(Interaction.InteractionStatus.DISPLAYED, stored.status)
+        Assert.assertTrue(stored.isRead)
+        Assert.assertEquals(message.body, stored.body)
+    }
+
+    @Test
+    fun rowMapper() = withHistory { service, conversation, _ ->
+        val dao = service.getInteractionDataDao(ACCOUNT)
+        val query = dao.queryBuilder()
+            .orderBy(Interaction.COLUMN_TIMESTAMP, false)
+            .where().eq(Interaction.COLUMN_CONVERSATION, conversation.id)
+            .prepare()
+        val reflection = dao.query(query).reversed()
+        val mapped = InteractionQueries.historyPage(service.connectionSource, conversation.id!!, null, COUNT)
+        Assert.assertEquals(reflection.map { it.id }, mapped.map { it.id })
+        Assert.assertEquals(reflection.map { Triple(it.author, it.body, it.timestamp) }, mapped.map { Triple(it.author, it.body, it.timestamp) })
+        Assert.assertEquals(reflection.map { Pair(it.status, it.isRead) }, mapped.map { Pair(it.status, it.isRead) })
+        Assert.assertTrue(mapped.all { it is TextMessage })
+    }
+
+    @Test
+    fun queryPlans() = withHistory { service, _, _ ->
+        val queries = mapOf(
+            InteractionQueries.HISTORY to arrayOf("1"),
+            InteractionQueries.HISTORY_BEFORE to arrayOf("1", "100", "100", "100"),
+            InteractionQueries.SMARTLIST to emptyArray<String>(),
+            InteractionQueries.BY_DAEMON_ID to arrayOf("1"),
+            InteractionQueries.UPDATE_STATUS to arrayOf("SUCCESS", "1", "1"),
+            // Last interaction lookup of the conversation summary triggers
+            "SELECT ${Interaction.COLUMN_ID} FROM ${Interaction.TABLE_NAME} WHERE ${Interaction.COLUMN_CONVERSATION} = ?" +
+                " ORDER BY ${Interaction.COLUMN_TIMESTAMP} DESC, ${Interaction.COLUMN_ID} DESC LIMIT 1" to arrayOf("1")
+        )
+        // Interactions must never be scanned or sorted
+        val scan = Regex("^SCAN (TABLE )?(${Interaction.TABLE_NAME}|i)\\b")
+        for ((sql, args) in queries) {
+            val plan = service.queryPlan(sql, *args)
+            Assert.assertFalse("$sql\n$plan", plan.any { scan.containsMatchIn(it) || it.startsWith("USE TEMP B-TREE") })
+        }
+    }
+
+    @Test
+    fun indexesUsed() {
+        val file = File.createTempFile("history", ".db")
+        val service = JdbcHistoryService(file, false)
+        try {
+            val queries = mapOf(
+                InteractionQueries.HISTORY_BEFORE to arrayOf("1", "100", "100", "100"),
+                InteractionQueries.BY_DAEMON_ID to arrayOf("1")
+            )
+            val scan = Regex("^SCAN (TABLE )?(${Interaction.TABLE_NAME}|i)\\b")
+            // Without the indexes, interactions are scanned
+            for ((sql, args) in queries)
+                Assert.assertTrue(sql, service.queryPlan(sql, *args).any { scan.containsMatchIn(it) || it.contains("AUTOMATIC") })
+            service.createIndexes()
+            Assert.assertTrue(service.queryPlan(InteractionQueries.HISTORY_BEFORE, *queries[InteractionQueries.HISTORY_BEFORE]!!)
+                .any { it.contains(InteractionIndexes.CONVERSATION_TIMESTAMP) })
+            Assert.assertTrue(service.queryPlan(InteractionQueries.BY_DAEMON_ID, *queries[InteractionQueries.BY_DAEMON_ID]!!)
+                .any { it.contains(InteractionIndexes.DAEMON_ID) })
+        } finally {
+            service.connectionSource.close()
+            file.delete()
+        }
+    }
+
+    companion object {
+        private const val ACCOUNT = "account"
+        private const val COUNT = 500
+    }
+}
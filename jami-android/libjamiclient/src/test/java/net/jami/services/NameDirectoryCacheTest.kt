@@ -0,0 +1,120 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.core.Single
+import io.reactivex.rxjava3.schedulers.Schedulers
+import io.reactivex.rxjava3.subjects.SingleSubject
+import net.jami.services.AccountService.LookupState
+import net.jami.services.AccountService.RegisteredName
+import org.junit.Assert
+import org.junit.Test
+import java.nio.file.Files
+
+class NameDirectoryCacheTest {
+    @Test
+    fun coalesceAndCache() {
+        var now = 0L
+        val cache = NameDirectoryCache(null, clock = { now })
+        val response = SingleSubject.create<RegisteredName>()
+        var requests = 0
+        val request = Single.defer { requests++; response }
+
+        val first = cache.lookupAddress("account", "address", request).test()
+        val second = cache.lookupAddress("account", "address", request).test()
+        Assert.assertEquals(1, requests)
+        response.onSuccess(RegisteredName("account", "name", "address"))
+        first.assertValue(RegisteredName("account", "name", "address"))
+        second.assertValue(RegisteredName("account", "name", "address"))
+
+        // Hits return synchronously, by address and by name
+        val failing = Single.error<RegisteredName>(IllegalStateException())
+        cache.lookupAddress("account", "address", failing).test().assertValue(RegisteredName("account", "name", "address"))
+        Assert.assertEquals("address", cache.findByName("account", "name")?.address)
+        Assert.assertNull(cache.findByName("other", "name"))
+        // Internal checks are not counted as hits
+        Assert.assertTrue(cache.containsAddress("account", "address"))
+
+        now += NameDirectoryCache.FOUND_TTL_MS
+        Assert.assertFalse(cache.containsAddress("account", "address"))
+        Assert.assertNull(cache.findByAddress("account", "address"))
+
+        val stats = cache.stats()
+        Assert.assertEquals(2L, stats.hits)
+        Assert.assertEquals(1L, stats.misses)
+        Assert.assertEquals(1L, stats.coalesced)
+    }
+
+    @Test
+    fun notFound() {
+        var now = 0L
+        val cache = NameDirectoryCache(null, clock = { now })
+        cache.put(RegisteredName("account", "unknown", "", LookupState.NotFound))
+        cache.put(RegisteredName("account", "offline", "", LookupState.NetworkError))
+        Assert.assertEquals(LookupState.NotFound, cache.findByName("account", "unknown")?.state)
+        Assert.assertNull(cache.findByName("account", "offline"))
+        Assert.assertEquals(1L, cache.stats().notFoundHits)
+
+        now += NameDirectoryCache.NOT_FOUND_TTL_MS
+        Assert.assertNull(cache.findByName("account", "unknown"))
+    }
+
+    @Test
+    fun availability() {
+        val cache = NameDirectoryCache(null)
+        cache.put(RegisteredName("account", "alice", "", LookupState.NotFound))
+        cache.put(RegisteredName("account", "bob", "address"))
+
+        // Names that weren't found are looked up again, found names stay cached
+        val registered = Single.just(RegisteredName("account", "alice", "other"))
+        cache.lookupNameAvailability("account", "alice", registered).test().assertValue(RegisteredName("account", "alice", "other"))
+        val failing = Single.error<RegisteredName>(IllegalStateException())
+        cache.lookupNameAvailability("account", "bob", failing).test().assertValue(RegisteredName("account", "bob", "address"))
+
+        // Registering a name forgets its previous lookups
+        cache.forgetName("bob")
+        Assert.assertNull(cache.findByName("account", "bob"))
+        Assert.assertNull(cache.findByAddress("account", "address"))
+    }
+
+    @Test
+    fun persist() {
+        val directory = Files.createTempDirectory("names").toFile()
+        try {
+            val cache = NameDirectoryCache(directory, scheduler = Schedulers.single())
+            for (i in 0 until COUNT)
+                cache.put(RegisteredName("account", "name$i", "address$i"))
+            cache.put(RegisteredName("account", "", "unregistered", LookupState.NotFound))
+            cache.flush("account")
+
+            val reloaded = NameDirectoryCache(directory)
+            Assert.assertEquals("name7", reloaded.findByAddress("account", "address7")?.name)
+            for (i in 0 until COUNT)
+                Assert.assertEquals("address$i", reloaded.findByName("account", "name$i")?.address)
+            Assert.assertEquals(LookupState.NotFound, reloaded.findByAddress("account", "unregistered")?.state)
+
+            reloaded.delete("account")
+            Assert.assertNull(NameDirectoryCache(directory).findByAddress("account", "address7"))
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    companion object {
+        private const val COUNT = 100
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.schedulers.TestScheduler
+import net.jami.model.Uri
+import org.junit.Assert
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class ReadStateTrackerTest {
+    @Test
+    fun coalesceUpdates() {
+        val scheduler = TestScheduler()
+        val notified = ArrayList<Triple<String, Uri, String>>()
+        val displayed = ArrayList<Triple<String, Uri, String>>()
+        val tracker = ReadStateTracker({ a, c, m -> notified.add(Triple(a, c, m)) }, { a, c, m -> displayed.add(Triple(a, c, m)) },
+            scheduler, 100)
+        val conversation = Uri(Uri.SWARM_SCHEME, "conversation")
+        val other = Uri(Uri.SWARM_SCHEME, "other")
+
+        for (i in 0 until 300) {
+            tracker.notified("account", conversation, "message$i")
+            tracker.displayed("account", conversation, "message$i")
+        }
+        tracker.displayed("account", other, "last")
+        scheduler.advanceTimeBy(99, TimeUnit.MILLISECONDS)
+        Assert.assertTrue(notified.isEmpty())
+        Assert.assertTrue(displayed.isEmpty())
+
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(listOf(Triple("account", conversation, "message299")), notified)
+        Assert.assertEquals(listOf(Triple("account", conversation, "message299"), Triple("account", other, "last")), displayed)
+
+        tracker.notified("account", conversation, "message300")
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS)
+        Assert.assertEquals("message300", notified.last().third)
+        Assert.assertEquals(2, notified.size)
+        Assert.assertEquals(2, displayed.size)
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class SmartListSnapshotStoreTest {
+    @Test
+    fun writeAndRead() {
+        val directory = Files.createTempDirectory("smartlist").toFile()
+        try {
+            val entries = (0 until 100).map { i ->
+                SmartListSnapshotStore.Entry("swarm$i", i % 4, if (i % 2 == 0) "Title é $i" else null, null, i,
+                    listOf(SmartListSnapshotStore.Member("jami:user", 0), SmartListSnapshotStore.Member("jami:peer$i", 1)),
+                    if (i % 3 == 0) null else SmartListSnapshotStore.Preview(1, "jami:peer$i", "Last message $i", i * 1000L, true, 0, i % 5 == 0, i * 10L),
+                    mapOf("color" to "#00ff00"))
+            }
+            SmartListSnapshotStore(directory).write("account", entries)
+
+            val store = SmartListSnapshotStore(directory)
+            store.preload()
+            val read = store.read("account")!!
+            Assert.assertEquals(entries.size, read.size)
+            for (i in entries.indices) {
+                val expected = entries[i]
+                val actual = read[i]
+                Assert.assertEquals(expected.conversationId, actual.conversationId)
+                Assert.assertEquals(expected.mode, actual.mode)
+                Assert.assertEquals(expected.title, actual.title)
+                Assert.assertNull(actual.description)
+                Assert.assertEquals(expected.avatarHash, actual.avatarHash)
+                Assert.assertEquals(expected.members.map { it.uri to it.role }, actual.members.map { it.uri to it.role })
+                Assert.assertEquals(expected.lastEvent?.body, actual.lastEvent?.body)
+                Assert.assertEquals(expected.lastEvent?.timestamp, actual.lastEvent?.timestamp)
+                Assert.assertEquals(expected.lastEvent?.isRead, actual.lastEvent?.isRead)
+                Assert.assertEquals(expected.lastEvent?.detail, actual.lastEvent?.detail)
+                Assert.assertEquals(expected.preferences, actual.preferences)
+            }
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun invalidSnapshot() {
+        val directory = Files.createTempDirectory("smartlist").toFile()
+        try {
+            File(directory, "account.smartlist").writeBytes(byteArrayOf(1, 2, 3))
+            Assert.assertNull(SmartListSnapshotStore(directory).read("account"))
+            Assert.assertFalse(File(directory, "account.smartlist").exists())
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.services
+
+import io.reactivex.rxjava3.schedulers.TestScheduler
+import net.jami.model.Conversation
+import net.jami.model.DataTransfer
+import net.jami.model.Interaction.TransferStatus
+import net.jami.model.Uri
+import org.junit.Assert
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class TransferProgressPollerTest {
+    private fun transfer(i: Int, total: Long) = DataTransfer("file$i", "account", "jami:peer", "photo$i.jpg", false, 0, total, 0).apply {
+        transferStatus = TransferStatus.TRANSFER_ONGOING
+    }
+
+    @Test
+    fun pollAllTransfersOnce() {
+        val scheduler = TestScheduler()
+        val conversation = Conversation("account", Uri(Uri.SWARM_SCHEME, "swarm"), Conversation.Mode.OneToOne)
+        val progress = HashMap<DataTransfer, Long>()
+        var calls = 0
+        val emitted = ArrayList<DataTransfer>()
+        val poller = TransferProgressPoller(scheduler, { _, t -> calls++; progress[t] ?: 0 }) { emitted.add(it) }
+        val transfers = List(40) { transfer(it, 10_000_000) }
+        for (t in transfers) poller.add(conversation, t)
+
+        // Background: nothing before the slow period
+        scheduler.advanceTimeBy(TransferProgressPoller.VISIBLE_PERIOD_MS, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(0, calls)
+        scheduler.advanceTimeBy(TransferProgressPoller.BACKGROUND_PERIOD_MS - TransferProgressPoller.VISIBLE_PERIOD_MS, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(40, calls)
+        Assert.assertTrue(emitted.isEmpty())
+
+        // Only meaningful changes are emitted
+        progress[transfers[0]] = 50_000
+        progress[transfers[1]] = 200_000
+        conversation.isVisible = true
+        scheduler.advanceTimeBy(TransferProgressPoller.BACKGROUND_PERIOD_MS, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(80, calls)
+        Assert.assertEquals(listOf(transfers[1]), emitted)
+        Assert.assertEquals(50_000, transfers[0].bytesProgress)
+
+        // Visible: fast period, finished transfers are dropped
+        progress[transfers[0]] = 10_000_000
+        for (t in transfers.drop(1)) t.transferStatus = TransferStatus.TRANSFER_FINISHED
+        scheduler.advanceTimeBy(TransferProgressPoller.VISIBLE_PERIOD_MS, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(81, calls)
+        Assert.assertEquals(listOf(transfers[1], transfers[0]), emitted)
+        Assert.assertEquals(1, poller.size)
+
+        transfers[0].transferStatus = TransferStatus.TRANSFER_FINISHED
+        scheduler.advanceTimeBy(TransferProgressPoller.VISIBLE_PERIOD_MS, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(0, poller.size)
+        scheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+        Assert.assertEquals(81, calls)
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import org.junit.Assert
+import org.junit.Test
+
+class KeyedEventBusTest {
+    @Test
+    fun dispatchByKey() {
+        val bus = KeyedEventBus<String, Int>()
+        val all = bus.all.test()
+        val a1 = bus.updates("a").test()
+        val a2 = bus.updates("a").test()
+        val b = bus.updates("b").test()
+        Assert.assertEquals(2, bus.size)
+
+        bus.publish("a", 1)
+        bus.publish("b", 2)
+        bus.publish("c", 3)
+        bus.publish(listOf("a", "b", "a"), 4)
+
+        all.assertValues(1, 2, 3, 4)
+        a1.assertValues(1, 4)
+        a2.assertValues(1, 4)
+        b.assertValues(2, 4)
+
+        // Keys are released with their last subscriber
+        a1.dispose()
+        Assert.assertEquals(2, bus.size)
+        a2.dispose()
+        b.dispose()
+        Assert.assertEquals(0, bus.size)
+        bus.publish("a", 5)
+        a2.assertValues(1, 4)
+        all.assertValues(1, 2, 3, 4, 5)
+    }
+}
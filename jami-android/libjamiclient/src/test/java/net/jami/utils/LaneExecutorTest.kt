@@ -0,0 +1,64 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import net.jami.utils.LaneExecutor.Lane
+import org.junit.Assert
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class LaneExecutorTest {
+    @Test
+    fun callLaneNotBlockedByBulk() {
+        val lanes = LaneExecutor()
+        val release = CountDownLatch(1)
+        try {
+            repeat(100) { lanes[Lane.Bulk].execute { release.await() } }
+            val call = CountDownLatch(1)
+            lanes[Lane.Call].execute { call.countDown() }
+            Assert.assertTrue(call.await(1, TimeUnit.SECONDS))
+            val bulk = lanes.stats().first { it.lane == Lane.Bulk }
+            Assert.assertTrue(bulk.queueDepth >= 98)
+        } finally {
+            release.countDown()
+            lanes.shutdown()
+        }
+    }
+
+    @Test
+    fun lanesWaitForStartup() {
+        val lanes = LaneExecutor(mapOf(Lane.Bulk to 2), startupLane = Lane.Messaging)
+        try {
+            val order = Collections.synchronizedList(ArrayList<String>())
+            val done = CountDownLatch(3)
+            lanes[Lane.Call].execute { order.add("call"); done.countDown() }
+            lanes[Lane.Bulk].execute { order.add("bulk"); done.countDown() }
+            lanes[Lane.Messaging].execute {
+                order.add("startup")
+                lanes.started()
+                done.countDown()
+            }
+            Assert.assertTrue(done.await(1, TimeUnit.SECONDS))
+            Assert.assertEquals("startup", order[0])
+            Assert.assertEquals(setOf("call", "bulk"), order.drop(1).toSet())
+        } finally {
+            lanes.shutdown()
+        }
+    }
+}
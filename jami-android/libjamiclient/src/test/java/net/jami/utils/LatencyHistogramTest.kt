@@ -0,0 +1,50 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import org.junit.Assert
+import org.junit.Test
+
+class LatencyHistogramTest {
+    @Test
+    fun buckets() {
+        // Every value is in a bucket whose bounds contain it, with a bounded relative error
+        var previous = -1
+        for (value in (0L until 100_000L) + listOf(1L shl 30, (1L shl 36) - 1)) {
+            val bucket = LatencyHistogram.bucketOf(value)
+            Assert.assertTrue(bucket >= previous)
+            previous = bucket
+            val upper = LatencyHistogram.upperBound(bucket)
+            Assert.assertTrue(upper >= value)
+            Assert.assertTrue(upper - value <= value / 16)
+        }
+    }
+
+    @Test
+    fun percentiles() {
+        val histogram = LatencyHistogram()
+        for (i in 1L..1000L) histogram.record(i)
+        Assert.assertEquals(1000L, histogram.count)
+        Assert.assertEquals(1000L, histogram.max)
+        Assert.assertEquals(500.5, histogram.mean, 0.01)
+        Assert.assertEquals(500.0, histogram.valueAt(50.0).toDouble(), 500 / 16.0)
+        Assert.assertEquals(990.0, histogram.valueAt(99.0).toDouble(), 990 / 16.0)
+        histogram.reset()
+        Assert.assertEquals(0L, histogram.count)
+        Assert.assertEquals(0L, histogram.valueAt(50.0))
+    }
+}
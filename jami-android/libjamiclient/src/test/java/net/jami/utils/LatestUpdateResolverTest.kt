@@ -0,0 +1,80 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import io.reactivex.rxjava3.core.Maybe
+import io.reactivex.rxjava3.schedulers.Schedulers
+import io.reactivex.rxjava3.subjects.CompletableSubject
+import io.reactivex.rxjava3.subjects.MaybeSubject
+import org.junit.Assert
+import org.junit.Test
+
+class LatestUpdateResolverTest {
+    private val pending = HashMap<String, MaybeSubject<String>>()
+    private val resolver = LatestUpdateResolver<String, String, String> { update ->
+        MaybeSubject.create<String>().also { pending[update] = it }
+    }
+
+    @Test
+    fun staleResolution() {
+        val results = resolver.results.test()
+        resolver.update("conf", "old")
+        resolver.update("other", "a")
+        resolver.update("conf", "new")
+        Assert.assertFalse(pending["old"]!!.hasObservers())
+        pending["new"]!!.onSuccess("new info")
+        // Completing after a newer update can't overwrite its result
+        pending["old"]!!.onSuccess("old info")
+        pending["a"]!!.onSuccess("a info")
+        results.assertValues("new info", "a info")
+        Assert.assertEquals(2, resolver.size)
+    }
+
+    @Test
+    fun staleResolutionOnIoThreads() {
+        val gate = CompletableSubject.create()
+        val ioResolver = LatestUpdateResolver<String, String, String> { update ->
+            val resolution = Maybe.fromCallable { "$update info" }.subscribeOn(Schedulers.io())
+            if (update == "old") gate.andThen(resolution) else resolution
+        }
+        val results = ioResolver.results.test()
+        ioResolver.update("conf", "old")
+        ioResolver.update("conf", "new")
+        results.awaitCount(1)
+        Assert.assertFalse(gate.hasObservers())
+        gate.onComplete()
+        results.assertValues("new info")
+    }
+
+    @Test
+    fun removal() {
+        val results = resolver.results.test()
+        resolver.update("conf", "a")
+        Assert.assertEquals(1, resolver.size)
+        resolver.remove("conf")
+        Assert.assertEquals(0, resolver.size)
+        Assert.assertFalse(pending["a"]!!.hasObservers())
+        pending["a"]!!.onSuccess("a info")
+        results.assertEmpty()
+
+        // A later update of the same key is resolved again
+        resolver.update("conf", "b")
+        pending["b"]!!.onSuccess("b info")
+        results.assertValues("b info")
+        results.assertNotComplete()
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright (C) 2004-2024 Savoir-faire Linux Inc.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.jami.utils
+
+import io.reactivex.rxjava3.schedulers.Schedulers
+import org.junit.Assert
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicInteger
+
+class ParallelLoaderTest {
+    @Test
+    fun serialAndParallelLoads() {
+        val items = (0 until 100).toList()
+        val serial = load(items, 1)
+        val parallel = load(items, 8)
+        // Results are merged in order, failed loads are skipped
+        val expected = items.filter { it % 7 != 0 }.chunked(32)
+        Assert.assertEquals(expected, serial.first)
+        Assert.assertEquals(expected, parallel.first)
+        // Requests in flight never exceed the concurrency
+        Assert.assertEquals(1, serial.second)
+        Assert.assertTrue(parallel.second in 2..8)
+    }
+
+    /**
+     * Loads [items] with a fake daemon taking 2 ms per request, failing for multiples of 7.
+     * @return the merged chunks and the maximum number of requests in flight
+     */
+    private fun load(items: List<Int>, concurrency: Int): Pair<List<List<Int>>, Int> {
+        val inFlight = AtomicInteger()
+        val maxInFlight = AtomicInteger()
+        val chunks = ArrayList<List<Int>>()
+        val thread = Thread.currentThread()
+        loadOrdered(items, concurrency, 32, Schedulers.io(), { i ->
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet()) { a, b -> maxOf(a, b) }
+            try {
+                Thread.sleep(2)
+                if (i % 7 == 0) null else i
+            } finally {
+                inFlight.decrementAndGet()
+            }
+        }, { chunk ->
+            Assert.assertSame(thread, Thread.currentThread())
+            chunks.add(chunk)
+        })
+        return Pair(chunks, maxInFlight.get())
+    }
+}